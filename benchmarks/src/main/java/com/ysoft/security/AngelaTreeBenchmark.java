@@ -0,0 +1,57 @@
+package com.ysoft.security;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merkle hashes of file name lists, with and without sorting.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class AngelaTreeBenchmark {
+
+    @Param({"10", "1000"})
+    public int size;
+
+    private List<String> data;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final Random random = new Random(42);
+        data = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            data.add("lib/net472/Package" + random.nextInt(100_000) + "/File" + i + ".dll");
+        }
+        Collections.shuffle(data, random);
+    }
+
+    @Benchmark
+    public byte[] merkle() {
+        return AngelaTree.merkle(data);
+    }
+
+    @Benchmark
+    public byte[] merkleSorted() {
+        return AngelaTree.merkleSorted(data);
+    }
+}
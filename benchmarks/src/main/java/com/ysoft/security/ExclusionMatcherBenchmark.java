@@ -0,0 +1,74 @@
+package com.ysoft.security;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the former stream-based exclusion check with {@link ExclusionMatcher}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ExclusionMatcherBenchmark {
+
+    private static final int PATH_COUNT = 1024;
+
+    @Param({"10", "500"})
+    public int exclusionCount;
+
+    private TreeSet<String> exclusions;
+
+    private ExclusionMatcher matcher;
+
+    private String[] paths;
+
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final Random random = new Random(42);
+        exclusions = new TreeSet<>();
+        while (exclusions.size() < exclusionCount) {
+            exclusions.add("nuget-remote/Package" + random.nextInt(100_000) + "/");
+        }
+        matcher = ExclusionMatcher.compile(exclusions);
+        paths = new String[PATH_COUNT];
+        for (int i = 0; i < PATH_COUNT; i++) {
+            final int id = random.nextInt(100_000);
+            paths[i] = "nuget-remote/Package" + id + "/1.0." + i + "/Package" + id + ".1.0." + i + ".nupkg";
+        }
+    }
+
+    private String nextPath() {
+        next = (next + 1) & (PATH_COUNT - 1);
+        return paths[next];
+    }
+
+    @Benchmark
+    public boolean stream() {
+        final String path = nextPath();
+        return exclusions.stream().anyMatch(path::startsWith);
+    }
+
+    @Benchmark
+    public boolean trie() {
+        return matcher.isExcluded(nextPath());
+    }
+}
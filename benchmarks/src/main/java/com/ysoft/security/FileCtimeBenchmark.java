@@ -0,0 +1,93 @@
+package com.ysoft.security;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares reading of ctime by the stat command and by the unix file attribute view on a generated Nexus-like tree.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileCtimeBenchmark {
+
+    @Param({"200"})
+    public int ids;
+
+    @Param({"5"})
+    public int versions;
+
+    private Path root;
+
+    private final List<Path> files = new ArrayList<>();
+
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("nexus-ctime-benchmark");
+        for (int i = 0; i < ids; i++) {
+            for (int v = 0; v < versions; v++) {
+                final Path dir = Files.createDirectories(root.resolve("Package" + i).resolve("1.0." + v));
+                files.add(Files.createFile(dir.resolve("Package" + i + ".1.0." + v + ".nupkg")));
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private Path nextFile() {
+        next = (next + 1) % files.size();
+        return files.get(next);
+    }
+
+    @Benchmark
+    public FileTime stat() throws IOException {
+        return FileCtime.readWithStat(nextFile());
+    }
+
+    @Benchmark
+    public FileTime unixCtime() throws IOException {
+        return FileCtime.readInJvm(nextFile());
+    }
+}
@@ -0,0 +1,87 @@
+package com.ysoft.security;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Packages for the benchmarks: the ones bundled with the tests and synthetic ones of given shape.
+ */
+final class Fixtures {
+
+    /**
+     * Many small files, which stresses per-entry overhead.
+     */
+    static final String SYNTHETIC_SMALL_FILES = "synthetic-2000x4KiB";
+
+    /**
+     * Few large files, which stresses inflation and hashing throughput.
+     */
+    static final String SYNTHETIC_LARGE_FILES = "synthetic-40x1MiB";
+
+    private Fixtures() {
+    }
+
+    static byte[] load(String fixture) throws IOException {
+        switch (fixture) {
+            case SYNTHETIC_SMALL_FILES:
+                return syntheticPackage(2000, 4 * 1024);
+            case SYNTHETIC_LARGE_FILES:
+                return syntheticPackage(40, 1024 * 1024);
+            default:
+                return resource(fixture);
+        }
+    }
+
+    static byte[] resource(String name) throws IOException {
+        try (InputStream in = Fixtures.class.getResourceAsStream("/" + name)) {
+            if (in == null) {
+                throw new IOException("Missing fixture: " + name);
+            }
+            return readFully(in);
+        }
+    }
+
+    /**
+     * Generates a valid package. Half of each file is random and half is repetitive, so that it compresses roughly
+     * like real DLLs.
+     */
+    static byte[] syntheticPackage(int fileCount, int fileSize) {
+        final Random random = new Random(42);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(out)) {
+            zip.putNextEntry(new ZipEntry("Synthetic.Package.nuspec"));
+            zip.write(("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n" +
+                    "<package xmlns=\"http://schemas.microsoft.com/packaging/2011/08/nuspec.xsd\"><metadata>" +
+                    "<id>Synthetic.Package</id><version>1.0.0</version><authors>benchmark</authors>" +
+                    "</metadata></package>").getBytes(StandardCharsets.UTF_8));
+            final byte[] data = new byte[fileSize];
+            for (int i = 0; i < fileCount; i++) {
+                random.nextBytes(data);
+                for (int j = fileSize / 2; j < fileSize; j++) {
+                    data[j] = (byte) (j % 64);
+                }
+                zip.putNextEntry(new ZipEntry("lib/net472/Synthetic.Package." + i + ".dll"));
+                zip.write(data);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int len;
+        while ((len = in.read(buffer)) != -1) {
+            out.write(buffer, 0, len);
+        }
+        return out.toByteArray();
+    }
+}
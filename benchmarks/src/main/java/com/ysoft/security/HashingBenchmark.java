@@ -0,0 +1,81 @@
+package com.ysoft.security;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashing of a single file, either by {@link Hashing#hash(java.io.InputStream)} with its own buffer, or by reading
+ * through {@link Hashing.HashingInputStream} with buffers of various sizes, like the streaming analysis does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class HashingBenchmark {
+
+    @Param({"4096", "1048576"})
+    public int dataSize;
+
+    @Param({"false", "true"})
+    public boolean sha256;
+
+    private byte[] data;
+
+    /**
+     * Only for {@link #hashingInputStream(ReadBuffer)}, so that {@link #hash()} is not repeated for each size.
+     */
+    @State(Scope.Thread)
+    public static class ReadBuffer {
+        @Param({"512", "8192", "65536"})
+        public int readBufferSize;
+
+        private byte[] buffer;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            buffer = new byte[readBufferSize];
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        data = new byte[dataSize];
+        new Random(42).nextBytes(data);
+        Hashing.setAlgorithms(sha256 ? EnumSet.allOf(Hashing.Algorithm.class) : Hashing.REQUIRED_ALGORITHMS);
+    }
+
+    @Benchmark
+    public Hashing.Digests hash() throws IOException {
+        return Hashing.hash(new ByteArrayInputStream(data));
+    }
+
+    @Benchmark
+    public Hashing.Digests hashingInputStream(ReadBuffer readBuffer) throws IOException {
+        try (Hashing.Hasher hasher = Hashing.hasher()) {
+            final Hashing.HashingInputStream in = new Hashing.HashingInputStream(new ByteArrayInputStream(data), hasher);
+            //noinspection StatementWithEmptyBody
+            while (in.read(readBuffer.buffer) != -1) {
+                // just hash
+            }
+            return in.finish();
+        }
+    }
+}
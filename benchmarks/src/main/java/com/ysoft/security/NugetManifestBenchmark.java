@@ -0,0 +1,42 @@
+package com.ysoft.security;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of a .nuspec, which is done for every package, including creation of the StAX factory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class NugetManifestBenchmark {
+
+    private byte[] manifest;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        manifest = Fixtures.resource("Microsoft.AspNet.Razor.nuspec");
+    }
+
+    @Benchmark
+    public NugetIdentifier getNugetIdentifierFromManifest() throws IOException, XMLStreamException {
+        return NugetReader.getNugetIdentifierFromManifest(new ByteArrayInputStream(manifest));
+    }
+}
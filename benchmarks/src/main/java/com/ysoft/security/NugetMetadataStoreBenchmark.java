@@ -0,0 +1,110 @@
+package com.ysoft.security;
+
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Storing of packages, i.e., batching of rows by {@link NugetMetadataStore#addHash(String, String, String, Hashing.Digests)}
+ * and their flushes by batched inserts or by the bulk load, against an embedded PostgreSQL or against the DB given by
+ * {@code -p jdbcUrl=…}. The tables grow during the run, so use an empty or throwaway DB.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class NugetMetadataStoreBenchmark {
+
+    private static final int DISTINCT_FILES = 10_000;
+
+    /**
+     * A JDBC URL including credentials, or empty for an embedded PostgreSQL.
+     */
+    @Param({""})
+    public String jdbcUrl;
+
+    @Param({"1000"})
+    public int batchSize;
+
+    @Param({"20"})
+    public int filesPerPackage;
+
+    @Param({"false", "true"})
+    public boolean bulkLoad;
+
+    private EmbeddedPostgres postgres;
+
+    private Connection dbh;
+
+    private NugetMetadataStore store;
+
+    private Hashing.Digests[] digests;
+
+    private long packageNumber;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        if (jdbcUrl.isEmpty()) {
+            postgres = EmbeddedPostgres.start();
+            dbh = postgres.getPostgresDatabase().getConnection();
+        } else {
+            final Properties props = new Properties();
+            props.setProperty("allowLocalInfile", "true");
+            dbh = DriverManager.getConnection(jdbcUrl, props);
+        }
+        store = NugetMetadataStore.open(dbh, "benchmark-" + System.currentTimeMillis(), batchSize, bulkLoad);
+        // Most files repeat across packages, like in real repositories.
+        digests = new Hashing.Digests[DISTINCT_FILES];
+        for (int i = 0; i < DISTINCT_FILES; i++) {
+            digests[i] = Hashing.hash(new ByteArrayInputStream(ByteBuffer.allocate(4).putInt(i).array()));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, SQLException {
+        try {
+            store.finishPartial();
+            dbh.close();
+        } finally {
+            if (postgres != null) {
+                postgres.close();
+            }
+        }
+    }
+
+    /**
+     * Stores one package with its files.
+     */
+    @Benchmark
+    public void addPackage() throws SQLException {
+        final long number = packageNumber++;
+        final String name = "Benchmark.Package" + number;
+        for (int i = 0; i < filesPerPackage; i++) {
+            final int file = (int) ((number * filesPerPackage + i) % DISTINCT_FILES);
+            store.addHash(name, "1.0.0", "lib/net472/File" + i + ".dll", digests[file]);
+        }
+        store.flushIfFull();
+    }
+}
@@ -0,0 +1,68 @@
+package com.ysoft.security;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Analysis of whole packages, both streamed (Artifactory downloads) and from a local file (Nexus).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class NugetReaderBenchmark {
+
+    @Param({
+            "Microsoft.AspNet.Razor-2.0.20715.0.nupkg",
+            "System.Globalization.4.3.0.nupkg",
+            "netmq.4.0.0.207.nupkg",
+            Fixtures.SYNTHETIC_SMALL_FILES,
+            Fixtures.SYNTHETIC_LARGE_FILES,
+    })
+    public String fixture;
+
+    private byte[] bytes;
+
+    private Path file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        bytes = Fixtures.load(fixture);
+        file = Files.createTempFile("nuget-reader-benchmark", ".nupkg");
+        Files.write(file, bytes);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public NugetMetadata analyzeStream() throws IOException {
+        return NugetReader.analyzeNuget(new ByteArrayInputStream(bytes), null, null);
+    }
+
+    @Benchmark
+    public NugetMetadata analyzeFile() throws IOException {
+        return NugetReader.analyzeNuget(file, null, null);
+    }
+}
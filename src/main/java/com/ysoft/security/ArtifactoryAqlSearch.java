@@ -0,0 +1,355 @@
+package com.ysoft.security;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Searches artifacts by AQL. The time range is split into slices, which are searched in parallel, and each slice is
+ * fetched page by page. Results are passed to the handler as they are parsed, so the memory usage does not depend on
+ * the size of the repository.
+ */
+final class ArtifactoryAqlSearch {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ArtifactoryAqlSearch.class);
+
+    private static final int PAGE_SIZE = 1000;
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final ArtifactoryHttp http;
+
+    private final List<String> repositories;
+
+    private final long sliceMillis;
+
+    private final int threads;
+
+    interface ItemHandler {
+        /**
+         * Handles the item, possibly asynchronously. Once the item is processed, done has to be run. If the processing
+         * fails, it must not be run.
+         */
+        void handle(Item item, Runnable done) throws IOException;
+    }
+
+    interface ProgressListener {
+        /**
+         * All the items created before the time have been processed. Calls come in ascending order of time.
+         */
+        void processedBefore(long time) throws IOException;
+    }
+
+    interface ItemConsumer {
+        void accept(Item item) throws IOException;
+    }
+
+    /**
+     * A slice is complete once it has been fully searched and all its items are done. The progress is reported only
+     * for the completed slices that are not preceded by an incomplete one.
+     */
+    private static final class SliceProgress {
+        private final List<Long> sliceEnds;
+        private final boolean[] completed;
+        private final ProgressListener listener;
+        private int firstIncomplete = 0;
+        private IOException failure;
+
+        SliceProgress(List<Long> sliceEnds, ProgressListener listener) {
+            this.sliceEnds = sliceEnds;
+            this.completed = new boolean[sliceEnds.size()];
+            this.listener = listener;
+        }
+
+        synchronized void complete(int slice) {
+            completed[slice] = true;
+            final int previous = firstIncomplete;
+            while (firstIncomplete < completed.length && completed[firstIncomplete]) {
+                firstIncomplete++;
+            }
+            if (firstIncomplete > previous && failure == null) {
+                try {
+                    listener.processedBefore(sliceEnds.get(firstIncomplete - 1));
+                } catch (IOException e) {
+                    failure = e; // the item has been processed anyway, the failure is reported when the search ends
+                }
+            }
+        }
+
+        synchronized void checkFailure() throws IOException {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Counts the items of a slice that are not done yet, plus one for the search of the slice itself.
+     */
+    private static final class PendingItems {
+        private final AtomicInteger pending = new AtomicInteger(1);
+        private final SliceProgress progress;
+        private final int slice;
+
+        PendingItems(SliceProgress progress, int slice) {
+            this.progress = progress;
+            this.slice = slice;
+        }
+
+        void add() {
+            pending.incrementAndGet();
+        }
+
+        void done() {
+            if (pending.decrementAndGet() == 0) {
+                progress.complete(slice);
+            }
+        }
+    }
+
+    static final class Item {
+        private final String repo;
+        private final String itemPath;
+        private final long created;
+        private final String sha1;
+
+        Item(String repo, String itemPath, long created, String sha1) {
+            this.repo = repo;
+            this.itemPath = itemPath;
+            this.created = created;
+            this.sha1 = sha1;
+        }
+
+        String getRepo() {
+            return repo;
+        }
+
+        String getItemPath() {
+            return itemPath;
+        }
+
+        long getCreated() {
+            return created;
+        }
+
+        String getSha1() {
+            return sha1;
+        }
+    }
+
+    ArtifactoryAqlSearch(ArtifactoryHttp http, List<String> repositories, long sliceMillis, int threads) {
+        this.http = http;
+        this.repositories = repositories;
+        this.sliceMillis = sliceMillis;
+        this.threads = threads;
+    }
+
+    /**
+     * Finds artifacts created in the range [from, to). The handler is called concurrently from multiple threads and
+     * the items come in no particular order. However, the progress is reported in order, so that it can be used as a
+     * checkpoint.
+     */
+    void search(long from, long to, ItemHandler handler, ProgressListener progressListener) throws IOException {
+        final long start = Math.max(from, earliestCreated());
+        if (start >= to) {
+            LOGGER.info("Nothing to search in range {} – {}", Instant.ofEpochMilli(from), Instant.ofEpochMilli(to));
+            return;
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Long> sliceEnds = new ArrayList<>();
+            for (long sliceStart = start; sliceStart < to; sliceStart += sliceMillis) {
+                sliceEnds.add(Math.min(to, sliceStart + sliceMillis));
+            }
+            final SliceProgress progress = new SliceProgress(sliceEnds, progressListener);
+            final List<Future<?>> slices = new ArrayList<>();
+            for (int i = 0; i < sliceEnds.size(); i++) {
+                final long sliceFrom = start + i * sliceMillis;
+                final long sliceTo = sliceEnds.get(i);
+                final PendingItems pendingItems = new PendingItems(progress, i);
+                slices.add(executor.submit(() -> {
+                    searchSlice(sliceFrom, sliceTo, item -> {
+                        pendingItems.add();
+                        handler.handle(item, pendingItems::done);
+                    });
+                    pendingItems.done();
+                    return null;
+                }));
+            }
+            LOGGER.info("Searching {} – {} in {} slices", Instant.ofEpochMilli(start), Instant.ofEpochMilli(to), slices.size());
+            for (Future<?> slice : slices) {
+                slice.get();
+            }
+            progress.checkFailure();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted when searching");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void searchSlice(long from, long to, ItemConsumer consumer) throws IOException {
+        final String criteria = "{\"$and\":[" + repositoriesCriteria() +
+                ",{\"created\":{\"$gte\":" + jsonString(Instant.ofEpochMilli(from).toString()) + "}}" +
+                ",{\"created\":{\"$lt\":" + jsonString(Instant.ofEpochMilli(to).toString()) + "}}]}";
+        for (long offset = 0; ; offset += PAGE_SIZE) {
+            final int count = query("items.find(" + criteria + ").include(\"repo\",\"path\",\"name\",\"created\",\"actual_sha1\")" +
+                    ".sort({\"$asc\":[\"created\",\"repo\",\"path\",\"name\"]}).offset(" + offset + ").limit(" + PAGE_SIZE + ")", consumer);
+            LOGGER.debug("Got {} items from {} – {} at offset {}", count, Instant.ofEpochMilli(from), Instant.ofEpochMilli(to), offset);
+            if (count < PAGE_SIZE) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Lists all the artifacts in ascending order of their SHA-1 checksums. Each page starts after the last checksum of
+     * the previous one rather than at an offset, so artifacts added or deleted meanwhile cannot shift the pages and
+     * make the listing skip other artifacts. Only artifacts sharing the last checksum of a page can be skipped, which
+     * does not matter for a listing of checksums.
+     */
+    void listByChecksum(ItemConsumer consumer) throws IOException {
+        String after = null;
+        while (true) {
+            final String criteria = after == null ? repositoriesCriteria() :
+                    "{\"$and\":[" + repositoriesCriteria() + ",{\"actual_sha1\":{\"$gt\":" + jsonString(after) + "}}]}";
+            final String[] last = {null};
+            final int count = query("items.find(" + criteria + ").include(\"repo\",\"path\",\"name\",\"actual_sha1\")" +
+                    ".sort({\"$asc\":[\"actual_sha1\"]}).limit(" + PAGE_SIZE + ")", item -> {
+                last[0] = item.getSha1();
+                consumer.accept(item);
+            });
+            LOGGER.debug("Got {} items after checksum {}", count, after);
+            if (count < PAGE_SIZE) {
+                return;
+            }
+            if (last[0] == null) {
+                throw new IOException("AQL returned an item without a checksum");
+            }
+            after = last[0];
+        }
+    }
+
+    private long earliestCreated() throws IOException {
+        final long[] earliest = {Long.MAX_VALUE};
+        query("items.find(" + repositoriesCriteria() + ").include(\"created\").sort({\"$asc\":[\"created\"]}).limit(1)",
+                item -> earliest[0] = item.getCreated());
+        return earliest[0];
+    }
+
+    private String repositoriesCriteria() {
+        final StringBuilder sb = new StringBuilder("{\"$or\":[");
+        for (int i = 0; i < repositories.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"repo\":").append(jsonString(repositories.get(i))).append('}');
+        }
+        return sb.append("]}").toString();
+    }
+
+    private int query(String aql, ItemConsumer consumer) throws IOException {
+        final HttpURLConnection connection = http.open("api/search/aql");
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "text/plain");
+        connection.setDoOutput(true);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(aql.getBytes(StandardCharsets.UTF_8));
+        }
+        ArtifactoryHttp.checkResponse(connection, "AQL query " + aql);
+        try (InputStream in = connection.getInputStream(); JsonParser parser = JSON_FACTORY.createParser(in)) {
+            int count = 0;
+            expect(parser.nextToken(), JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                if ("results".equals(parser.getCurrentName())) {
+                    expect(parser.nextToken(), JsonToken.START_ARRAY);
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        consumer.accept(parseItem(parser));
+                        count++;
+                    }
+                } else {
+                    parser.nextToken();
+                    parser.skipChildren();
+                }
+            }
+            return count;
+        }
+    }
+
+    private static Item parseItem(JsonParser parser) throws IOException {
+        String repo = null;
+        String path = null;
+        String name = null;
+        long created = -1;
+        String sha1 = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.getCurrentName();
+            parser.nextToken();
+            switch (field) {
+                case "repo":
+                    repo = parser.getText();
+                    break;
+                case "path":
+                    path = parser.getText();
+                    break;
+                case "name":
+                    name = parser.getText();
+                    break;
+                case "actual_sha1":
+                    sha1 = parser.getText();
+                    break;
+                case "created":
+                    created = OffsetDateTime.parse(parser.getText()).toInstant().toEpochMilli();
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        // Items in the root of a repository have path “.”.
+        final String itemPath = path == null || name == null ? null : ".".equals(path) ? name : path + "/" + name;
+        return new Item(repo, itemPath, created, sha1);
+    }
+
+    private static void expect(JsonToken actual, JsonToken expected) throws IOException {
+        if (actual != expected) {
+            throw new IOException("Unexpected AQL response: expected " + expected + ", got " + actual);
+        }
+    }
+
+    private static String jsonString(String s) {
+        final StringBuilder sb = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -0,0 +1,204 @@
+package com.ysoft.security;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Downloads artifacts concurrently, up to a limit of downloads in flight. The body of each download is streamed to a
+ * handler on the downloading thread, or it is stored in a {@link PackageSpool} first if there is one.
+ */
+public class ArtifactoryDownloader implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ArtifactoryDownloader.class);
+
+    private final ArtifactoryHttp http;
+
+    private final int maxInFlight;
+
+    private final Semaphore inFlight;
+
+    private final ExecutorService executor;
+
+    private final PackageSpool spool;
+
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    public interface BodyHandler {
+        /**
+         * Called before the body is read, with the SHA-1 of the artifact reported by Artifactory (or null). Returning
+         * false skips the download.
+         */
+        default boolean accept(String sha1) throws IOException {
+            return true;
+        }
+
+        void handle(InputStream body, String sha1) throws IOException;
+
+        /**
+         * Called instead of {@link #handle(InputStream, String)} when the artifact is in the spool. The file must not
+         * be used after returning.
+         */
+        default void handle(Path file, String sha1) throws IOException {
+            try (InputStream in = Files.newInputStream(file)) {
+                handle(in, sha1);
+            }
+        }
+    }
+
+    public ArtifactoryDownloader(String url, String username, String password, int maxInFlight) {
+        this(new ArtifactoryHttp(url, username, password), maxInFlight, null);
+    }
+
+    /**
+     * @param spool if not null, downloads are stored there and artifacts found there are not downloaded at all
+     */
+    public ArtifactoryDownloader(String url, String username, String password, int maxInFlight, PackageSpool spool) {
+        this(new ArtifactoryHttp(url, username, password), maxInFlight, spool);
+    }
+
+    ArtifactoryDownloader(ArtifactoryHttp http, int maxInFlight, PackageSpool spool) {
+        this.http = http;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.executor = DownloadExecutors.create(maxInFlight);
+        this.spool = spool;
+    }
+
+    /**
+     * Starts the download. Blocks while there are too many downloads in flight.
+     */
+    public void download(String repoKey, String itemPath, BodyHandler handler) throws IOException {
+        download(repoKey, itemPath, null, handler);
+    }
+
+    /**
+     * Like {@link #download(String, String, BodyHandler)}, but with the SHA-1 of the artifact known in advance (e.g.,
+     * from a search), so that the request can be avoided when the artifact is in the spool.
+     */
+    public void download(String repoKey, String itemPath, String knownSha1, BodyHandler handler) throws IOException {
+        checkFailure();
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted when waiting for a download slot");
+        }
+        Metrics.DOWNLOADS_IN_FLIGHT.increment();
+        try {
+            executor.execute(() -> {
+                try {
+                    if (failure.get() == null) {
+                        doDownload(repoKey, itemPath, knownSha1, handler);
+                    }
+                } catch (Throwable e) {
+                    if (failure.compareAndSet(null, e)) {
+                        LOGGER.error("Download of {}/{} failed", repoKey, itemPath, e);
+                    }
+                } finally {
+                    Metrics.DOWNLOADS_IN_FLIGHT.decrement();
+                    inFlight.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Metrics.DOWNLOADS_IN_FLIGHT.decrement();
+            inFlight.release();
+            throw new IOException("The downloader is not running anymore", e);
+        }
+    }
+
+    private void doDownload(String repoKey, String itemPath, String knownSha1, BodyHandler handler) throws IOException {
+        if (spool != null && knownSha1 != null) {
+            if (handler.accept(knownSha1) && !handleSpooled(knownSha1, handler)) {
+                fetch(repoKey, itemPath, handler, true);
+            }
+        } else {
+            fetch(repoKey, itemPath, handler, false);
+        }
+    }
+
+    private void fetch(String repoKey, String itemPath, BodyHandler handler, boolean accepted) throws IOException {
+        final long start = System.nanoTime();
+        final HttpURLConnection connection = http.open(ArtifactoryHttp.encodePath(repoKey) + "/" + ArtifactoryHttp.encodePath(itemPath));
+        ArtifactoryHttp.checkResponse(connection, repoKey + "/" + itemPath);
+        Metrics.DOWNLOAD_RESPONSE_TIME.observeSince(start);
+        final String sha1 = connection.getHeaderField("X-Checksum-Sha1");
+        if (!accepted && (!handler.accept(sha1) || spool != null && sha1 != null && handleSpooled(sha1, handler))) {
+            // Closing the connection is cheaper than downloading the rest.
+            connection.disconnect();
+            return;
+        }
+        Metrics.DOWNLOADS.increment();
+        try (InputStream body = new Metrics.MeteredInputStream(connection.getInputStream(), Metrics.DOWNLOAD_BYTES, Metrics.DOWNLOAD_READ_TIME)) {
+            if (spool != null) {
+                // The whole body is read, so the connection can be reused.
+                try (PackageSpool.Entry entry = spool.put(body, sha1)) {
+                    handler.handle(entry.getFile(), entry.getSha1());
+                }
+                return;
+            }
+            handler.handle(new NonClosableInputStream(body), sha1);
+            // Read the rest (e.g., the ZIP central directory), so that the connection can be reused.
+            final byte[] buffer = new byte[8192];
+            //noinspection StatementWithEmptyBody
+            while (body.read(buffer) != -1) {
+                // just drain
+            }
+        }
+    }
+
+    private boolean handleSpooled(String sha1, BodyHandler handler) throws IOException {
+        try (PackageSpool.Entry entry = spool.get(sha1)) {
+            if (entry == null) {
+                return false;
+            }
+            Metrics.SPOOL_HITS.increment();
+            handler.handle(entry.getFile(), entry.getSha1());
+            return true;
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        final Throwable e = failure.get();
+        if (e != null) {
+            throw new IOException("Download has failed", e);
+        }
+    }
+
+    /**
+     * Waits for all the started downloads and rethrows the first failure, if any.
+     */
+    public void awaitCompletion() throws IOException {
+        try {
+            inFlight.acquire(maxInFlight);
+            inFlight.release(maxInFlight);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted when waiting for downloads");
+        }
+        checkFailure();
+    }
+
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                LOGGER.warn("Some downloads have not finished in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted when waiting for downloads");
+        }
+    }
+}
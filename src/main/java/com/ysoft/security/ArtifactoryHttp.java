@@ -0,0 +1,60 @@
+package com.ysoft.security;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Plain HTTP access to Artifactory REST API. Connections are reused through the keep-alive cache of
+ * HttpURLConnection, whose size can be set by the http.maxConnections system property.
+ */
+final class ArtifactoryHttp {
+    private static final int CONNECT_TIMEOUT_MILLIS = 30_000;
+
+    private static final int READ_TIMEOUT_MILLIS = 300_000;
+
+    private final String url;
+
+    private final String authorization;
+
+    ArtifactoryHttp(String url, String username, String password) {
+        this.url = url.endsWith("/") ? url : url + "/";
+        this.authorization = username == null ? null : "Basic " + DatatypeConverter.printBase64Binary((username + ":" + password).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param relativePath already encoded path relative to the Artifactory URL
+     */
+    HttpURLConnection open(String relativePath) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url + relativePath).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        if (authorization != null) {
+            connection.setRequestProperty("Authorization", authorization);
+        }
+        return connection;
+    }
+
+    static void checkResponse(HttpURLConnection connection, String what) throws IOException {
+        final int responseCode = connection.getResponseCode();
+        if (responseCode != HttpURLConnection.HTTP_OK) {
+            connection.disconnect();
+            throw new IOException("Unexpected HTTP status " + responseCode + " for " + what);
+        }
+    }
+
+    static String encodePath(String path) throws UnsupportedEncodingException {
+        final StringBuilder sb = new StringBuilder();
+        for (final String segment : path.split("/", -1)) {
+            if (sb.length() > 0) {
+                sb.append('/');
+            }
+            sb.append(URLEncoder.encode(segment, "UTF-8").replace("+", "%20"));
+        }
+        return sb.toString();
+    }
+}
@@ -2,7 +2,6 @@ package com.ysoft.security;
 
 import org.jfrog.artifactory.client.Artifactory;
 import org.jfrog.artifactory.client.ArtifactoryClientBuilder;
-import org.jfrog.artifactory.client.DownloadableArtifact;
 import org.jfrog.artifactory.client.model.RepoPath;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,9 +10,11 @@ import javax.xml.bind.DatatypeConverter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
-import java.sql.SQLException;
+import java.nio.file.Path;
+import java.util.Collection;
 import java.util.List;
 import java.util.NavigableSet;
+import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
@@ -28,11 +29,75 @@ public class ArtifactoryNugetSource implements NugetSource {
     private final List<String> repositories;
     private final String url;
     private final NavigableSet<String> exclusions;
+    private final ExclusionMatcher exclusionMatcher;
+    private final String username;
+    private final String password;
+    private final int maxDownloads;
+    private final long backfillSliceMillis;
+    private final int backfillSearchThreads;
+    private final Path spoolDirectory;
+    private final long spoolMaxBytes;
 
-    public ArtifactoryNugetSource(String url, String username, String password, List<String> repositories, NavigableSet<String> exclusions) {
+    private static final Runnable NO_CALLBACK = () -> {
+    };
+
+    /**
+     * Artifact reported by other means than a search, e.g., by {@link ArtifactoryWebhookReceiver}.
+     */
+    public static final class Artifact {
+        private final String repoKey;
+        private final String itemPath;
+
+        public Artifact(String repoKey, String itemPath) {
+            this.repoKey = repoKey;
+            this.itemPath = itemPath;
+        }
+
+        public String getRepoKey() {
+            return repoKey;
+        }
+
+        public String getItemPath() {
+            return itemPath;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            final Artifact artifact = (Artifact) o;
+            return repoKey.equals(artifact.repoKey) && itemPath.equals(artifact.itemPath);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(repoKey, itemPath);
+        }
+
+        @Override
+        public String toString() {
+            return repoKey + "/" + itemPath;
+        }
+    }
+
+    /**
+     * @param backfillSliceMillis if positive, artifacts are searched by AQL in time slices of this length, which is
+     *                            suitable for large (e.g., initial) runs; otherwise, a single search is used
+     * @param spoolDirectory      if not null, downloads are kept in a {@link PackageSpool} in this directory
+     */
+    public ArtifactoryNugetSource(String url, String username, String password, List<String> repositories, NavigableSet<String> exclusions, int maxDownloads,
+                                  long backfillSliceMillis, int backfillSearchThreads, Path spoolDirectory, long spoolMaxBytes) {
         this.repositories = repositories;
         this.url = url;
         this.exclusions = exclusions;
+        this.exclusionMatcher = ExclusionMatcher.compile(exclusions);
+        this.username = username;
+        this.password = password;
+        this.maxDownloads = maxDownloads;
+        this.backfillSliceMillis = backfillSliceMillis;
+        this.backfillSearchThreads = backfillSearchThreads;
+        this.spoolDirectory = spoolDirectory;
+        this.spoolMaxBytes = spoolMaxBytes;
         // This takes some time, so it should be done asynchronously. I know this way is a bit risky from deadlock PoV, but the code currently runs on a different thread…
         this.clientFuture = CompletableFuture.supplyAsync(() -> ArtifactoryClientBuilder.create().
                 setUrl(url).
@@ -44,33 +109,123 @@ public class ArtifactoryNugetSource implements NugetSource {
 
     @Override
     public void index(long lastModifiedTime, Indexer indexer) throws IOException {
-        final List<RepoPath> repoPaths = client().searches().
-                artifactsCreatedSince(lastModifiedTime - 1). // Add -1 in order to make sure
-                repositories(repositories.toArray(new String[0])).
-                doSearch();
-        for (RepoPath repoPath : repoPaths) {
-            final String name = repoPath.getRepoKey() + "/" + repoPath.getItemPath();
-            LOGGER.info("Got file: " + name);
-            if(repoPath.getItemPath().toLowerCase().endsWith(".nupkg")) {
-                if(isBlacklisted(name)){
-                    LOGGER.info("Skipping {} because it is blacklisted", repoPath.getItemPath());
-                }else {
-                    final DownloadableArtifact downloadableArtifact = client().repository(repoPath.getRepoKey()).download(repoPath.getItemPath());
-                    try (InputStream inputStream = downloadableArtifact.doDownload()) {
-                        indexer.index(inputStream, null, null);
-                    } catch (SQLException e) {
-                        throw new IOException(e);
-                    }
+        final ArtifactoryHttp http = new ArtifactoryHttp(url, username, password);
+        try (ArtifactoryDownloader downloader = newDownloader(http)) {
+            if (backfillSliceMillis > 0) {
+                new ArtifactoryAqlSearch(http, repositories, backfillSliceMillis, backfillSearchThreads).search(
+                        lastModifiedTime - 1, // Add -1 in order to make sure
+                        System.currentTimeMillis(),
+                        (item, done) -> index(item.getRepo(), item.getItemPath(), item.getSha1(), downloader, indexer, done),
+                        // Slices are processed in parallel, so the progress is known only for the oldest ones.
+                        indexer::checkpoint
+                );
+            } else {
+                final List<RepoPath> repoPaths = client().searches().
+                        artifactsCreatedSince(lastModifiedTime - 1). // Add -1 in order to make sure
+                        repositories(repositories.toArray(new String[0])).
+                        doSearch();
+                for (RepoPath repoPath : repoPaths) {
+                    index(repoPath.getRepoKey(), repoPath.getItemPath(), null, downloader, indexer, NO_CALLBACK);
                 }
-            }else{
-                LOGGER.info("Skipping {} because it does not look like a NuGet.", name);
             }
+            downloader.awaitCompletion();
+        }
+    }
+
+    /**
+     * Lists SHA-1 checksums of all the packages in the order required by {@link Reconciler#reconcileChecksums}. Paths
+     * of packages do not reliably give their ids and versions, but checksums identify the packages as well, and they
+     * can be listed page by page in the required order, so the memory usage does not depend on the size of the
+     * repositories.
+     */
+    public void listChecksums(Reconciler.ChecksumConsumer consumer) throws IOException {
+        final ArtifactoryHttp http = new ArtifactoryHttp(url, username, password);
+        new ArtifactoryAqlSearch(http, repositories, backfillSliceMillis, backfillSearchThreads).listByChecksum(item -> {
+            if (item.getSha1() != null && accepts(new Artifact(item.getRepo(), item.getItemPath()))) {
+                consumer.accept(item.getSha1());
+            }
+        });
+    }
+
+    /**
+     * Indexes the given artifacts regardless of their creation time.
+     */
+    public void indexArtifacts(Collection<Artifact> artifacts, Indexer indexer) throws IOException {
+        final ArtifactoryHttp http = new ArtifactoryHttp(url, username, password);
+        try (ArtifactoryDownloader downloader = newDownloader(http)) {
+            for (final Artifact artifact : artifacts) {
+                if (accepts(artifact)) {
+                    index(artifact.getRepoKey(), artifact.getItemPath(), null, downloader, indexer, NO_CALLBACK);
+                }
+            }
+            downloader.awaitCompletion();
+        }
+    }
+
+    private ArtifactoryDownloader newDownloader(ArtifactoryHttp http) throws IOException {
+        final PackageSpool spool = spoolDirectory == null ? null : PackageSpool.open(spoolDirectory, spoolMaxBytes);
+        return new ArtifactoryDownloader(http, maxDownloads, spool);
+    }
+
+    /**
+     * Tells if a search of this source could find the artifact, i.e., if it is a package in one of the repositories and
+     * it is not excluded.
+     */
+    public boolean accepts(Artifact artifact) {
+        return repositories.contains(artifact.getRepoKey()) &&
+                artifact.getItemPath().toLowerCase().endsWith(".nupkg") &&
+                !isBlacklisted(artifact.toString());
+    }
+
+    /**
+     * @param sha1 SHA-1 of the artifact if known from the search, otherwise null
+     * @param done called once the artifact is skipped or passed to the indexer, possibly from another thread
+     */
+    private void index(String repoKey, String itemPath, String sha1, ArtifactoryDownloader downloader, Indexer indexer, Runnable done) throws IOException {
+        final String name = repoKey + "/" + itemPath;
+        LOGGER.info("Got file: " + name);
+        if(itemPath.toLowerCase().endsWith(".nupkg")) {
+            if (isBlacklisted(name)) {
+                LOGGER.info("Skipping {} because it is blacklisted", itemPath);
+                done.run();
+            } else if (sha1 != null && indexer.isKnownPackage(sha1)) {
+                LOGGER.info("Skipping {} because an identical package has been already indexed", name);
+                Metrics.PACKAGES_SKIPPED.increment();
+                done.run();
+            } else {
+                downloader.download(repoKey, itemPath, sha1, new ArtifactoryDownloader.BodyHandler() {
+                    @Override
+                    public boolean accept(String reportedSha1) throws IOException {
+                        if (sha1 == null && reportedSha1 != null && indexer.isKnownPackage(reportedSha1)) {
+                            LOGGER.info("Skipping {} because an identical package has been already indexed", name);
+                            Metrics.PACKAGES_SKIPPED.increment();
+                            done.run();
+                            return false;
+                        }
+                        return true;
+                    }
+
+                    @Override
+                    public void handle(InputStream body, String reportedSha1) throws IOException {
+                        indexer.index(body, null, null, reportedSha1 != null ? reportedSha1 : sha1);
+                        done.run();
+                    }
+
+                    @Override
+                    public void handle(Path file, String spooledSha1) throws IOException {
+                        indexer.index(file, null, null, spooledSha1);
+                        done.run();
+                    }
+                });
+            }
+        }else{
+            LOGGER.info("Skipping {} because it does not look like a NuGet.", name);
+            done.run();
         }
     }
 
     private boolean isBlacklisted(String itemPath) {
-        // Optimization: We could try idea from https://stackoverflow.com/a/34356411 , but it seems that the code has to be fixed first
-        return exclusions.stream().anyMatch(itemPath::startsWith);
+        return exclusionMatcher.isExcluded(itemPath);
     }
 
     private Artifactory client() {
@@ -83,6 +238,10 @@ public class ArtifactoryNugetSource implements NugetSource {
         }
     }
 
+    public int getMaxDownloads() {
+        return maxDownloads;
+    }
+
     @Override
     public String getHash() {
         return DatatypeConverter.printHexBinary(merkle("Artifactory".getBytes(StandardCharsets.UTF_8), url.getBytes(StandardCharsets.UTF_8), merkleSorted(repositories), merkle(exclusions)));
@@ -94,6 +253,9 @@ public class ArtifactoryNugetSource implements NugetSource {
                 "url=" + url +
                 ", repositories=" + repositories +
                 ", exclusions=" + exclusions +
+                ", maxDownloads=" + maxDownloads +
+                ", backfillSliceMillis=" + backfillSliceMillis +
+                ", spoolDirectory=" + spoolDirectory +
                 '}';
     }
 }
@@ -0,0 +1,195 @@
+package com.ysoft.security;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Receives “artifact deployed” webhooks of Artifactory, so that single artifacts can be indexed without searching:
+ *
+ * <pre>{"domain": "artifact", "event_type": "deployed", "data": {"repo_key": "…", "path": "…", …}, …}</pre>
+ *
+ * Accepted artifacts are queued without duplicates. The queue is bounded; when it is full, the listener is told to
+ * fall back to a regular search, which finds the dropped artifacts as well. Other events are acknowledged and ignored.
+ */
+public class ArtifactoryWebhookReceiver implements HttpHandler {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ArtifactoryWebhookReceiver.class);
+
+    static final int DEFAULT_MAX_QUEUED = 10000;
+
+    private static final String SECRET_HEADER = "X-JFrog-Event-Auth";
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final Predicate<ArtifactoryNugetSource.Artifact> filter;
+
+    private final byte[] secret;
+
+    private final int maxQueued;
+
+    private final Listener listener;
+
+    private final Set<ArtifactoryNugetSource.Artifact> queue = new LinkedHashSet<>();
+
+    /**
+     * Called from HTTP threads.
+     */
+    public interface Listener {
+        /**
+         * The queue has become non-empty. The listener is expected to {@link #drain()} it soon.
+         */
+        void artifactsQueued(ArtifactoryWebhookReceiver receiver);
+
+        /**
+         * Some artifacts have been dropped, so a regular search is needed.
+         */
+        void queueOverflowed();
+    }
+
+    /**
+     * @param filter e.g., {@link ArtifactoryNugetSource#accepts(ArtifactoryNugetSource.Artifact)}
+     * @param secret if not null, requests have to contain it in the X-JFrog-Event-Auth header
+     */
+    public ArtifactoryWebhookReceiver(Predicate<ArtifactoryNugetSource.Artifact> filter, String secret, int maxQueued, Listener listener) {
+        this.filter = filter;
+        this.secret = secret == null ? null : secret.getBytes(StandardCharsets.UTF_8);
+        this.maxQueued = maxQueued;
+        this.listener = listener;
+    }
+
+    /**
+     * Takes all the queued artifacts.
+     */
+    public synchronized List<ArtifactoryNugetSource.Artifact> drain() {
+        final List<ArtifactoryNugetSource.Artifact> artifacts = new ArrayList<>(queue);
+        queue.clear();
+        return artifacts;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                exchange.getResponseHeaders().add("Allow", "POST");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            if (secret != null) {
+                final String received = exchange.getRequestHeaders().getFirst(SECRET_HEADER);
+                if (received == null || !MessageDigest.isEqual(secret, received.getBytes(StandardCharsets.UTF_8))) {
+                    exchange.sendResponseHeaders(401, -1);
+                    return;
+                }
+            }
+            final ArtifactoryNugetSource.Artifact artifact;
+            try (InputStream in = exchange.getRequestBody()) {
+                artifact = parseDeployedArtifact(in);
+            } catch (JsonParseException e) {
+                LOGGER.warn("Bad webhook payload: {}", e.getOriginalMessage());
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            if (artifact != null) {
+                enqueue(artifact);
+            }
+            exchange.sendResponseHeaders(202, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void enqueue(ArtifactoryNugetSource.Artifact artifact) {
+        if (!filter.test(artifact)) {
+            LOGGER.debug("Ignoring deployed {}", artifact);
+            return;
+        }
+        final boolean wasEmpty;
+        final boolean queued;
+        synchronized (this) {
+            if (queue.contains(artifact)) {
+                LOGGER.debug("{} is already queued", artifact);
+                return;
+            }
+            wasEmpty = queue.isEmpty();
+            queued = queue.size() < maxQueued && queue.add(artifact);
+        }
+        if (!queued) {
+            LOGGER.warn("Too many queued artifacts, falling back to a search instead of queueing {}", artifact);
+            listener.queueOverflowed();
+        } else {
+            LOGGER.info("Queued deployed {}", artifact);
+            if (wasEmpty) {
+                listener.artifactsQueued(this);
+            }
+        }
+    }
+
+    /**
+     * @return the artifact, or null for other events
+     */
+    static ArtifactoryNugetSource.Artifact parseDeployedArtifact(InputStream in) throws IOException {
+        String domain = null;
+        String eventType = null;
+        String repoKey = null;
+        String path = null;
+        try (JsonParser parser = JSON_FACTORY.createParser(in)) {
+            expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.getCurrentName();
+                final JsonToken value = parser.nextToken();
+                switch (field) {
+                    case "domain":
+                        domain = parser.getValueAsString();
+                        break;
+                    case "event_type":
+                        eventType = parser.getValueAsString();
+                        break;
+                    case "data":
+                        expect(parser, value, JsonToken.START_OBJECT);
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            final String dataField = parser.getCurrentName();
+                            parser.nextToken();
+                            if (dataField.equals("repo_key")) {
+                                repoKey = parser.getValueAsString();
+                            } else if (dataField.equals("path")) {
+                                path = parser.getValueAsString();
+                            } else {
+                                parser.skipChildren();
+                            }
+                        }
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+        }
+        if (!"artifact".equals(domain) || !"deployed".equals(eventType)) {
+            return null;
+        }
+        if (repoKey == null || path == null) {
+            throw new JsonParseException(null, "Missing data.repo_key or data.path");
+        }
+        return new ArtifactoryNugetSource.Artifact(repoKey, path);
+    }
+
+    private static void expect(JsonParser parser, JsonToken actual, JsonToken expected) throws JsonParseException {
+        if (actual != expected) {
+            throw new JsonParseException(parser, "Expected " + expected + ", got " + actual);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.ysoft.security;
+
+import org.mariadb.jdbc.MariaDbStatement;
+import org.postgresql.PGConnection;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Writes file rows of {@link NugetMetadataStore} by the native bulk load of the DB (COPY of PostgreSQL, LOAD DATA LOCAL
+ * INFILE of MariaDB/MySQL) into a temporary staging table, which is then merged into the normalized tables by one
+ * set-based insert per table. This avoids the per-row subselects of the batched inserts, so it is much faster for large
+ * (e.g., initial) runs.
+ * <p>
+ * Both formats are tab-separated lines with backslash escapes and {@code \N} for NULL. The merge is not committed here.
+ * Packages and contents are merged sorted, so that concurrent writers lock their shared rows in the same order.
+ */
+class BulkLoader {
+
+    private static final String COLUMNS = "name, version, file_name, digest_sha1, digest_md5, digest_sha256";
+
+    private final Connection dbh;
+
+    private final String dialect;
+
+    private final StringBuilder rows = new StringBuilder();
+
+    private int rowCount;
+
+    BulkLoader(Connection dbh) throws SQLException {
+        this.dbh = dbh;
+        this.dialect = NugetMetadataStore.getDialect(dbh);
+    }
+
+    void add(String name, String version, String fileName, Hashing.Digests digests) {
+        appendText(rows, name).append('\t');
+        appendText(rows, version).append('\t');
+        appendText(rows, fileName).append('\t');
+        appendDigest(digests.get(Hashing.Algorithm.SHA1)).append('\t');
+        appendDigest(digests.get(Hashing.Algorithm.MD5)).append('\t');
+        appendDigest(digests.get(Hashing.Algorithm.SHA256)).append('\n');
+        rowCount++;
+    }
+
+    /**
+     * Loads the added rows and merges them into the tables in the current transaction.
+     */
+    void load() throws SQLException {
+        if (rowCount == 0) {
+            return;
+        }
+        final byte[] data = rows.toString().getBytes(StandardCharsets.UTF_8);
+        rows.setLength(0);
+        rowCount = 0;
+        try (Statement statement = dbh.createStatement()) {
+            statement.execute(getCreateStagingCommand());
+            switch (dialect) {
+                case "mysql":
+                    // The driver sends the stream instead of the file requested by the server.
+                    statement.unwrap(MariaDbStatement.class).setLocalInfileInputStream(new ByteArrayInputStream(data));
+                    statement.execute("LOAD DATA LOCAL INFILE 'rows' INTO TABLE nuget_index_staging CHARACTER SET utf8mb4 " +
+                            "(name, version, file_name, @sha1, @md5, @sha256) " +
+                            "SET digest_sha1 = UNHEX(@sha1), digest_md5 = UNHEX(@md5), digest_sha256 = UNHEX(@sha256)");
+                    break;
+                case "postgresql":
+                    try {
+                        dbh.unwrap(PGConnection.class).getCopyAPI().copyIn("COPY nuget_index_staging (" + COLUMNS + ") FROM STDIN", new ByteArrayInputStream(data));
+                    } catch (IOException e) {
+                        throw new SQLException("Cannot copy rows to the staging table", e);
+                    }
+                    break;
+                default:
+                    throw new AssertionError(dialect);
+            }
+            for (final String merge : getMergeCommands()) {
+                statement.executeUpdate(merge);
+            }
+        }
+    }
+
+    private String getCreateStagingCommand() {
+        switch (dialect) {
+            case "mysql":
+                return "CREATE TEMPORARY TABLE IF NOT EXISTS nuget_index_staging (" +
+                        "name VARCHAR(512) NOT NULL, version VARCHAR(128) NOT NULL, file_name VARCHAR(512) NOT NULL, " +
+                        "digest_sha1 BINARY(20) NOT NULL, digest_md5 BINARY(16) NOT NULL, digest_sha256 BINARY(32))";
+            case "postgresql":
+                // Emptied by the commit, which follows the merge.
+                return "CREATE TEMPORARY TABLE IF NOT EXISTS nuget_index_staging (" +
+                        "name VARCHAR(512) NOT NULL, version VARCHAR(128) NOT NULL, file_name VARCHAR(512) NOT NULL, " +
+                        "digest_sha1 BYTEA NOT NULL, digest_md5 BYTEA NOT NULL, digest_sha256 BYTEA) ON COMMIT DELETE ROWS";
+            default:
+                throw new AssertionError(dialect);
+        }
+    }
+
+    private String[] getMergeCommands() {
+        final String selectFiles = "SELECT DISTINCT p.id, s.file_name, c.id FROM nuget_index_staging s " +
+                "JOIN nuget_index_packages p ON p.name = s.name AND p.version = s.version " +
+                "JOIN nuget_index_contents c ON c.digest_sha1 = s.digest_sha1 AND c.digest_md5 = s.digest_md5";
+        switch (dialect) {
+            case "mysql":
+                return new String[]{
+                        "INSERT IGNORE INTO nuget_index_packages (name, version) SELECT DISTINCT name, version FROM nuget_index_staging " +
+                                "ORDER BY name, version",
+                        "INSERT IGNORE INTO nuget_index_contents (digest_sha1, digest_md5, digest_sha256) " +
+                                "SELECT digest_sha1, digest_md5, MAX(digest_sha256) FROM nuget_index_staging GROUP BY digest_sha1, digest_md5 " +
+                                "ORDER BY digest_sha1, digest_md5",
+                        "INSERT IGNORE INTO nuget_index_package_files (package_id, file_name, content_id) " + selectFiles,
+                        "DELETE FROM nuget_index_staging",
+                };
+            case "postgresql":
+                return new String[]{
+                        "INSERT INTO nuget_index_packages (name, version) SELECT DISTINCT name, version FROM nuget_index_staging " +
+                                "ORDER BY name, version ON CONFLICT (name, version) DO NOTHING",
+                        "INSERT INTO nuget_index_contents (digest_sha1, digest_md5, digest_sha256) " +
+                                "SELECT DISTINCT ON (digest_sha1, digest_md5) digest_sha1, digest_md5, digest_sha256 FROM nuget_index_staging " +
+                                "ORDER BY digest_sha1, digest_md5, digest_sha256 " +
+                                "ON CONFLICT (digest_sha1, digest_md5) DO NOTHING",
+                        "INSERT INTO nuget_index_package_files (package_id, file_name, content_id) " + selectFiles + " " +
+                                "ON CONFLICT (content_id, package_id, file_name) DO NOTHING",
+                };
+            default:
+                throw new AssertionError(dialect);
+        }
+    }
+
+    private StringBuilder appendDigest(byte[] digest) {
+        if (digest == null) {
+            return rows.append("\\N");
+        }
+        // COPY reads bytea in the hex format, whose leading backslash has to be escaped. MySQL gets it by UNHEX.
+        return rows.append(dialect.equals("postgresql") ? "\\\\x" : "").append(DatatypeConverter.printHexBinary(digest));
+    }
+
+    static StringBuilder appendText(StringBuilder out, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                default:
+                    out.append(c);
+            }
+        }
+        return out;
+    }
+}
@@ -0,0 +1,99 @@
+package com.ysoft.security;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Properties;
+
+/**
+ * Minimal pool of DB connections for long-running processes. Idle connections are validated before they are reused,
+ * so a restarted DB costs just one reconnection.
+ */
+public class ConnectionPool implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionPool.class);
+
+    private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+
+    private final String url;
+
+    private final Properties properties;
+
+    private final Deque<Connection> idle = new ArrayDeque<>();
+
+    private boolean closed = false;
+
+    public ConnectionPool(String url, Properties properties) {
+        this.url = url;
+        this.properties = properties;
+    }
+
+    /**
+     * Returns an idle connection or opens a new one. It has to be returned by {@link #release(Connection)} or
+     * {@link #discard(Connection)}.
+     */
+    public Connection borrow() throws SQLException {
+        while (true) {
+            final Connection connection;
+            synchronized (this) {
+                if (closed) {
+                    throw new SQLException("The connection pool has been closed");
+                }
+                connection = idle.pollFirst();
+            }
+            if (connection == null) {
+                return DriverManager.getConnection(url, properties);
+            }
+            if (connection.isValid(VALIDATION_TIMEOUT_SECONDS)) {
+                return connection;
+            }
+            LOGGER.info("Dropping a broken DB connection");
+            closeQuietly(connection);
+        }
+    }
+
+    /**
+     * Returns a healthy connection to the pool. An unfinished transaction is rolled back.
+     */
+    public void release(Connection connection) throws SQLException {
+        if (!connection.getAutoCommit()) {
+            connection.rollback();
+            connection.setAutoCommit(true);
+        }
+        synchronized (this) {
+            if (!closed) {
+                idle.addFirst(connection);
+                return;
+            }
+        }
+        connection.close();
+    }
+
+    /**
+     * Closes a connection that might be in a bad state (e.g., after a failure) instead of returning it to the pool.
+     */
+    public void discard(Connection connection) {
+        closeQuietly(connection);
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            LOGGER.debug("Cannot close DB connection", e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (final Connection connection : idle) {
+            closeQuietly(connection);
+        }
+        idle.clear();
+    }
+}
@@ -0,0 +1,149 @@
+package com.ysoft.security;
+
+import javax.xml.bind.DatatypeConverter;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Resolves digests by the nuget_index_hashes view, each batch in a single query.
+ */
+public class DbHashResolver implements HashLookup.Resolver, AutoCloseable {
+
+    private final BlockingQueue<Connection> connections;
+
+    /**
+     * @param connections connections used concurrently, one per query
+     */
+    public DbHashResolver(Collection<Connection> connections) {
+        this.connections = new ArrayBlockingQueue<>(connections.size(), false, connections);
+    }
+
+    @Override
+    public Map<String, List<HashLookup.Match>> resolve(Collection<String> sha1s, Collection<String> md5s) throws SQLException {
+        final Map<String, List<HashLookup.Match>> results = new HashMap<>();
+        final Map<String, String> requestedSha1s = requested(Hashing.Algorithm.SHA1, sha1s, results);
+        final Map<String, String> requestedMd5s = requested(Hashing.Algorithm.MD5, md5s, results);
+        final StringBuilder sql = new StringBuilder("SELECT name, version, file_name, digest_sha1, digest_md5 FROM nuget_index_hashes WHERE ");
+        if (!sha1s.isEmpty()) {
+            sql.append("digest_sha1 IN (").append(placeholders(paddedSize(sha1s.size()))).append(')');
+        }
+        if (!md5s.isEmpty()) {
+            sql.append(sha1s.isEmpty() ? "" : " OR ").append("digest_md5 IN (").append(placeholders(paddedSize(md5s.size()))).append(')');
+        }
+        if (sha1s.isEmpty() && md5s.isEmpty()) {
+            return results;
+        }
+        final Connection dbh = takeConnection();
+        try (PreparedStatement statement = dbh.prepareStatement(sql.toString())) {
+            int i = 1;
+            i = bindPadded(statement, i, sha1s);
+            bindPadded(statement, i, md5s);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    final HashLookup.Match match = new HashLookup.Match(resultSet.getString(1), resultSet.getString(2), resultSet.getString(3));
+                    addMatch(results, requestedSha1s, resultSet.getBytes(4), match);
+                    addMatch(results, requestedMd5s, resultSet.getBytes(5), match);
+                }
+            }
+        } finally {
+            connections.add(dbh);
+        }
+        return results;
+    }
+
+    private static Map<String, String> requested(Hashing.Algorithm algorithm, Collection<String> hexDigests, Map<String, List<HashLookup.Match>> results) {
+        final Map<String, String> keys = new HashMap<>();
+        for (final String hex : hexDigests) {
+            final String key = HashLookup.key(algorithm, hex);
+            keys.put(hex.toUpperCase(Locale.ROOT), key);
+            results.put(key, new ArrayList<>());
+        }
+        return keys;
+    }
+
+    private static void addMatch(Map<String, List<HashLookup.Match>> results, Map<String, String> requested, byte[] digest, HashLookup.Match match) {
+        if (digest != null) {
+            final String key = requested.get(DatatypeConverter.printHexBinary(digest));
+            if (key != null) {
+                results.get(key).add(match);
+            }
+        }
+    }
+
+    /**
+     * Rounds the number of parameters up to a power of two, so that only a few distinct statements get prepared.
+     */
+    private static int paddedSize(int size) {
+        return Math.max(8, Integer.highestOneBit(size - 1) << 1);
+    }
+
+    private static String placeholders(int count) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append(i == 0 ? "?" : ", ?");
+        }
+        return sb.toString();
+    }
+
+    private static int bindPadded(PreparedStatement statement, int index, Collection<String> hexDigests) throws SQLException {
+        if (hexDigests.isEmpty()) {
+            return index;
+        }
+        byte[] digest = null;
+        for (final String hex : hexDigests) {
+            digest = DatatypeConverter.parseHexBinary(hex);
+            statement.setBytes(index++, digest);
+        }
+        for (int i = hexDigests.size(); i < paddedSize(hexDigests.size()); i++) {
+            statement.setBytes(index++, digest); // repeats do not change the result
+        }
+        return index;
+    }
+
+    @Override
+    public Object getGeneration() throws SQLException {
+        // Writes of indexed packages and removals by Reconciler are counted in the state, in the same transactions as
+        // the changes. Unlike the greatest ids, the counters change even if writers commit out of the order of ids.
+        final Connection dbh = takeConnection();
+        try (PreparedStatement statement = dbh.prepareStatement("SELECT writes, removals FROM nuget_index_state WHERE id = 1");
+             ResultSet resultSet = statement.executeQuery()) {
+            resultSet.next();
+            return Arrays.asList(resultSet.getLong(1), resultSet.getLong(2));
+        } finally {
+            connections.add(dbh);
+        }
+    }
+
+    private Connection takeConnection() throws SQLException {
+        try {
+            return connections.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted when waiting for a DB connection", e);
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+        SQLException failure = null;
+        for (final Connection connection : connections) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.setNextException(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
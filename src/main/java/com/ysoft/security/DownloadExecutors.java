@@ -0,0 +1,23 @@
+package com.ysoft.security;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Java 8 variant: a bounded pool of platform threads. On Java 21+, the multi-release JAR contains a variant that uses
+ * virtual threads (see src/main/java21).
+ */
+final class DownloadExecutors {
+    private DownloadExecutors() {
+    }
+
+    static ExecutorService create(int maxInFlight) {
+        final AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(maxInFlight, runnable -> {
+            final Thread thread = new Thread(runnable, "nuget-download-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
@@ -0,0 +1,172 @@
+package com.ysoft.security;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Compiled set of exclusions. A plain exclusion excludes all paths starting with it, even if it contains “*” or “?”.
+ * An exclusion prefixed by “glob:” is a glob, which must match the whole path: “*” matches anything except “/”, “**”
+ * matches anything and “?” matches one character other than “/”.
+ *
+ * All exclusions are compiled into a single prefix trie, so a lookup is a single pass over the path regardless of
+ * the number of exclusions. Globs are stored in the node of their literal prefix, so they are evaluated only for
+ * paths that start with the prefix.
+ */
+public final class ExclusionMatcher {
+
+    private static final String GLOB_PREFIX = "glob:";
+
+    private static final ExclusionMatcher EMPTY = new ExclusionMatcher(new Builder().build());
+
+    private final Node root;
+
+    private ExclusionMatcher(Node root) {
+        this.root = root;
+    }
+
+    public static ExclusionMatcher compile(Collection<String> exclusions) {
+        if (exclusions.isEmpty()) {
+            return EMPTY;
+        }
+        final Builder root = new Builder();
+        for (final String exclusion : exclusions) {
+            if (exclusion.startsWith(GLOB_PREFIX)) {
+                final String glob = exclusion.substring(GLOB_PREFIX.length());
+                final int wildcard = firstWildcard(glob);
+                root.descend(wildcard == -1 ? glob : glob.substring(0, wildcard)).globs.add(globToRegex(glob));
+            } else {
+                root.descend(exclusion).prefixEnd = true;
+            }
+        }
+        return new ExclusionMatcher(root.build());
+    }
+
+    public boolean isExcluded(String path) {
+        Node node = root;
+        for (int i = 0; ; i++) {
+            if (node.prefixEnd) {
+                return true;
+            }
+            for (final Pattern glob : node.globs) {
+                if (glob.matcher(path).matches()) {
+                    return true;
+                }
+            }
+            if (i == path.length()) {
+                return false;
+            }
+            node = node.child(path.charAt(i));
+            if (node == null) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Checks if everything starting with the given prefix is excluded. This allows skipping a whole directory.
+     * Globs are not considered, because they have to match the whole path.
+     */
+    public boolean isExcludedPrefix(String prefix) {
+        Node node = root;
+        for (int i = 0; ; i++) {
+            if (node.prefixEnd) {
+                return true;
+            }
+            if (i == prefix.length()) {
+                return false;
+            }
+            node = node.child(prefix.charAt(i));
+            if (node == null) {
+                return false;
+            }
+        }
+    }
+
+    private static int firstWildcard(String exclusion) {
+        for (int i = 0; i < exclusion.length(); i++) {
+            final char c = exclusion.charAt(i);
+            if (c == '*' || c == '?') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static Pattern globToRegex(String glob) {
+        final StringBuilder regex = new StringBuilder();
+        int literalStart = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            final char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                if (literalStart < i) {
+                    regex.append(Pattern.quote(glob.substring(literalStart, i)));
+                }
+                if (c == '?') {
+                    regex.append("[^/]");
+                } else if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                    regex.append(".*");
+                    i++;
+                } else {
+                    regex.append("[^/]*");
+                }
+                literalStart = i + 1;
+            }
+        }
+        if (literalStart < glob.length()) {
+            regex.append(Pattern.quote(glob.substring(literalStart)));
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    private static final class Node {
+        private static final Pattern[] NO_GLOBS = new Pattern[0];
+
+        private final boolean prefixEnd;
+        private final Pattern[] globs;
+        private final char[] labels; // sorted
+        private final Node[] children;
+
+        private Node(boolean prefixEnd, Pattern[] globs, char[] labels, Node[] children) {
+            this.prefixEnd = prefixEnd;
+            this.globs = globs;
+            this.labels = labels;
+            this.children = children;
+        }
+
+        private Node child(char c) {
+            final int index = Arrays.binarySearch(labels, c);
+            return index < 0 ? null : children[index];
+        }
+    }
+
+    private static final class Builder {
+        private boolean prefixEnd = false;
+        private final List<Pattern> globs = new ArrayList<>();
+        private final TreeMap<Character, Builder> children = new TreeMap<>();
+
+        private Builder descend(String literal) {
+            Builder node = this;
+            for (int i = 0; i < literal.length(); i++) {
+                node = node.children.computeIfAbsent(literal.charAt(i), c -> new Builder());
+            }
+            return node;
+        }
+
+        private Node build() {
+            final char[] labels = new char[children.size()];
+            final Node[] builtChildren = new Node[children.size()];
+            int i = 0;
+            for (final Map.Entry<Character, Builder> child : children.entrySet()) {
+                labels[i] = child.getKey();
+                builtChildren[i] = child.getValue().build();
+                i++;
+            }
+            return new Node(prefixEnd, globs.isEmpty() ? Node.NO_GLOBS : globs.toArray(Node.NO_GLOBS), labels, builtChildren);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.ysoft.security;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads ctime of files. We cannot use creationTime() or lastModifiedTime(), because Nexus puts old (original?)
+ * timestamp for the files if mirrored.
+ */
+final class FileCtime {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileCtime.class);
+
+    private static final boolean UNIX_VIEW_SUPPORTED = FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
+
+    static {
+        if (!UNIX_VIEW_SUPPORTED) {
+            LOGGER.warn("The unix file attribute view is not supported, ctime will be read by the stat command, which is slow.");
+        }
+    }
+
+    private FileCtime() {
+    }
+
+    static FileTime read(Path path) throws IOException {
+        return UNIX_VIEW_SUPPORTED ? readInJvm(path) : readWithStat(path);
+    }
+
+    static FileTime readInJvm(Path path) throws IOException {
+        final FileTime ctime = (FileTime) Files.getAttribute(path, "unix:ctime", LinkOption.NOFOLLOW_LINKS);
+        // Round the same way as stat does, so both ways give the same results.
+        return roundUp(ctime.to(TimeUnit.SECONDS));
+    }
+
+    static FileTime readWithStat(Path path) throws IOException {
+        final Process process = new ProcessBuilder("stat", "-c", "%Z", "--", path.toString()).redirectErrorStream(true).start();
+        try {
+            process.getOutputStream().close();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                final String firstLine = reader.readLine();
+                if (reader.readLine() != null) {
+                    throw new IOException("Expected EOF");
+                }
+                process.waitFor();
+                final int exitValue = process.exitValue();
+                if (exitValue != 0) {
+                    throw new IOException("Bad exit value: " + exitValue);
+                }
+                return roundUp(Long.parseLong(firstLine));
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        } finally {
+            process.destroyForcibly(); // The process is not expected to do anything at this point…
+        }
+    }
+
+    private static FileTime roundUp(long seconds) {
+        // The time is rounded. Add one second in order to err on the safe side.
+        return FileTime.from(seconds + 1, TimeUnit.SECONDS);
+    }
+}
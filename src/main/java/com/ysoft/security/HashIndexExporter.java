@@ -0,0 +1,60 @@
+package com.ysoft.security;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Exports nuget_index_hashes to a {@link HashIndexFile}. Rows are streamed from the DB, which does the sorting.
+ */
+public class HashIndexExporter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(HashIndexExporter.class);
+
+    private static final int FETCH_SIZE = 10000;
+
+    private static final int PROGRESS_INTERVAL = 1000000;
+
+    public static void export(Connection dbh, Path target) throws SQLException, IOException {
+        final boolean autoCommit = dbh.getAutoCommit();
+        // PostgreSQL streams results only within a transaction. It also makes both passes see the same data.
+        dbh.setAutoCommit(false);
+        try (HashIndexFile.Writer writer = new HashIndexFile.Writer(target)) {
+            final long sha1Count = exportSection(dbh, "digest_sha1", writer);
+            final long md5Count = exportSection(dbh, "digest_md5", writer);
+            writer.finish();
+            LOGGER.info("Exported {} SHA-1 and {} MD5 records to {}", sha1Count, md5Count, target);
+        } finally {
+            dbh.rollback();
+            dbh.setAutoCommit(autoCommit);
+        }
+    }
+
+    private static long exportSection(Connection dbh, String column, HashIndexFile.Writer writer) throws SQLException, IOException {
+        LOGGER.info("Exporting by {}…", column);
+        try (Statement statement = dbh.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            // MySQL and MariaDB drivers stream results only with this magic value.
+            statement.setFetchSize(NugetMetadataStore.getDialect(dbh).equals("postgresql") ? FETCH_SIZE : Integer.MIN_VALUE);
+            try (ResultSet resultSet = statement.executeQuery("SELECT " + column + ", name, version, file_name " +
+                    "FROM nuget_index_hashes WHERE " + column + " IS NOT NULL ORDER BY " + column)) {
+                long count = 0;
+                while (resultSet.next()) {
+                    if (column.equals("digest_sha1")) {
+                        writer.addSha1(resultSet.getBytes(1), resultSet.getString(2), resultSet.getString(3), resultSet.getString(4));
+                    } else {
+                        writer.addMd5(resultSet.getBytes(1), resultSet.getString(2), resultSet.getString(3), resultSet.getString(4));
+                    }
+                    if (++count % PROGRESS_INTERVAL == 0) {
+                        LOGGER.info("Exported {} records by {}", count, column);
+                    }
+                }
+                return count;
+            }
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package com.ysoft.security;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only lookup file exported from the index, see {@link HashIndexExporter}. The file is memory-mapped, so opening
+ * it is cheap and lookups (binary searches) do not need the file to fit into the heap. It can be used concurrently.
+ *
+ * Layout (big-endian):
+ * <pre>
+ * header          magic, format version, counts and offsets of the sections below (64 bytes)
+ * SHA-1 records   sorted by digest: digest (20 bytes), name id, version id, file name id (4 bytes each)
+ * MD5 records     sorted by digest: digest (16 bytes), name id, version id, file name id
+ * string offsets  string count + 1 longs, relative to the string data
+ * string data     UTF-8
+ * </pre>
+ */
+public final class HashIndexFile implements Closeable {
+
+    private static final int MAGIC = 0x4E554758; // "NUGX"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int SHA1_SIZE = 20;
+    private static final int MD5_SIZE = 16;
+    private static final int REFS_SIZE = 12;
+
+    private static final long DEFAULT_CHUNK_SIZE = 1L << 30;
+
+    /**
+     * Chunks overlap by this, so that any record or string can be read from a single chunk.
+     */
+    private static final int CHUNK_OVERLAP = 64 * 1024;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] chunks;
+    private final long chunkSize;
+    private final long sha1Count;
+    private final long md5Count;
+    private final long stringCount;
+    private final long sha1Offset;
+    private final long md5Offset;
+    private final long stringOffsetsOffset;
+    private final long stringDataOffset;
+
+    private HashIndexFile(FileChannel channel, long chunkSize) throws IOException {
+        this.channel = channel;
+        this.chunkSize = chunkSize;
+        final long size = channel.size();
+        final int chunkCount = (int) ((size + chunkSize - 1) / chunkSize);
+        chunks = new MappedByteBuffer[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            final long start = i * chunkSize;
+            chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size - start, chunkSize + CHUNK_OVERLAP));
+        }
+        if (size < HEADER_SIZE || getInt(0) != MAGIC) {
+            throw new IOException("Not an index file");
+        }
+        if (getInt(4) != FORMAT_VERSION) {
+            throw new IOException("Unsupported format version: " + getInt(4));
+        }
+        sha1Count = getLong(8);
+        md5Count = getLong(16);
+        stringCount = getLong(24);
+        sha1Offset = getLong(32);
+        md5Offset = getLong(40);
+        stringOffsetsOffset = getLong(48);
+        stringDataOffset = getLong(56);
+    }
+
+    public static HashIndexFile open(Path path) throws IOException {
+        return open(path, DEFAULT_CHUNK_SIZE);
+    }
+
+    static HashIndexFile open(Path path, long chunkSize) throws IOException {
+        final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new HashIndexFile(channel, chunkSize);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public long getSha1Count() {
+        return sha1Count;
+    }
+
+    public long getMd5Count() {
+        return md5Count;
+    }
+
+    public List<HashLookup.Match> findBySha1(byte[] sha1) {
+        return find(sha1Offset, sha1Count, SHA1_SIZE, sha1);
+    }
+
+    public List<HashLookup.Match> findByMd5(byte[] md5) {
+        return find(md5Offset, md5Count, MD5_SIZE, md5);
+    }
+
+    private List<HashLookup.Match> find(long offset, long count, int digestSize, byte[] digest) {
+        if (digest.length != digestSize) {
+            throw new IllegalArgumentException("Expected " + digestSize + " bytes, got " + digest.length);
+        }
+        final int recordSize = digestSize + REFS_SIZE;
+        // lower bound
+        long low = 0;
+        long high = count;
+        while (low < high) {
+            final long middle = (low + high) >>> 1;
+            if (compare(offset + middle * recordSize, digest) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        final List<HashLookup.Match> matches = new ArrayList<>();
+        for (long i = low; i < count && compare(offset + i * recordSize, digest) == 0; i++) {
+            final long refs = offset + i * recordSize + digestSize;
+            matches.add(new HashLookup.Match(getString(getInt(refs)), getString(getInt(refs + 4)), getString(getInt(refs + 8))));
+        }
+        return matches;
+    }
+
+    private int compare(long position, byte[] digest) {
+        final MappedByteBuffer chunk = chunks[(int) (position / chunkSize)];
+        final int base = (int) (position % chunkSize);
+        for (int i = 0; i < digest.length; i++) {
+            final int cmp = Integer.compare(chunk.get(base + i) & 0xff, digest[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    private String getString(int id) {
+        if (id < 0 || id >= stringCount) {
+            throw new IllegalStateException("Bad string id: " + id);
+        }
+        final long start = getLong(stringOffsetsOffset + id * 8L);
+        final int length = (int) (getLong(stringOffsetsOffset + id * 8L + 8) - start);
+        final long position = stringDataOffset + start;
+        final MappedByteBuffer chunk = chunks[(int) (position / chunkSize)];
+        final int base = (int) (position % chunkSize);
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = chunk.get(base + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int getInt(long position) {
+        return chunks[(int) (position / chunkSize)].getInt((int) (position % chunkSize));
+    }
+
+    private long getLong(long position) {
+        return chunks[(int) (position / chunkSize)].getLong((int) (position % chunkSize));
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Writes the file. All SHA-1 records have to be added before MD5 records, each in ascending order of digests
+     * (unsigned bytes). The sections are spooled to temporary files next to the target, which is replaced atomically
+     * by {@link #finish()}.
+     */
+    public static final class Writer implements Closeable {
+        private static final int STRING_CACHE_SIZE = 1 << 20;
+
+        private final Path target;
+        private final Path sha1Temp;
+        private final Path md5Temp;
+        private final Path stringOffsetsTemp;
+        private final Path stringDataTemp;
+        private final DataOutputStream sha1Out;
+        private final DataOutputStream md5Out;
+        private final DataOutputStream stringOffsetsOut;
+        private final DataOutputStream stringDataOut;
+
+        // Names and versions repeat a lot, but file names mostly do not, so the deduplication is bounded.
+        private final Map<String, Integer> stringIds = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                return size() > STRING_CACHE_SIZE;
+            }
+        };
+
+        private long sha1Count = 0;
+        private long md5Count = 0;
+        private int stringCount = 0;
+        private long stringDataSize = 0;
+        private byte[] previousDigest;
+
+        public Writer(Path target) throws IOException {
+            this.target = target;
+            final Path dir = target.toAbsolutePath().getParent();
+            final String prefix = target.getFileName() + ".";
+            sha1Temp = Files.createTempFile(dir, prefix, ".sha1");
+            md5Temp = Files.createTempFile(dir, prefix, ".md5");
+            stringOffsetsTemp = Files.createTempFile(dir, prefix, ".offsets");
+            stringDataTemp = Files.createTempFile(dir, prefix, ".strings");
+            sha1Out = open(sha1Temp);
+            md5Out = open(md5Temp);
+            stringOffsetsOut = open(stringOffsetsTemp);
+            stringDataOut = open(stringDataTemp);
+            stringOffsetsOut.writeLong(0);
+        }
+
+        private static DataOutputStream open(Path path) throws IOException {
+            return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16));
+        }
+
+        public void addSha1(byte[] sha1, String name, String version, String fileName) throws IOException {
+            if (md5Count > 0) {
+                throw new IllegalStateException("SHA-1 records have to be added before MD5 records");
+            }
+            if (sha1Count == 0) {
+                previousDigest = null;
+            }
+            add(sha1Out, SHA1_SIZE, sha1, name, version, fileName);
+            sha1Count++;
+        }
+
+        public void addMd5(byte[] md5, String name, String version, String fileName) throws IOException {
+            if (md5Count == 0) {
+                previousDigest = null;
+            }
+            add(md5Out, MD5_SIZE, md5, name, version, fileName);
+            md5Count++;
+        }
+
+        private void add(DataOutputStream out, int digestSize, byte[] digest, String name, String version, String fileName) throws IOException {
+            if (digest.length != digestSize) {
+                throw new IllegalArgumentException("Expected " + digestSize + " bytes, got " + digest.length);
+            }
+            if (previousDigest != null && compareUnsigned(previousDigest, digest) > 0) {
+                throw new IOException("Records are not sorted by digest");
+            }
+            previousDigest = digest;
+            out.write(digest);
+            out.writeInt(stringId(name));
+            out.writeInt(stringId(version));
+            out.writeInt(stringId(fileName));
+        }
+
+        private static int compareUnsigned(byte[] a, byte[] b) {
+            for (int i = 0; i < a.length; i++) {
+                final int cmp = Integer.compare(a[i] & 0xff, b[i] & 0xff);
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            return 0;
+        }
+
+        private int stringId(String s) throws IOException {
+            final String value = s == null ? "" : s;
+            final Integer cached = stringIds.get(value);
+            if (cached != null) {
+                return cached;
+            }
+            final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > CHUNK_OVERLAP) {
+                throw new IOException("Too long string: " + value.substring(0, 100) + "…");
+            }
+            stringDataOut.write(bytes);
+            stringDataSize += bytes.length;
+            stringOffsetsOut.writeLong(stringDataSize);
+            final int id = stringCount++;
+            stringIds.put(value, id);
+            return id;
+        }
+
+        public void finish() throws IOException {
+            closeStreams();
+            final long sha1Offset = HEADER_SIZE;
+            final long md5Offset = sha1Offset + Files.size(sha1Temp);
+            final long stringOffsetsOffset = md5Offset + Files.size(md5Temp);
+            final long stringDataOffset = stringOffsetsOffset + Files.size(stringOffsetsTemp);
+            final Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+            try {
+                try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                    header.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(sha1Count).putLong(md5Count).putLong(stringCount)
+                            .putLong(sha1Offset).putLong(md5Offset).putLong(stringOffsetsOffset).putLong(stringDataOffset);
+                    // Buffer.flip(), as ByteBuffer.flip() does not exist on Java 8, which this may run on when built by a newer JDK.
+                    ((Buffer) header).flip();
+                    while (header.hasRemaining()) {
+                        out.write(header);
+                    }
+                    for (final Path section : new Path[]{sha1Temp, md5Temp, stringOffsetsTemp, stringDataTemp}) {
+                        append(section, out);
+                    }
+                    out.force(true);
+                }
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+
+        private static void append(Path section, FileChannel out) throws IOException {
+            try (FileChannel in = FileChannel.open(section, StandardOpenOption.READ)) {
+                final long size = in.size();
+                long transferred = 0;
+                while (transferred < size) {
+                    transferred += in.transferTo(transferred, size - transferred, out);
+                }
+            }
+        }
+
+        private void closeStreams() throws IOException {
+            sha1Out.close();
+            md5Out.close();
+            stringOffsetsOut.close();
+            stringDataOut.close();
+        }
+
+        @Override
+        public void close() throws IOException {
+            closeStreams();
+            Files.deleteIfExists(sha1Temp);
+            Files.deleteIfExists(md5Temp);
+            Files.deleteIfExists(stringOffsetsTemp);
+            Files.deleteIfExists(stringDataTemp);
+        }
+    }
+}
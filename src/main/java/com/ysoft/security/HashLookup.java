@@ -0,0 +1,156 @@
+package com.ysoft.security;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * Finds files by their digests. Results, including empty ones, are kept in a bounded LRU cache, which is dropped
+ * whenever the resolver reports that the index has changed.
+ */
+public class HashLookup {
+    private static final Logger LOGGER = LoggerFactory.getLogger(HashLookup.class);
+
+    private final Resolver resolver;
+
+    private final Map<String, List<Match>> cache;
+
+    private Object generation;
+
+    public interface Resolver {
+        /**
+         * Resolves all the digests at once. The result contains an entry for every requested digest, keyed by
+         * {@link #key(Hashing.Algorithm, String)}.
+         */
+        Map<String, List<Match>> resolve(Collection<String> sha1s, Collection<String> md5s) throws SQLException;
+
+        /**
+         * Returns a value that changes whenever new files are indexed. It should be cheap.
+         */
+        Object getGeneration() throws SQLException;
+    }
+
+    public static final class Match {
+        private final String name;
+        private final String version;
+        private final String fileName;
+
+        public Match(String name, String version, String fileName) {
+            this.name = name;
+            this.version = version;
+            this.fileName = fileName;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getVersion() {
+            return version;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            final Match match = (Match) o;
+            return name.equals(match.name) && Objects.equals(version, match.version) && Objects.equals(fileName, match.fileName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, version, fileName);
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + version + " " + fileName;
+        }
+    }
+
+    public HashLookup(Resolver resolver, int cacheSize) {
+        this.resolver = resolver;
+        this.cache = new LinkedHashMap<String, List<Match>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<Match>> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Upper-case hex digest prefixed by the algorithm name.
+     */
+    static String key(Hashing.Algorithm algorithm, String hex) {
+        return algorithm.getName() + ":" + hex.toUpperCase(Locale.ROOT);
+    }
+
+    /**
+     * Looks the digests up. Digests missing in the cache are resolved in a single call of the resolver.
+     *
+     * @return matches keyed by {@link #key(Hashing.Algorithm, String)}
+     */
+    public Map<String, List<Match>> lookup(Collection<String> sha1s, Collection<String> md5s) throws SQLException {
+        final Map<String, List<Match>> results = new HashMap<>();
+        final List<String> missingSha1s = new ArrayList<>();
+        final List<String> missingMd5s = new ArrayList<>();
+        final Object requestGeneration;
+        synchronized (cache) {
+            requestGeneration = generation;
+            collectCached(Hashing.Algorithm.SHA1, sha1s, results, missingSha1s);
+            collectCached(Hashing.Algorithm.MD5, md5s, results, missingMd5s);
+        }
+        if (!missingSha1s.isEmpty() || !missingMd5s.isEmpty()) {
+            final Map<String, List<Match>> resolved = resolver.resolve(missingSha1s, missingMd5s);
+            results.putAll(resolved);
+            synchronized (cache) {
+                // Do not cache results that might have been resolved before an invalidation.
+                if (requestGeneration == generation) {
+                    cache.putAll(resolved);
+                }
+            }
+        }
+        return results;
+    }
+
+    private void collectCached(Hashing.Algorithm algorithm, Collection<String> hexDigests, Map<String, List<Match>> results, List<String> missing) {
+        for (final String hex : hexDigests) {
+            final String key = key(algorithm, hex);
+            final List<Match> cached = cache.get(key);
+            if (cached == null) {
+                missing.add(hex);
+            } else {
+                results.put(key, cached);
+            }
+        }
+    }
+
+    /**
+     * Drops the cache if the index has changed since the last check. This is supposed to be called periodically.
+     */
+    public void checkGeneration() throws SQLException {
+        final Object current = resolver.getGeneration();
+        synchronized (cache) {
+            if (!current.equals(generation)) {
+                if (generation != null) {
+                    LOGGER.info("The index has changed ({} -> {}), dropping {} cached lookups", generation, current, cache.size());
+                }
+                cache.clear();
+                generation = current;
+            }
+        }
+    }
+
+    public void invalidate() {
+        synchronized (cache) {
+            cache.clear();
+            generation = new Object(); // also discards lookups in flight
+        }
+    }
+}
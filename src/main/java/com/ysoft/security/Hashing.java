@@ -6,68 +6,231 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class Hashing {
-    private static final Map<String, String> HASHES;
-    static {
-        final HashMap<String, String> map = new HashMap<>();
-        map.put("sha1", "SHA1");
-        map.put("md5", "MD5");
-        HASHES = Collections.unmodifiableMap(map);
+
+    public enum Algorithm {
+        SHA1("sha1", "SHA-1"),
+        MD5("md5", "MD5"),
+        SHA256("sha256", "SHA-256");
+
+        private final String name;
+        private final String jcaName;
+
+        Algorithm(String name, String jcaName) {
+            this.name = name;
+            this.jcaName = jcaName;
+        }
+
+        public String getName() {
+            return name;
+        }
     }
 
-    public static Map<String, String> hash(InputStream in) throws NoSuchAlgorithmException, IOException {
-        final MessageDigest[] digestsArray = new MessageDigest[Hashing.HASHES.size()];
-        final Map<String, MessageDigest> digestsMap = createDigestsMap(digestsArray);
-        final byte[] buffer = new byte[4096];
-        int len;
-        while ((len = in.read(buffer)) != -1) {
-            for (final MessageDigest digest: digestsArray) {
-                digest.update(buffer, 0, len);
-            }
+    /**
+     * Algorithms needed by the nuget_index_hashes table.
+     */
+    public static final Collection<Algorithm> REQUIRED_ALGORITHMS = EnumSet.of(Algorithm.SHA1, Algorithm.MD5);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static volatile Algorithm[] algorithms = REQUIRED_ALGORITHMS.toArray(new Algorithm[0]);
+
+    // Hashers are pooled rather than kept in thread-locals, because downloads might run on short-lived virtual threads.
+    private static final Queue<Hasher> POOL = new ConcurrentLinkedQueue<>();
+
+    private Hashing() {
+    }
+
+    /**
+     * Sets the algorithms computed by hashers obtained later. It must contain {@link #REQUIRED_ALGORITHMS}.
+     */
+    public static void setAlgorithms(Collection<Algorithm> newAlgorithms) {
+        if (!newAlgorithms.containsAll(REQUIRED_ALGORITHMS)) {
+            throw new IllegalArgumentException("Algorithms " + REQUIRED_ALGORITHMS + " are required, got " + newAlgorithms);
         }
-        final Map<String, String> hashes = finalizeHashes(digestsMap);
-        return hashes;
+        algorithms = EnumSet.copyOf(newAlgorithms).toArray(new Algorithm[0]);
+        POOL.clear();
     }
 
-    private static Map<String, String> finalizeHashes(Map<String, MessageDigest> digestsMap) {
-        final Map<String, String> hashes = new HashMap<>();
-        for (final Map.Entry<String, MessageDigest> md : digestsMap.entrySet()) {
-            hashes.put(md.getKey(), DatatypeConverter.printHexBinary(md.getValue().digest()));
+    public static Collection<Algorithm> getAlgorithms() {
+        return Arrays.asList(algorithms.clone());
+    }
+
+    /**
+     * Gets a reset hasher. Close it in order to return it for reuse; it must not be used after that.
+     */
+    public static Hasher hasher() {
+        final Hasher pooled = POOL.poll();
+        if (pooled != null && pooled.algorithms == algorithms) {
+            pooled.reset();
+            return pooled;
         }
-        return hashes;
+        return new Hasher(algorithms);
     }
 
-    private static Map<String, MessageDigest> createDigestsMap(MessageDigest[] digestsArray) throws NoSuchAlgorithmException {
-        final Map<String, MessageDigest> digestsMap = new HashMap<>();
-        int i = 0;
-        for (final Map.Entry<String, String> digestEntry : Hashing.HASHES.entrySet()) {
-            final MessageDigest messageDigest = MessageDigest.getInstance(digestEntry.getValue());
-            digestsArray[i] = messageDigest;
-            digestsMap.put(digestEntry.getKey(), messageDigest);
-            i++;
+    public static Digests hash(InputStream in) throws IOException {
+        try (Hasher hasher = hasher()) {
+            return hasher.hash(in);
+        }
+    }
+
+    /**
+     * Metrics are updated once per hash by {@link #finish()}, so that updates (possibly of single bytes) stay cheap.
+     */
+    public static final class Hasher implements AutoCloseable {
+        private final Algorithm[] algorithms;
+        private final MessageDigest[] digests;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private long bytes;
+        private long start;
+
+        private Hasher(Algorithm[] algorithms) {
+            this.algorithms = algorithms;
+            this.digests = new MessageDigest[algorithms.length];
+            for (int i = 0; i < algorithms.length; i++) {
+                try {
+                    digests[i] = MessageDigest.getInstance(algorithms[i].jcaName);
+                } catch (NoSuchAlgorithmException e) {
+                    throw new AssertionError(e); // all of them are required to be supported by every JRE
+                }
+            }
+            start = System.nanoTime();
+        }
+
+        public void reset() {
+            for (final MessageDigest digest : digests) {
+                digest.reset();
+            }
+            bytes = 0;
+            start = System.nanoTime();
+        }
+
+        public void update(byte b) {
+            bytes++;
+            for (final MessageDigest digest : digests) {
+                digest.update(b);
+            }
+        }
+
+        public void update(byte[] b, int off, int len) {
+            bytes += len;
+            for (final MessageDigest digest : digests) {
+                digest.update(b, off, len);
+            }
+        }
+
+        /**
+         * Returns digests of everything passed since the last reset and resets the hasher.
+         */
+        public Digests finish() {
+            final byte[][] values = new byte[Algorithm.values().length][];
+            for (int i = 0; i < algorithms.length; i++) {
+                values[algorithms[i].ordinal()] = digests[i].digest();
+            }
+            final long now = System.nanoTime();
+            Metrics.HASHED_BYTES.add(bytes);
+            Metrics.HASH_TIME.add(now - start);
+            bytes = 0;
+            start = now;
+            return new Digests(values);
+        }
+
+        public Digests hash(InputStream in) throws IOException {
+            reset();
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                update(buffer, 0, len);
+            }
+            return finish();
+        }
+
+        @Override
+        public void close() {
+            POOL.offer(this);
+        }
+    }
+
+    /**
+     * Binary digests of a single file. Algorithms that have not been computed are missing.
+     */
+    public static final class Digests {
+        private final byte[][] values; // indexed by Algorithm.ordinal()
+
+        private Digests(byte[][] values) {
+            this.values = values;
+        }
+
+        /**
+         * @return the digest (do not modify it) or null if it has not been computed
+         */
+        public byte[] get(Algorithm algorithm) {
+            return values[algorithm.ordinal()];
+        }
+
+        /**
+         * @return upper-case hex digest or null if it has not been computed
+         */
+        public String getHex(Algorithm algorithm) {
+            final byte[] value = get(algorithm);
+            return value == null ? null : DatatypeConverter.printHexBinary(value);
+        }
+
+        public Map<String, String> toHexMap() {
+            final Map<String, String> hashes = new HashMap<>();
+            for (final Algorithm algorithm : Algorithm.values()) {
+                final String hex = getHex(algorithm);
+                if (hex != null) {
+                    hashes.put(algorithm.getName(), hex);
+                }
+            }
+            return hashes;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Digests && Arrays.deepEquals(values, ((Digests) o).values);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.deepHashCode(values);
+        }
+
+        @Override
+        public String toString() {
+            return toHexMap().toString();
         }
-        return digestsMap;
     }
 
     public static class HashingInputStream extends FilterInputStream {
-        private final MessageDigest[] digestsArray = new MessageDigest[Hashing.HASHES.size()];
-        private final Map<String, MessageDigest> digestsMap = createDigestsMap(digestsArray);
+        private final Hasher hasher;
 
-        public HashingInputStream(InputStream in) throws NoSuchAlgorithmException {
+        public HashingInputStream(InputStream in) {
+            this(in, new Hasher(algorithms));
+        }
+
+        /**
+         * The hasher is reset and then updated by everything read.
+         */
+        public HashingInputStream(InputStream in, Hasher hasher) {
             super(in);
+            this.hasher = hasher;
+            hasher.reset();
         }
 
         @Override
         public int read() throws IOException {
             final int i = super.read();
             if(i != -1){
-                for (final MessageDigest digest: digestsArray) {
-                    digest.update((byte)i);
-                }
+                hasher.update((byte)i);
             }
             return i;
         }
@@ -81,28 +244,35 @@ public class Hashing {
         public int read(byte[] b, int off, int len) throws IOException {
             final int count = super.read(b, off, len);
             if(count>0) { // skip EOFs and empty reads
-                for (final MessageDigest digest : digestsArray) {
-                    digest.update(b, off, count);
-                }
+                hasher.update(b, off, count);
             }
             return count;
         }
 
         @Override
         public long skip(long n) throws IOException {
-            // not very efficient implementation, but I suppose this will not be used frequently.
+            // Skipped data have to be hashed too, so they are read through the hasher's buffer.
             long skipped = 0;
-            long toSkip = n;
-            while (toSkip > 0){ // prevents integer overflow
-                if(read() == -1){
+            while (skipped < n) {
+                final int count = read(hasher.buffer, 0, (int) Math.min(hasher.buffer.length, n - skipped));
+                if (count == -1) {
                     break;
                 }
-                skipped++;
-                toSkip--;
+                skipped += count;
             }
             return skipped;
         }
 
+        /**
+         * Reads the rest of the stream, so that the digests cover all of it.
+         */
+        public void consume() throws IOException {
+            //noinspection StatementWithEmptyBody
+            while (read(hasher.buffer) != -1) {
+                // just consume in order to compute the proper hash
+            }
+        }
+
         @Override
         public synchronized void mark(int readlimit) {
             // Not sure about the correct behavior, so I'll try to throw an unchecked exception in order to note that there is something wrong.
@@ -119,8 +289,12 @@ public class Hashing {
             return false;
         }
 
+        public Digests finish() {
+            return hasher.finish();
+        }
+
         public Map<String, String> finalizeHashes(){
-            return Hashing.finalizeHashes(digestsMap);
+            return finish().toHexMap();
         }
     }
 
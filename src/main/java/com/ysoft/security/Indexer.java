@@ -2,27 +2,518 @@ package com.ysoft.security;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class Indexer {
+/**
+ * Staged indexing pipeline. Sources submit packages from their own thread, a bounded pool of workers downloads and
+ * analyzes them and writer threads persist the results, each by its own (non-thread-safe) DB connection. There is a
+ * single writer by default. With more writers, packages are routed by their id and version, so all the rows of a
+ * package are written by one writer in one transaction. The stages are joined by bounded queues, so a slow stage slows
+ * down the previous ones.
+ */
+public class Indexer implements AutoCloseable {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(Indexer.class);
 
+    private static final NugetMetadata END_OF_QUEUE = new NugetMetadata(null, null);
+
+    private static final NugetMetadata CHECKPOINT = new NugetMetadata(null, null);
+
     private final NugetMetadataStore nugetMetadataStore;
 
-    public Indexer(NugetMetadataStore nugetMetadataStore) {
+    /**
+     * Pool of the connections for lookups and additional writers, or null if there is none.
+     */
+    private final ConnectionPool connectionPool;
+
+    /**
+     * Connection borrowed for {@link #packageLookup}, or null without a pool, when lookups go through the store.
+     */
+    private final Connection lookupConnection;
+
+    private final PackageLookup packageLookup;
+
+    private final ExecutorService workers;
+
+    /**
+     * Whether the workers are owned by this indexer, or shared with other ones.
+     */
+    private final boolean ownWorkers;
+
+    private final Semaphore workerSlots;
+
+    private final int maxPendingPackages;
+
+    /**
+     * The first writer uses the connection of {@link #nugetMetadataStore}, the other ones borrow their connections from
+     * {@link #connectionPool}.
+     */
+    private final List<Writer> writers;
+
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    private boolean finished = false;
+
+    public Indexer(NugetMetadataStore nugetMetadataStore, int workerCount) {
+        // running + waiting tasks; the waiting ones keep the workers busy while the source fetches next items
+        this(nugetMetadataStore, null, Collections.emptyList(), newWorkerPool(workerCount), true, workerCount * 2);
+    }
+
+    /**
+     * Writes by multiple connections, the additional ones are borrowed from the pool until the indexer is finished.
+     * Another one is borrowed for {@link #isKnownPackage(String)}, so that lookups do not wait for the writers.
+     * The last updated time is still set by {@link NugetMetadataStore#finish()} of the given store, which should be
+     * called after {@link #finish()}, i.e., once all the writers are done.
+     */
+    public Indexer(NugetMetadataStore nugetMetadataStore, int workerCount, ConnectionPool connectionPool, int writerCount)
+            throws SQLException {
+        // The connections go first, so that the workers are not started if they cannot be opened.
+        this(nugetMetadataStore, connectionPool, borrowConnections(connectionPool, writerCount),
+                newWorkerPool(workerCount), true, workerCount * 2);
+    }
+
+    /**
+     * Uses workers shared with other indexers, e.g., of other sources. They are not shut down by this indexer.
+     *
+     * @param maxPendingPackages maximum number of packages of this indexer that are analyzed or waiting for a worker,
+     *                           so that a single source cannot occupy all the workers
+     */
+    public Indexer(NugetMetadataStore nugetMetadataStore, ExecutorService sharedWorkers, int maxPendingPackages) {
+        this(nugetMetadataStore, null, Collections.emptyList(), sharedWorkers, false, maxPendingPackages);
+    }
+
+    /**
+     * Combines {@link #Indexer(NugetMetadataStore, ExecutorService, int)} with the writers of
+     * {@link #Indexer(NugetMetadataStore, int, ConnectionPool, int)}.
+     */
+    public Indexer(NugetMetadataStore nugetMetadataStore, ExecutorService sharedWorkers, int maxPendingPackages,
+                   ConnectionPool connectionPool, int writerCount) throws SQLException {
+        this(nugetMetadataStore, connectionPool, borrowConnections(connectionPool, writerCount), sharedWorkers, false,
+                maxPendingPackages);
+    }
+
+    /**
+     * @param connections borrowed connections, the first one for lookups and the others for additional writers; empty
+     *                    without a pool
+     */
+    private Indexer(NugetMetadataStore nugetMetadataStore, ConnectionPool connectionPool, List<Connection> connections,
+                    ExecutorService workers, boolean ownWorkers, int maxPendingPackages) {
+        if (maxPendingPackages < 1) {
+            releaseConnections(connectionPool, connections, false);
+            throw new IllegalArgumentException("At least one pending package is needed, got " + maxPendingPackages);
+        }
         this.nugetMetadataStore = nugetMetadataStore;
+        this.connectionPool = connectionPool;
+        this.lookupConnection = connections.isEmpty() ? null : connections.get(0);
+        this.packageLookup = lookupConnection == null ? null : nugetMetadataStore.newPackageLookup(lookupConnection);
+        this.workers = workers;
+        this.ownWorkers = ownWorkers;
+        this.workerSlots = new Semaphore(maxPendingPackages);
+        this.maxPendingPackages = maxPendingPackages;
+        final ThreadFactory threadFactory = namedThreadFactory("nuget-index-writer-");
+        final List<Writer> writers = new ArrayList<>();
+        writers.add(new Writer(nugetMetadataStore, null, threadFactory));
+        for (final Connection connection : connections.subList(Math.min(1, connections.size()), connections.size())) {
+            writers.add(new Writer(nugetMetadataStore.withConnection(connection), connection, threadFactory));
+        }
+        this.writers = Collections.unmodifiableList(writers);
+        for (final Writer writer : writers) {
+            writer.thread.start();
+        }
+    }
+
+    /**
+     * A writer thread with its store and queue. Each queue can hold all the pending packages, so workers never wait
+     * for a writer that is not going to take their package.
+     */
+    private final class Writer {
+        private final NugetMetadataStore store;
+
+        /**
+         * Borrowed connection of the store, or null for the connection of {@link #nugetMetadataStore}.
+         */
+        private final Connection connection;
+
+        private final BlockingQueue<NugetMetadata> queue = new ArrayBlockingQueue<>(maxPendingPackages);
+
+        /**
+         * Checkpoints of {@link #CHECKPOINT}s in the queue, in the same order.
+         */
+        private final BlockingQueue<Checkpoint> checkpoints = new LinkedBlockingQueue<>();
+
+        private final Thread thread;
+
+        private Writer(NugetMetadataStore store, Connection connection, ThreadFactory threadFactory) {
+            this.store = store;
+            this.connection = connection;
+            this.thread = threadFactory.newThread(() -> write(this));
+        }
+    }
+
+    /**
+     * A checkpoint passed to all the writers. The time is stored by the last writer that reaches it, because all the
+     * preceding packages are committed by then.
+     */
+    private static final class Checkpoint {
+        private final long time;
+        private final AtomicInteger remainingWriters;
+
+        private Checkpoint(long time, int writerCount) {
+            this.time = time;
+            this.remainingWriters = new AtomicInteger(writerCount);
+        }
+    }
+
+    private static List<Connection> borrowConnections(ConnectionPool connectionPool, int writerCount) throws SQLException {
+        if (writerCount < 1) {
+            throw new IllegalArgumentException("At least one writer is needed, got " + writerCount);
+        }
+        final List<Connection> connections = new ArrayList<>();
+        try {
+            // one for lookups and one for each writer but the first
+            for (int i = 0; i < writerCount; i++) {
+                connections.add(connectionPool.borrow());
+            }
+        } catch (SQLException | RuntimeException e) {
+            releaseConnections(connectionPool, connections, false);
+            throw e;
+        }
+        return connections;
+    }
+
+    private static void releaseConnections(ConnectionPool connectionPool, List<Connection> connections, boolean healthy) {
+        for (final Connection connection : connections) {
+            if (healthy) {
+                try {
+                    connectionPool.release(connection);
+                    continue;
+                } catch (SQLException e) {
+                    LOGGER.debug("Cannot release DB connection", e);
+                }
+            }
+            connectionPool.discard(connection);
+        }
+    }
+
+    /**
+     * Creates workers that can be shared by multiple indexers.
+     */
+    public static ExecutorService newWorkerPool(int workerCount) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("At least one worker is needed, got " + workerCount);
+        }
+        return Executors.newFixedThreadPool(workerCount, namedThreadFactory("nuget-index-worker-"));
     }
 
-    public void index(InputStream zipIn, String expectedName, String expectedVersion) throws IOException, SQLException {
-        final NugetMetadata nugetMetadata = NugetReader.analyzeNuget(zipIn, expectedName, expectedVersion);
-        for (Map.Entry<String, Map<String, String>> file : nugetMetadata.getHashesForFiles().entrySet()) {
+    /**
+     * Schedules the package file for analysis by a worker thread. The file is hashed first and skipped without
+     * unzipping if an identical package has been already indexed. Blocks while the pipeline is full.
+     */
+    public void index(Path file, String expectedName, String expectedVersion) throws IOException {
+        checkFailure();
+        try {
+            workerSlots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted when waiting for a free worker");
+        }
+        Metrics.PENDING_PACKAGES.increment();
+        try {
+            workers.execute(() -> {
+                try {
+                    if (failure.get() == null) {
+                        final String sha1;
+                        try (InputStream in = Files.newInputStream(file)) {
+                            sha1 = Hashing.hash(in).getHex(Hashing.Algorithm.SHA1);
+                        }
+                        if (isKnownPackage(sha1)) {
+                            LOGGER.info("Skipping {}, because an identical package has been already indexed", file);
+                            Metrics.PACKAGES_SKIPPED.increment();
+                        } else {
+                            final NugetMetadata nugetMetadata = NugetReader.analyzeNuget(file, expectedName, expectedVersion);
+                            enqueue(nugetMetadata.withPackageSha1(sha1));
+                        }
+                    }
+                } catch (Throwable e) {
+                    fail(e);
+                } finally {
+                    Metrics.PENDING_PACKAGES.decrement();
+                    workerSlots.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Metrics.PENDING_PACKAGES.decrement();
+            workerSlots.release();
+            throw new IOException("The indexer is not running anymore", e);
+        }
+    }
+
+    /**
+     * Analyzes the package on the calling thread and passes it to the writer. This is useful when the calling thread
+     * produces the stream anyway, e.g., when downloading. Blocks while the writer is busy.
+     *
+     * @param packageSha1 SHA-1 of the whole package if known, otherwise null
+     */
+    public void index(InputStream in, String expectedName, String expectedVersion, String packageSha1) throws IOException {
+        checkFailure();
+        passToWriter(NugetReader.analyzeNuget(in, expectedName, expectedVersion), packageSha1);
+    }
+
+    /**
+     * Like {@link #index(InputStream, String, String, String)}, but it reads a local file (e.g., a spooled download)
+     * with random access. Unlike {@link #index(Path, String, String)}, the package is analyzed on the calling thread.
+     */
+    public void index(Path file, String expectedName, String expectedVersion, String packageSha1) throws IOException {
+        checkFailure();
+        passToWriter(NugetReader.analyzeNuget(file, expectedName, expectedVersion), packageSha1);
+    }
+
+    private void passToWriter(NugetMetadata nugetMetadata, String packageSha1) throws IOException {
+        try {
+            enqueue(nugetMetadata.withPackageSha1(packageSha1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted when waiting for the writer");
+        }
+    }
+
+    /**
+     * Records that all the packages with modification time before the given time have been either passed to
+     * {@link #index(InputStream, String, String, String)} (or its variant for files) or skipped. The time is stored as
+     * the last updated time of the source, once all such packages are stored, so that a crashed run does not have to
+     * start from the beginning.
+     * It is not suitable for {@link #index(Path, String, String)}, which analyzes packages asynchronously.
+     */
+    public synchronized void checkpoint(long time) throws IOException {
+        checkFailure();
+        final Checkpoint checkpoint = new Checkpoint(time, writers.size());
+        try {
+            for (final Writer writer : writers) {
+                writer.checkpoints.add(checkpoint);
+                enqueue(writer, CHECKPOINT);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted when waiting for the writer");
+        }
+    }
+
+    /**
+     * Checks if a package with the given SHA-1 has been already indexed, so it does not have to be downloaded or
+     * analyzed again. A known package is recorded for the source, see {@link PackageLookup}. This can be called from
+     * any thread.
+     */
+    public boolean isKnownPackage(String sha1) throws IOException {
+        try {
+            return packageLookup != null ? packageLookup.isKnownPackage(sha1) : nugetMetadataStore.isKnownPackage(sha1);
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void write(Writer writer) {
+        try {
+            NugetMetadata nugetMetadata;
+            while ((nugetMetadata = writer.queue.take()) != END_OF_QUEUE) {
+                Metrics.WRITE_QUEUE_DEPTH.decrement();
+                // After a failure, we just drain the queue, so that workers are not blocked forever.
+                final Checkpoint checkpoint = nugetMetadata == CHECKPOINT ? writer.checkpoints.remove() : null;
+                if (failure.get() == null) {
+                    try {
+                        if (checkpoint != null) {
+                            writer.store.flush();
+                            if (checkpoint.remainingWriters.decrementAndGet() == 0) {
+                                writer.store.checkpoint(checkpoint.time);
+                            }
+                        } else {
+                            store(writer.store, nugetMetadata);
+                        }
+                    } catch (Throwable e) {
+                        fail(e);
+                    }
+                }
+            }
+            if (failure.get() == null) {
+                if (writer.connection != null) {
+                    // Also restores the auto-commit of the borrowed connection, but keeps the last updated time.
+                    writer.store.finishPartial();
+                } else {
+                    writer.store.flush();
+                }
+            }
+        } catch (InterruptedException | SQLException e) {
+            fail(e);
+        }
+    }
+
+    private void enqueue(NugetMetadata nugetMetadata) throws InterruptedException {
+        // Case-insensitively, because ids differing just in case can be the same row for a case-insensitive collation.
+        final NugetIdentifier nugetIdentifier = nugetMetadata.getNugetIdentifier();
+        final int hash = (nugetIdentifier.getId() + " " + nugetIdentifier.getVersion()).toLowerCase(Locale.ROOT).hashCode();
+        enqueue(writers.get(Math.floorMod(hash, writers.size())), nugetMetadata);
+    }
+
+    private void enqueue(Writer writer, NugetMetadata nugetMetadata) throws InterruptedException {
+        // Before putting, so that the writer never makes it negative.
+        Metrics.WRITE_QUEUE_DEPTH.increment();
+        try {
+            writer.queue.put(nugetMetadata);
+        } catch (InterruptedException e) {
+            Metrics.WRITE_QUEUE_DEPTH.decrement();
+            throw e;
+        }
+    }
+
+    private static void store(NugetMetadataStore nugetMetadataStore, NugetMetadata nugetMetadata) throws SQLException {
+        for (Map.Entry<String, Hashing.Digests> file : nugetMetadata.getDigestsForFiles().entrySet()) {
             nugetMetadataStore.addHash(nugetMetadata.getNugetIdentifier().getId(), nugetMetadata.getNugetIdentifier().getVersion(), file.getKey(),
                     file.getValue());
         }
+        if (nugetMetadata.getPackageSha1() != null) {
+            nugetMetadataStore.addPackageChecksum(nugetMetadata.getNugetIdentifier().getId(),
+                    nugetMetadata.getNugetIdentifier().getVersion(), nugetMetadata.getPackageSha1());
+        }
+        Metrics.PACKAGES_STORED.increment();
+        nugetMetadataStore.flushIfFull();
+    }
+
+    private void fail(Throwable e) {
+        if (failure.compareAndSet(null, e)) {
+            LOGGER.error("Indexing failed, the remaining packages will be skipped", e);
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        final Throwable e = failure.get();
+        if (e != null) {
+            throw new IOException("Indexing has failed", e);
+        }
+    }
+
+    /**
+     * Waits until all the submitted packages are stored and rethrows the first failure, if any.
+     */
+    public void finish() throws IOException, SQLException {
+        shutdown();
+        final Throwable e = failure.get();
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        } else if (e instanceof SQLException) {
+            throw (SQLException) e;
+        } else if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        } else if (e instanceof Error) {
+            throw (Error) e;
+        } else if (e != null) {
+            throw new IOException(e);
+        }
+    }
+
+    private void shutdown() throws InterruptedIOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (ownWorkers) {
+            workers.shutdown();
+        }
+        boolean joined = false;
+        try {
+            if (ownWorkers) {
+                while (!workers.awaitTermination(1, TimeUnit.MINUTES)) {
+                    LOGGER.info("Waiting for workers to finish…");
+                }
+            } else {
+                // All the slots are free once our tasks are done, regardless of the tasks of other indexers.
+                while (!workerSlots.tryAcquire(maxPendingPackages, 1, TimeUnit.MINUTES)) {
+                    LOGGER.info("Waiting for workers to finish…");
+                }
+            }
+            for (final Writer writer : writers) {
+                writer.queue.put(END_OF_QUEUE);
+            }
+            for (final Writer writer : writers) {
+                writer.thread.join();
+            }
+            joined = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (final Writer writer : writers) {
+                writer.thread.interrupt();
+            }
+            if (ownWorkers) {
+                workers.shutdownNow();
+            } else {
+                // Shared workers cannot be interrupted, so make sure our tasks do not block them in a full queue.
+                // Each queue can hold all of them, because it is as large as the number of slots.
+                fail(new InterruptedIOException("Interrupted when waiting for the indexer to finish"));
+                for (final Writer writer : writers) {
+                    final List<NugetMetadata> dropped = new ArrayList<>();
+                    writer.queue.drainTo(dropped);
+                    Metrics.WRITE_QUEUE_DEPTH.add(-dropped.size());
+                }
+            }
+            throw new InterruptedIOException("Interrupted when waiting for the indexer to finish");
+        } finally {
+            final List<Connection> connections = new ArrayList<>();
+            if (packageLookup != null) {
+                try {
+                    packageLookup.close();
+                } catch (SQLException e) {
+                    LOGGER.debug("Cannot close the package lookup", e);
+                }
+                connections.add(lookupConnection);
+            }
+            for (final Writer writer : writers) {
+                if (writer.connection != null) {
+                    connections.add(writer.connection);
+                }
+            }
+            // A failed or still running writer might have left its transaction in a bad state.
+            releaseConnections(connectionPool, connections, joined && failure.get() == null);
+        }
+    }
+
+    /**
+     * Aborts the pipeline if it has not been finished properly, e.g., because the source has thrown an exception.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!finished) {
+            fail(new IOException("The indexer has been closed before finishing"));
+            shutdown();
+        }
+    }
+
+    private static ThreadFactory namedThreadFactory(String prefix) {
+        final AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            final Thread thread = new Thread(runnable, prefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
     }
 }
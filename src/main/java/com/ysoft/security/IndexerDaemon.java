@@ -0,0 +1,259 @@
+package com.ysoft.security;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs incremental indexing passes periodically within a single process, so that the source (including its HTTP
+ * client), the DB connection and the JIT-compiled code survive between passes. Passes never overlap. A failed pass is
+ * just logged and the next one is scheduled as usual.
+ */
+public class IndexerDaemon implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(IndexerDaemon.class);
+
+    private final NugetSource source;
+
+    private final ConnectionPool connectionPool;
+
+    private final int workers;
+
+    private final int dbBatchSize;
+
+    private final boolean bulkLoad;
+
+    private final int dbWriters;
+
+    private final long intervalMillis;
+
+    private final long jitterMillis;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "nuget-index-daemon"));
+
+    private HttpServer server;
+
+    private ScheduledFuture<?> nextPass;
+
+    /**
+     * Identifies the current {@link #nextPass}, so that a pass that has been already taken by the scheduler when it was
+     * cancelled does not run. Cancelling such a task succeeds, but it does not stop it.
+     */
+    private long nextPassId = 0;
+
+    private boolean running = false;
+
+    private boolean triggered = false;
+
+    private boolean schemaUpdated = false;
+
+    /**
+     * Indexes some packages known to be new, see {@link #runPartialPass(String, PartialPass)}.
+     */
+    public interface PartialPass {
+        void index(Indexer indexer) throws IOException;
+    }
+
+    private interface Indexing {
+        void index(long lastModifiedTime, Indexer indexer) throws IOException;
+    }
+
+    /**
+     * @param intervalMillis delay between the end of a pass and the start of the next one
+     * @param jitterMillis   maximum random delay added to the interval, so that multiple instances do not hit the
+     *                       same server at the same time
+     * @param bulkLoad       see {@link NugetMetadataStore#NugetMetadataStore(java.sql.Connection, long, long, String, int, boolean)}
+     * @param dbWriters      number of DB connections writing in parallel, all of them are borrowed from the pool
+     */
+    public IndexerDaemon(NugetSource source, ConnectionPool connectionPool, int workers, int dbBatchSize, boolean bulkLoad, int dbWriters, long intervalMillis, long jitterMillis) {
+        this.source = source;
+        this.connectionPool = connectionPool;
+        this.workers = workers;
+        this.dbBatchSize = dbBatchSize;
+        this.bulkLoad = bulkLoad;
+        this.dbWriters = dbWriters;
+        this.intervalMillis = intervalMillis;
+        this.jitterMillis = jitterMillis;
+    }
+
+    /**
+     * Starts the first pass immediately.
+     */
+    public synchronized void start() {
+        LOGGER.info("Indexing {} every {} ms (+ up to {} ms)", source, intervalMillis, jitterMillis);
+        schedule(0);
+    }
+
+    /**
+     * Starts a pass as soon as possible. If a pass is running, another one starts right after it, because the running
+     * one might have missed the change that has caused the trigger.
+     */
+    public synchronized void trigger() {
+        if (running) {
+            LOGGER.info("Triggered, starting a pass after the running one");
+            triggered = true;
+        } else {
+            LOGGER.info("Triggered, starting a pass now");
+            if (nextPass != null) {
+                nextPass.cancel(false);
+            }
+            schedule(0);
+        }
+    }
+
+    /**
+     * Serves POST /trigger, which calls {@link #trigger()}. This can be used for webhooks or inotify handlers.
+     */
+    public synchronized void listen(InetSocketAddress address) throws IOException {
+        server = HttpServer.create(address, 0);
+        server.createContext("/trigger", this::handleTrigger);
+        server.start();
+        LOGGER.info("Listening for triggers on {}", server.getAddress());
+    }
+
+    /**
+     * Serves another endpoint by the server started by {@link #listen(InetSocketAddress)}.
+     */
+    public synchronized void addHandler(String path, HttpHandler handler) {
+        server.createContext(path, handler);
+    }
+
+    synchronized InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    private void handleTrigger(HttpExchange exchange) throws IOException {
+        try {
+            if (exchange.getRequestMethod().equals("POST")) {
+                trigger();
+                exchange.sendResponseHeaders(202, -1);
+            } else {
+                exchange.getResponseHeaders().add("Allow", "POST");
+                exchange.sendResponseHeaders(405, -1);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Queues a pass that indexes just the given packages (e.g., reported by a watcher). It runs on the same thread as
+     * full passes, so it waits for the running one. It does not affect the schedule of full passes and it does not
+     * move the last updated time of the source, so whatever it fails to index is found by the next full pass.
+     */
+    public void runPartialPass(String description, PartialPass partialPass) {
+        try {
+            scheduler.execute(() -> {
+                final long start = System.currentTimeMillis();
+                try {
+                    pass((lastModifiedTime, indexer) -> partialPass.index(indexer), false);
+                    LOGGER.info("Partial pass ({}) finished in {} ms", description, System.currentTimeMillis() - start);
+                } catch (IOException | SQLException | RuntimeException e) {
+                    LOGGER.error("Partial pass ({}) failed", description, e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("Not running partial pass ({}), the daemon is shutting down", description);
+        }
+    }
+
+    private void run(long passId) {
+        synchronized (this) {
+            if (passId != nextPassId) {
+                return; // replaced by a triggered pass
+            }
+            running = true;
+        }
+        final long start = System.currentTimeMillis();
+        try {
+            runPass();
+            LOGGER.info("Indexing pass of {} finished in {} ms", source, System.currentTimeMillis() - start);
+        } catch (IOException | SQLException | RuntimeException e) {
+            LOGGER.error("Indexing pass of {} failed", source, e);
+        } finally {
+            scheduleNext();
+        }
+    }
+
+    /**
+     * Runs a full pass. This is separate, so that tests can replace it.
+     */
+    void runPass() throws IOException, SQLException {
+        pass(source::index, true);
+    }
+
+    private void pass(Indexing indexing, boolean complete) throws IOException, SQLException {
+        final Connection dbh = connectionPool.borrow();
+        boolean healthy = false;
+        try {
+            if (!schemaUpdated) {
+                NugetMetadataStore.updateSchema(dbh);
+                schemaUpdated = true;
+            }
+            final NugetMetadataStore nugetMetadataStore = NugetMetadataStore.openWithoutSchemaUpdate(dbh, source.getHash(), dbBatchSize, bulkLoad);
+            try (Indexer indexer = new Indexer(nugetMetadataStore, workers, connectionPool, dbWriters)) {
+                indexing.index(nugetMetadataStore.getLastModifiedTime(), indexer);
+                indexer.finish();
+            }
+            if (complete) {
+                nugetMetadataStore.finish();
+            } else {
+                nugetMetadataStore.finishPartial();
+            }
+            healthy = true;
+        } finally {
+            if (healthy) {
+                connectionPool.release(dbh);
+            } else {
+                connectionPool.discard(dbh);
+            }
+        }
+    }
+
+    private synchronized void scheduleNext() {
+        running = false;
+        if (triggered) {
+            triggered = false;
+            schedule(0);
+        } else {
+            schedule(intervalMillis + (jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(jitterMillis + 1) : 0));
+        }
+    }
+
+    private void schedule(long delayMillis) {
+        try {
+            final long passId = ++nextPassId;
+            nextPass = scheduler.schedule(() -> run(passId), delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("Not scheduling next pass, the daemon is shutting down");
+        }
+    }
+
+    /**
+     * Stops the daemon. A running pass is interrupted; data of finished packages are already committed.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        synchronized (this) {
+            if (server != null) {
+                server.stop(0);
+            }
+        }
+        scheduler.shutdownNow();
+        if (!scheduler.awaitTermination(1, TimeUnit.MINUTES)) {
+            LOGGER.warn("The running indexing pass has not stopped in time");
+        }
+    }
+}
@@ -1,15 +1,24 @@
 package com.ysoft.security;
 
+import com.sun.net.httpserver.HttpServer;
 import org.apache.commons.cli.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 import static java.util.Arrays.asList;
 
@@ -18,44 +27,201 @@ public class IndexerMain {
 
     private static final Options options = new Options();
 
+    /**
+     * Options describing a source, which can be used also in --sources-file.
+     */
+    private static final Options sourceOptions = new Options();
+
     private static final String OPT_SOURCE_TYPE = "source-type";
+    private static final String OPT_SOURCES_FILE = "sources-file";
     private static final String OPT_NEXUS_NUGET_PATH = "nexus-nuget-path";
     private static final String OPT_NEXUS_SERVER_ID = "nexus-server-identity";
+    private static final String OPT_NEXUS_SCAN_THREADS = "nexus-scan-threads";
+    private static final String OPT_NEXUS_EXCLUDE = "nexus-exclude";
+    private static final String OPT_NEXUS_WATCH = "nexus-watch";
+    private static final String OPT_RECONCILE = "reconcile";
+    private static final String OPT_RECONCILE_MAX_REMOVAL_PERCENT = "reconcile-max-removal-percent";
     private static final String OPT_ARTIFACTORY_URL = "artifactory-url";
     private static final String OPT_ARTIFACTORY_USERNAME = "artifactory-username";
     private static final String OPT_ARTIFACTORY_PASSFILE = "artifactory-passfile";
     private static final String OPT_ARTIFACTORY_REPOSITORY = "artifactory-repository";
     private static final String OPT_ARTIFACTORY_EXCLUDE = "artifactory-exclude-prefix";
+    private static final String OPT_ARTIFACTORY_MAX_DOWNLOADS = "artifactory-max-downloads";
+    private static final String OPT_ARTIFACTORY_BACKFILL_SLICE_HOURS = "artifactory-backfill-slice-hours";
+    private static final String OPT_ARTIFACTORY_BACKFILL_THREADS = "artifactory-backfill-search-threads";
+    private static final String OPT_ARTIFACTORY_SPOOL_DIR = "artifactory-spool-dir";
+    private static final String OPT_ARTIFACTORY_SPOOL_MAX_MB = "artifactory-spool-max-mb";
+    private static final String OPT_ARTIFACTORY_WEBHOOK = "artifactory-webhook";
+    private static final String OPT_ARTIFACTORY_WEBHOOK_SECRET_FILE = "artifactory-webhook-secret-file";
     private static final String OPT_OUTPUT_DB_URL = "output-db-url";
     private static final String OPT_OUTPUT_DB_PROPERTIES = "output-db-properties";
+    private static final String OPT_WORKERS = "workers";
+    private static final String OPT_DB_BATCH_SIZE = "db-batch-size";
+    private static final String OPT_DB_BULK_LOAD = "db-bulk-load";
+    private static final String OPT_DB_WRITERS = "db-writers";
+    private static final String OPT_SHA256 = "sha256";
+    private static final String OPT_LOOKUP_LISTEN = "lookup-listen";
+    private static final String OPT_LOOKUP_THREADS = "lookup-threads";
+    private static final String OPT_LOOKUP_CACHE_SIZE = "lookup-cache-size";
+    private static final String OPT_EXPORT_INDEX = "export-index";
+    private static final String OPT_DAEMON_INTERVAL = "daemon-interval";
+    private static final String OPT_DAEMON_JITTER = "daemon-jitter";
+    private static final String OPT_DAEMON_LISTEN = "daemon-listen";
+    private static final String OPT_METRICS_LISTEN = "metrics-listen";
+    private static final String OPT_METRICS_FILE = "metrics-file";
+
+    private static final String SOURCES_PROPERTY = "sources";
+
+    private static final int DEFAULT_DB_BATCH_SIZE = 1000;
+    private static final int DEFAULT_NEXUS_SCAN_THREADS = 4;
+    private static final int DEFAULT_ARTIFACTORY_MAX_DOWNLOADS = 16;
+    private static final int DEFAULT_ARTIFACTORY_BACKFILL_THREADS = 4;
+    private static final int DEFAULT_ARTIFACTORY_SPOOL_MAX_MB = 10240;
+    private static final int DEFAULT_LOOKUP_THREADS = 4;
+    private static final int DEFAULT_LOOKUP_CACHE_SIZE = 100000;
+    private static final int DEFAULT_RECONCILE_MAX_REMOVAL_PERCENT = 10;
+    private static final int LOOKUP_GENERATION_CHECK_SECONDS = 10;
+    private static final int METRICS_FILE_INTERVAL_SECONDS = 15;
 
     static {
-        options.addOption(Option.builder().longOpt(OPT_SOURCE_TYPE).required().desc("Type of source. Allowed values: “nexus” and “artifactory”").numberOfArgs(1).build());
-        options.addOption(Option.builder().longOpt(OPT_NEXUS_NUGET_PATH).desc("Path to nuget storage, multiple values can be separated by “" + File.pathSeparator + "”").numberOfArgs(1).build());
-        options.addOption(Option.builder().longOpt(OPT_NEXUS_SERVER_ID).desc("Unique identifier of indexed server, preferably URL. This is used just for distinguishing between various instances.").numberOfArgs(1).build());
-        options.addOption(Option.builder().longOpt(OPT_ARTIFACTORY_URL).desc("URL to JFrog Artifactory.").numberOfArgs(1).build());
-        options.addOption(Option.builder().longOpt(OPT_ARTIFACTORY_USERNAME).desc("Username for JFrog Artifactory.").numberOfArgs(1).build());
-        options.addOption(Option.builder().longOpt(OPT_ARTIFACTORY_PASSFILE).desc("File with password for JFrog Artifactory.").numberOfArgs(1).build());
-        options.addOption(Option.builder().longOpt(OPT_ARTIFACTORY_REPOSITORY).desc("Repositories to index. It can be used multiple times.").numberOfArgs(Option.UNLIMITED_VALUES).build());
-        options.addOption(Option.builder().longOpt(OPT_ARTIFACTORY_EXCLUDE).desc("Prefixes to exclude.").numberOfArgs(Option.UNLIMITED_VALUES).build());
+        sourceOptions.addOption(Option.builder().longOpt(OPT_SOURCE_TYPE).desc("Type of source. Allowed values: “nexus” and “artifactory”. Required unless --" + OPT_SOURCES_FILE + ", --" + OPT_LOOKUP_LISTEN + " or --" + OPT_EXPORT_INDEX + " is used.").numberOfArgs(1).build());
+        sourceOptions.addOption(Option.builder().longOpt(OPT_NEXUS_NUGET_PATH).desc("Path to nuget storage, multiple values can be separated by “" + File.pathSeparator + "”").numberOfArgs(1).build());
+        sourceOptions.addOption(Option.builder().longOpt(OPT_NEXUS_SERVER_ID).desc("Unique identifier of indexed server, preferably URL. This is used just for distinguishing between various instances.").numberOfArgs(1).build());
+        sourceOptions.addOption(Option.builder().longOpt(OPT_NEXUS_SCAN_THREADS).desc("Number of package id directories scanned in parallel. Defaults to " + DEFAULT_NEXUS_SCAN_THREADS + ".").numberOfArgs(1).build());
+        sourceOptions.addOption(Option.builder().longOpt(OPT_NEXUS_EXCLUDE).desc("Paths (<id>/<version>/<file>) to exclude. A value is a prefix, a value starting with glob: is a glob (*, **, ?) matching the whole path. It can be used multiple times.").numberOfArgs(Option.UNLIMITED_VALUES).build());
+        options.addOption(Option.builder().longOpt(OPT_NEXUS_WATCH).desc("In daemon mode, watches the storage for new packages and indexes them within seconds. Regular passes still run as a safety net.").build());
+        sourceOptions.addOption(Option.builder().longOpt(OPT_ARTIFACTORY_URL).desc("URL to JFrog Artifactory.").numberOfArgs(1).build());
+        sourceOptions.addOption(Option.builder().longOpt(OPT_ARTIFACTORY_USERNAME).desc("Username for JFrog Artifactory.").numberOfArgs(1).build());
+        sourceOptions.addOption(Option.builder().longOpt(OPT_ARTIFACTORY_PASSFILE).desc("File with password for JFrog Artifactory.").numberOfArgs(1).build());
+        sourceOptions.addOption(Option.builder().longOpt(OPT_ARTIFACTORY_REPOSITORY).desc("Repositories to index. It can be used multiple times.").numberOfArgs(Option.UNLIMITED_VALUES).build());
+        sourceOptions.addOption(Option.builder().longOpt(OPT_ARTIFACTORY_EXCLUDE).desc("Paths (<repository>/<path>) to exclude. A value is a prefix, a value starting with glob: is a glob (*, **, ?) matching the whole path. It can be used multiple times.").numberOfArgs(Option.UNLIMITED_VALUES).build());
+        sourceOptions.addOption(Option.builder().longOpt(OPT_ARTIFACTORY_MAX_DOWNLOADS).desc("Maximum number of downloads in flight. Defaults to " + DEFAULT_ARTIFACTORY_MAX_DOWNLOADS + ". The largest value of all sources also sizes the JVM-wide keep-alive cache of HTTP connections (http.maxConnections), unless that is set.").numberOfArgs(1).build());
+        sourceOptions.addOption(Option.builder().longOpt(OPT_ARTIFACTORY_BACKFILL_SLICE_HOURS).desc("Enables backfill mode: artifacts are searched by paginated AQL in time slices of given number of hours and streamed to the indexer. Suitable for initial runs against large repositories.").numberOfArgs(1).build());
+        sourceOptions.addOption(Option.builder().longOpt(OPT_ARTIFACTORY_BACKFILL_THREADS).desc("Number of time slices searched in parallel in backfill mode. Defaults to " + DEFAULT_ARTIFACTORY_BACKFILL_THREADS + ".").numberOfArgs(1).build());
+        sourceOptions.addOption(Option.builder().longOpt(OPT_ARTIFACTORY_SPOOL_DIR).desc("Directory where downloaded packages are kept, so that they are analyzed from local files and not downloaded again by later runs or for other repositories. The least recently used packages are deleted when the directory exceeds --" + OPT_ARTIFACTORY_SPOOL_MAX_MB + ".").numberOfArgs(1).build());
+        sourceOptions.addOption(Option.builder().longOpt(OPT_ARTIFACTORY_SPOOL_MAX_MB).desc("Maximum size of --" + OPT_ARTIFACTORY_SPOOL_DIR + " in MiB. Defaults to " + DEFAULT_ARTIFACTORY_SPOOL_MAX_MB + ".").numberOfArgs(1).build());
+        options.addOption(Option.builder().longOpt(OPT_ARTIFACTORY_WEBHOOK).desc("In daemon mode, receives “artifact deployed” webhooks of Artifactory on POST /artifactory-webhook (see --" + OPT_DAEMON_LISTEN + ") and indexes the deployed packages right away.").build());
+        options.addOption(Option.builder().longOpt(OPT_ARTIFACTORY_WEBHOOK_SECRET_FILE).desc("File with secret token of the webhook. If set, webhooks without it are rejected.").numberOfArgs(1).build());
+        sourceOptions.getOptions().forEach(options::addOption);
+        options.addOption(Option.builder().longOpt(OPT_SOURCES_FILE).desc("Properties file describing multiple sources, which are indexed concurrently with shared workers and DB connections. See README for the format.").numberOfArgs(1).build());
         options.addOption(Option.builder().longOpt(OPT_OUTPUT_DB_URL).required().desc("JDBC URL for storage DB").numberOfArgs(1).build());
         options.addOption(Option.builder().longOpt(OPT_OUTPUT_DB_PROPERTIES).desc("Location of file of properties for DB connection.").numberOfArgs(1).build());
+        options.addOption(Option.builder().longOpt(OPT_DB_BATCH_SIZE).desc("Approximate number of rows written in a single DB transaction. Packages are never split between transactions. Defaults to " + DEFAULT_DB_BATCH_SIZE + ".").numberOfArgs(1).build());
+        options.addOption(Option.builder().longOpt(OPT_DB_BULK_LOAD).desc("Writes rows by COPY (PostgreSQL) or LOAD DATA LOCAL INFILE (MariaDB/MySQL) into a staging table, which is merged by set-based inserts. Much faster for full reindexes. With MariaDB/MySQL, the server must allow local_infile.").build());
+        options.addOption(Option.builder().longOpt(OPT_DB_WRITERS).desc("Number of DB connections writing packages of a source in parallel. A package is always written by one of them. Defaults to 1.").numberOfArgs(1).build());
+        options.addOption(Option.builder().longOpt(OPT_WORKERS).desc("Number of threads that download and analyze packages in parallel. Defaults to the number of CPUs.").numberOfArgs(1).build());
+        options.addOption(Option.builder().longOpt(OPT_LOOKUP_LISTEN).desc("Instead of indexing, serves lookups of files by SHA-1 or MD5 over HTTP on given [host:]port. See LookupServer for the API.").numberOfArgs(1).build());
+        options.addOption(Option.builder().longOpt(OPT_LOOKUP_THREADS).desc("Number of threads (and DB connections) serving lookups. Defaults to " + DEFAULT_LOOKUP_THREADS + ".").numberOfArgs(1).build());
+        options.addOption(Option.builder().longOpt(OPT_LOOKUP_CACHE_SIZE).desc("Maximum number of digests whose lookup results are cached. Defaults to " + DEFAULT_LOOKUP_CACHE_SIZE + ".").numberOfArgs(1).build());
+        options.addOption(Option.builder().longOpt(OPT_RECONCILE).desc("Instead of indexing, removes packages that are not in the source anymore and are not in any other source. Packages indexed before this option existed are only recorded, so they can be removed by later runs.").build());
+        options.addOption(Option.builder().longOpt(OPT_RECONCILE_MAX_REMOVAL_PERCENT).desc("With --" + OPT_RECONCILE + ", nothing is removed if more than this percentage of the packages of the source would be, e.g., because a path is not mounted. Defaults to " + DEFAULT_RECONCILE_MAX_REMOVAL_PERCENT + ".").numberOfArgs(1).build());
+        options.addOption(Option.builder().longOpt(OPT_EXPORT_INDEX).desc("Instead of indexing, exports the index to given file, which can be searched by HashIndexFile without a DB.").numberOfArgs(1).build());
+        options.addOption(Option.builder().longOpt(OPT_DAEMON_INTERVAL).desc("Runs as a daemon that indexes the source repeatedly, given number of seconds after the previous pass has finished.").numberOfArgs(1).build());
+        options.addOption(Option.builder().longOpt(OPT_DAEMON_JITTER).desc("Maximum random number of seconds added to --" + OPT_DAEMON_INTERVAL + ". Defaults to a tenth of the interval.").numberOfArgs(1).build());
+        options.addOption(Option.builder().longOpt(OPT_DAEMON_LISTEN).desc("In daemon mode, listens on given [host:]port for POST /trigger, which starts a pass immediately.").numberOfArgs(1).build());
+        options.addOption(Option.builder().longOpt(OPT_METRICS_LISTEN).desc("Serves metrics of indexing in the Prometheus text format on GET /metrics on given [host:]port. In daemon mode, they are served also by --" + OPT_DAEMON_LISTEN + ".").numberOfArgs(1).build());
+        options.addOption(Option.builder().longOpt(OPT_METRICS_FILE).desc("Writes metrics of indexing in the Prometheus text format to given file every " + METRICS_FILE_INTERVAL_SECONDS + " seconds and at the end, e.g., for the textfile collector of node_exporter.").numberOfArgs(1).build());
+        options.addOption(Option.builder().longOpt(OPT_SHA256).desc("Computes also SHA-256 of files. Files that have been already indexed do not get it.").build());
     }
 
     public static void main(String[] args) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
         final CommandLineParser parser = new DefaultParser();
         final CommandLine cmd;
         final NugetSource source;
+        final List<MultiSourceIndexer.Source> sources;
+        final InetSocketAddress lookupAddress;
+        final Path exportFile;
         final Properties dbProps;
+        final int workers;
+        final int dbBatchSize;
+        final boolean bulkLoad;
+        final int dbWriters;
+        final int lookupThreads;
+        final int lookupCacheSize;
+        final int reconcileMaxRemovalPercent;
+        final int daemonIntervalSeconds;
+        final int daemonJitterSeconds;
+        final InetSocketAddress daemonAddress;
+        final InetSocketAddress metricsAddress;
+        final Path metricsFile;
+        final String webhookSecret;
         try {
             cmd = parser.parse(options, args);
             if(!cmd.getArgList().isEmpty()){
                 throw new ParseException("Unexpected extra arguments: "+ cmd.getArgList());
             }
-            LOGGER.info("Constructing nuget source…");
-            source = getNugetSource(cmd);
-            LOGGER.info("Constructed nuget source: {}", source);
+            if (cmd.hasOption(OPT_LOOKUP_LISTEN)) {
+                lookupAddress = parseListenAddress(cmd, OPT_LOOKUP_LISTEN);
+                exportFile = null;
+                source = null;
+            } else if (cmd.hasOption(OPT_EXPORT_INDEX)) {
+                lookupAddress = null;
+                exportFile = Paths.get(cmd.getOptionValue(OPT_EXPORT_INDEX));
+                source = null;
+            } else if (cmd.hasOption(OPT_SOURCES_FILE)) {
+                lookupAddress = null;
+                exportFile = null;
+                source = null;
+                if (cmd.hasOption(OPT_SOURCE_TYPE)) {
+                    throw new ParseException("--" + OPT_SOURCES_FILE + " cannot be combined with --" + OPT_SOURCE_TYPE);
+                }
+            } else {
+                lookupAddress = null;
+                exportFile = null;
+                LOGGER.info("Constructing nuget source…");
+                source = getNugetSource(cmd);
+                LOGGER.info("Constructed nuget source: {}", source);
+            }
             dbProps = parseDbProps(cmd);
+            workers = parsePositiveInt(cmd, OPT_WORKERS, Runtime.getRuntime().availableProcessors());
+            sources = source == null && lookupAddress == null && exportFile == null
+                    ? parseSourcesFile(cmd.getOptionValue(OPT_SOURCES_FILE), workers)
+                    : null;
+            if (source != null) {
+                setHttpMaxConnections(Collections.singletonList(source));
+            } else if (sources != null) {
+                setHttpMaxConnections(sources.stream().map(MultiSourceIndexer.Source::getNugetSource).collect(Collectors.toList()));
+            }
+            dbBatchSize = parsePositiveInt(cmd, OPT_DB_BATCH_SIZE, DEFAULT_DB_BATCH_SIZE);
+            bulkLoad = cmd.hasOption(OPT_DB_BULK_LOAD);
+            if (bulkLoad) {
+                // The driver sends a stream given by the indexer, not a file requested by the server.
+                dbProps.setProperty("allowLocalInfile", "true");
+            }
+            dbWriters = parsePositiveInt(cmd, OPT_DB_WRITERS, 1);
+            lookupThreads = parsePositiveInt(cmd, OPT_LOOKUP_THREADS, DEFAULT_LOOKUP_THREADS);
+            lookupCacheSize = parsePositiveInt(cmd, OPT_LOOKUP_CACHE_SIZE, DEFAULT_LOOKUP_CACHE_SIZE);
+            reconcileMaxRemovalPercent = parseNonNegativeInt(cmd, OPT_RECONCILE_MAX_REMOVAL_PERCENT, DEFAULT_RECONCILE_MAX_REMOVAL_PERCENT);
+            if (reconcileMaxRemovalPercent > 100) {
+                throw new ParseException("The value of --" + OPT_RECONCILE_MAX_REMOVAL_PERCENT + " must be at most 100: " + reconcileMaxRemovalPercent);
+            }
+            daemonIntervalSeconds = cmd.hasOption(OPT_DAEMON_INTERVAL) ? parsePositiveInt(cmd, OPT_DAEMON_INTERVAL, 0) : 0;
+            daemonJitterSeconds = parseNonNegativeInt(cmd, OPT_DAEMON_JITTER, daemonIntervalSeconds / 10);
+            daemonAddress = cmd.hasOption(OPT_DAEMON_LISTEN) ? parseListenAddress(cmd, OPT_DAEMON_LISTEN) : null;
+            metricsAddress = cmd.hasOption(OPT_METRICS_LISTEN) ? parseListenAddress(cmd, OPT_METRICS_LISTEN) : null;
+            metricsFile = cmd.hasOption(OPT_METRICS_FILE) ? Paths.get(cmd.getOptionValue(OPT_METRICS_FILE)) : null;
+            if ((metricsAddress != null || metricsFile != null) && (lookupAddress != null || exportFile != null)) {
+                throw new ParseException("--" + OPT_METRICS_LISTEN + " and --" + OPT_METRICS_FILE + " are supported for indexing only");
+            }
+            if (daemonIntervalSeconds == 0 && (cmd.hasOption(OPT_DAEMON_JITTER) || daemonAddress != null || cmd.hasOption(OPT_NEXUS_WATCH))) {
+                throw new ParseException("--" + OPT_DAEMON_JITTER + ", --" + OPT_DAEMON_LISTEN + " and --" + OPT_NEXUS_WATCH + " require --" + OPT_DAEMON_INTERVAL);
+            }
+            if (sources != null && daemonIntervalSeconds > 0) {
+                throw new ParseException("--" + OPT_SOURCES_FILE + " cannot be combined with --" + OPT_DAEMON_INTERVAL);
+            }
+            if (cmd.hasOption(OPT_RECONCILE) && (source == null || daemonIntervalSeconds > 0)) {
+                throw new ParseException("--" + OPT_RECONCILE + " requires a single source and cannot be combined with --" + OPT_DAEMON_INTERVAL);
+            }
+            if (cmd.hasOption(OPT_NEXUS_WATCH) && !(source instanceof NexusNugetSource)) {
+                throw new ParseException("--" + OPT_NEXUS_WATCH + " requires Nexus source");
+            }
+            if (cmd.hasOption(OPT_ARTIFACTORY_WEBHOOK) && (daemonAddress == null || !(source instanceof ArtifactoryNugetSource))) {
+                throw new ParseException("--" + OPT_ARTIFACTORY_WEBHOOK + " requires Artifactory source and --" + OPT_DAEMON_LISTEN);
+            }
+            webhookSecret = cmd.hasOption(OPT_ARTIFACTORY_WEBHOOK_SECRET_FILE) ? readFirstLine(cmd.getOptionValue(OPT_ARTIFACTORY_WEBHOOK_SECRET_FILE), "webhook secret") : null;
+            if (cmd.hasOption(OPT_SHA256)) {
+                Hashing.setAlgorithms(EnumSet.allOf(Hashing.Algorithm.class));
+            }
         } catch (ParseException e) {
             System.err.println("Bad parameters: " + e.getMessage());
             help(System.err);
@@ -63,7 +229,36 @@ public class IndexerMain {
             return; // satisfy compiler
         }
         try{
-            index(source, cmd.getOptionValue(OPT_OUTPUT_DB_URL), dbProps);
+            if (lookupAddress != null) {
+                serveLookups(lookupAddress, cmd.getOptionValue(OPT_OUTPUT_DB_URL), dbProps, lookupThreads, lookupCacheSize);
+            } else if (exportFile != null) {
+                exportIndex(exportFile, cmd.getOptionValue(OPT_OUTPUT_DB_URL), dbProps);
+            } else if (cmd.hasOption(OPT_RECONCILE)) {
+                reconcile(source, cmd.getOptionValue(OPT_OUTPUT_DB_URL), dbProps, dbBatchSize, reconcileMaxRemovalPercent);
+            } else {
+                Metrics.registerMBean();
+                final HttpServer metricsServer = metricsAddress != null ? Metrics.serve(metricsAddress) : null;
+                final Metrics.FileExporter metricsExporter = metricsFile != null
+                        ? new Metrics.FileExporter(metricsFile, TimeUnit.SECONDS.toMillis(METRICS_FILE_INTERVAL_SECONDS))
+                        : null;
+                try {
+                    if (sources != null) {
+                        indexSources(sources, cmd.getOptionValue(OPT_OUTPUT_DB_URL), dbProps, workers, dbBatchSize, bulkLoad, dbWriters);
+                    } else if (daemonIntervalSeconds > 0) {
+                        runDaemon(source, cmd.getOptionValue(OPT_OUTPUT_DB_URL), dbProps, workers, dbBatchSize, bulkLoad, dbWriters,
+                                TimeUnit.SECONDS.toMillis(daemonIntervalSeconds), TimeUnit.SECONDS.toMillis(daemonJitterSeconds), daemonAddress, cmd.hasOption(OPT_NEXUS_WATCH), cmd.hasOption(OPT_ARTIFACTORY_WEBHOOK), webhookSecret);
+                    } else {
+                        index(source, cmd.getOptionValue(OPT_OUTPUT_DB_URL), dbProps, workers, dbBatchSize, bulkLoad, dbWriters);
+                    }
+                } finally {
+                    if (metricsServer != null) {
+                        metricsServer.stop(0);
+                    }
+                    if (metricsExporter != null) {
+                        metricsExporter.close();
+                    }
+                }
+            }
         }catch (SQLException e){
             System.err.println("SQL Exception(s):");
             for(SQLException sqlException = e; sqlException != null; sqlException = sqlException.getNextException()){
@@ -86,30 +281,188 @@ public class IndexerMain {
         return dbProps;
     }
 
+    private static int parsePositiveInt(CommandLine cmd, String option, int defaultValue) throws ParseException {
+        final int parsed = parseNonNegativeInt(cmd, option, defaultValue);
+        if (parsed < 1) {
+            throw new ParseException("The value of --" + option + " must be positive: " + parsed);
+        }
+        return parsed;
+    }
+
+    private static int parseNonNegativeInt(CommandLine cmd, String option, int defaultValue) throws ParseException {
+        final String value = cmd.getOptionValue(option);
+        if (value == null) {
+            return defaultValue;
+        }
+        final int parsed;
+        try {
+            parsed = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new ParseException("Bad number for --" + option + ": " + value);
+        }
+        if (parsed < 0) {
+            throw new ParseException("The value of --" + option + " must not be negative: " + value);
+        }
+        return parsed;
+    }
+
+    private static InetSocketAddress parseListenAddress(CommandLine cmd, String option) throws ParseException {
+        final String value = cmd.getOptionValue(option);
+        final int colon = value.lastIndexOf(':');
+        try {
+            final int port = Integer.parseInt(value.substring(colon + 1));
+            return colon == -1 ? new InetSocketAddress(port) : new InetSocketAddress(value.substring(0, colon), port);
+        } catch (IllegalArgumentException e) {
+            throw new ParseException("Bad address for --" + option + ": " + value);
+        }
+    }
+
     private static NugetSource getNugetSource(CommandLine cmd) throws ParseException {
         final String sourceType = cmd.getOptionValue(OPT_SOURCE_TYPE);
+        if (sourceType == null) {
+            throw new ParseException("Missing required option: " + OPT_SOURCE_TYPE);
+        }
         switch (sourceType) {
             case "nexus":
-                return new NexusNugetSource(parsePaths(cmd.getOptionValue(OPT_NEXUS_NUGET_PATH)), cmd.getOptionValue(OPT_NEXUS_SERVER_ID));
-            case "artifactory":
-                final String password;
-                try (BufferedReader reader = new BufferedReader(new FileReader(cmd.getOptionValue(OPT_ARTIFACTORY_PASSFILE)))) {
-                    password = reader.readLine();
-                } catch (IOException e) {
-                    throw new ParseException("Error when reading password file for artifactory: "+e.getMessage());
+                if (!cmd.hasOption(OPT_NEXUS_NUGET_PATH) || !cmd.hasOption(OPT_NEXUS_SERVER_ID)) {
+                    throw new ParseException("Nexus source requires --" + OPT_NEXUS_NUGET_PATH + " and --" + OPT_NEXUS_SERVER_ID);
                 }
+                return new NexusNugetSource(parsePaths(cmd.getOptionValue(OPT_NEXUS_NUGET_PATH)), cmd.getOptionValue(OPT_NEXUS_SERVER_ID),
+                        parsePositiveInt(cmd, OPT_NEXUS_SCAN_THREADS, DEFAULT_NEXUS_SCAN_THREADS), parseSet(cmd, OPT_NEXUS_EXCLUDE));
+            case "artifactory":
+                final String password = readFirstLine(cmd.getOptionValue(OPT_ARTIFACTORY_PASSFILE), "password file for artifactory");
                 final String username = cmd.getOptionValue(OPT_ARTIFACTORY_USERNAME);
                 final String[] repositories = cmd.getOptionValues(OPT_ARTIFACTORY_REPOSITORY);
                 if(repositories == null){
                     throw new ParseException("Please specify at least one repository.");
                 }
-                final TreeSet<String> exclusions = new TreeSet<>(asList(Optional.ofNullable(cmd.getOptionValues(OPT_ARTIFACTORY_EXCLUDE)).orElseGet(() -> new String[0])));
-                return new ArtifactoryNugetSource(cmd.getOptionValue(OPT_ARTIFACTORY_URL), username, password, Arrays.asList(repositories), exclusions);
+                final TreeSet<String> exclusions = parseSet(cmd, OPT_ARTIFACTORY_EXCLUDE);
+                final long backfillSliceMillis = cmd.hasOption(OPT_ARTIFACTORY_BACKFILL_SLICE_HOURS)
+                        ? TimeUnit.HOURS.toMillis(parsePositiveInt(cmd, OPT_ARTIFACTORY_BACKFILL_SLICE_HOURS, 0))
+                        : 0;
+                final Path spoolDirectory = cmd.hasOption(OPT_ARTIFACTORY_SPOOL_DIR) ? Paths.get(cmd.getOptionValue(OPT_ARTIFACTORY_SPOOL_DIR)) : null;
+                final long spoolMaxBytes = (long) parsePositiveInt(cmd, OPT_ARTIFACTORY_SPOOL_MAX_MB, DEFAULT_ARTIFACTORY_SPOOL_MAX_MB) << 20;
+                return new ArtifactoryNugetSource(cmd.getOptionValue(OPT_ARTIFACTORY_URL), username, password, Arrays.asList(repositories), exclusions,
+                        parsePositiveInt(cmd, OPT_ARTIFACTORY_MAX_DOWNLOADS, DEFAULT_ARTIFACTORY_MAX_DOWNLOADS),
+                        backfillSliceMillis, parsePositiveInt(cmd, OPT_ARTIFACTORY_BACKFILL_THREADS, DEFAULT_ARTIFACTORY_BACKFILL_THREADS),
+                        spoolDirectory, spoolMaxBytes);
             default:
                 throw new ParseException("Unknown source type: " + sourceType);
         }
     }
 
+    /**
+     * Reads sources from a properties file like this:
+     *
+     * <pre>
+     * sources = main legacy
+     * main.source-type = artifactory
+     * main.artifactory-repository = nuget-local nuget-remote
+     * main.workers = 4
+     * legacy.source-type = nexus
+     * …
+     * </pre>
+     *
+     * The keys are the source options (e.g., --artifactory-url) prefixed by the source name. Values of options that can
+     * be used multiple times are separated by whitespace, flags have value true or false. The workers key limits the
+     * number of packages of the source that are analyzed or waiting for the shared workers (the number of workers by
+     * default), so that a large source does not starve the others.
+     */
+    static List<MultiSourceIndexer.Source> parseSourcesFile(String file, int workers) throws ParseException {
+        final Properties properties = new Properties();
+        try (final FileInputStream inputStream = new FileInputStream(file)) {
+            properties.load(inputStream);
+        } catch (IOException e) {
+            throw new ParseException("Error when loading sources file: " + e.getMessage());
+        }
+        final String names = properties.getProperty(SOURCES_PROPERTY, "").trim();
+        if (names.isEmpty()) {
+            throw new ParseException("No sources listed in property “" + SOURCES_PROPERTY + "” of " + file);
+        }
+        final Set<String> unusedKeys = new TreeSet<>(properties.stringPropertyNames());
+        unusedKeys.remove(SOURCES_PROPERTY);
+        final List<MultiSourceIndexer.Source> sources = new ArrayList<>();
+        final Map<String, String> namesByHash = new HashMap<>();
+        for (final String name : new LinkedHashSet<>(asList(names.split("\\s+")))) {
+            final List<String> args = new ArrayList<>();
+            int sourceWorkers = workers;
+            for (final String key : properties.stringPropertyNames()) {
+                if (!key.startsWith(name + ".")) {
+                    continue;
+                }
+                unusedKeys.remove(key);
+                final String optionName = key.substring(name.length() + 1);
+                final String value = properties.getProperty(key).trim();
+                if (optionName.equals(OPT_WORKERS)) {
+                    try {
+                        sourceWorkers = Integer.parseInt(value);
+                    } catch (NumberFormatException e) {
+                        throw new ParseException("Bad number for " + key + ": " + value);
+                    }
+                    if (sourceWorkers < 1) {
+                        throw new ParseException("The value of " + key + " must be positive: " + value);
+                    }
+                    continue;
+                }
+                final Option option = sourceOptions.getOption(optionName);
+                if (option == null) {
+                    throw new ParseException("Unknown option of source " + name + ": " + optionName);
+                }
+                if (option.hasArgs()) {
+                    args.add("--" + optionName);
+                    args.addAll(asList(value.split("\\s+")));
+                } else if (option.hasArg()) {
+                    args.add("--" + optionName);
+                    args.add(value);
+                } else if (Boolean.parseBoolean(value)) {
+                    args.add("--" + optionName);
+                }
+            }
+            final NugetSource source;
+            try {
+                source = getNugetSource(new DefaultParser().parse(sourceOptions, args.toArray(new String[0])));
+            } catch (ParseException e) {
+                throw new ParseException("Bad options of source " + name + ": " + e.getMessage());
+            }
+            final String previous = namesByHash.putIfAbsent(source.getHash(), name);
+            if (previous != null) {
+                throw new ParseException("Sources " + previous + " and " + name + " are the same, they would overwrite each other's state");
+            }
+            LOGGER.info("Constructed nuget source {}: {}", name, source);
+            sources.add(new MultiSourceIndexer.Source(name, source, sourceWorkers));
+        }
+        if (!unusedKeys.isEmpty()) {
+            throw new ParseException("Properties of unlisted sources in " + file + ": " + unusedKeys);
+        }
+        return sources;
+    }
+
+    private static String readFirstLine(String file, String what) throws ParseException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            return reader.readLine();
+        } catch (IOException e) {
+            throw new ParseException("Error when reading " + what + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sizes the keep-alive cache of HttpURLConnection, which is used by {@link ArtifactoryDownloader} and shared by all
+     * the sources, for the largest number of downloads. It has to be set before the first use of HttpURLConnection.
+     */
+    private static void setHttpMaxConnections(List<NugetSource> nugetSources) {
+        final OptionalInt maxDownloads = nugetSources.stream()
+                .filter(ArtifactoryNugetSource.class::isInstance)
+                .mapToInt(nugetSource -> ((ArtifactoryNugetSource) nugetSource).getMaxDownloads())
+                .max();
+        if (maxDownloads.isPresent() && System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", Integer.toString(maxDownloads.getAsInt()));
+        }
+    }
+
+    private static TreeSet<String> parseSet(CommandLine cmd, String option) {
+        return new TreeSet<>(asList(Optional.ofNullable(cmd.getOptionValues(option)).orElseGet(() -> new String[0])));
+    }
+
     private static void help(PrintStream out) {
         help(new PrintWriter(out, true));
     }
@@ -131,22 +484,152 @@ public class IndexerMain {
         return asList(pathString.split(Pattern.quote(File.pathSeparator)));
     }
 
-    private static void index(NugetSource source, String connString, Properties dbProps) throws IOException, SQLException {
+    private static void registerDrivers() throws SQLException {
         if(!org.postgresql.Driver.isRegistered()){
             org.postgresql.Driver.register();
         }
         org.mariadb.jdbc.Driver.class.getName();
-        try (Connection dbh = DriverManager.getConnection(connString, updatedProps(dbProps))) {
-            final NugetMetadataStore nugetMetadataStore = NugetMetadataStore.open(dbh, source.getHash());
+    }
+
+    private static void index(NugetSource source, String connString, Properties dbProps, int workers, int dbBatchSize, boolean bulkLoad, int dbWriters) throws IOException, SQLException {
+        registerDrivers();
+        try (Connection dbh = DriverManager.getConnection(connString, updatedProps(dbProps));
+             ConnectionPool writerConnections = new ConnectionPool(connString, updatedProps(dbProps))) {
+            final NugetMetadataStore nugetMetadataStore = NugetMetadataStore.open(dbh, source.getHash(), dbBatchSize, bulkLoad);
             final long lastModifiedTime = nugetMetadataStore.getLastModifiedTime();
-            final Indexer indexer = new Indexer(nugetMetadataStore);
-            LOGGER.info("Start indexing {}…", source);
-            source.index(lastModifiedTime, indexer);
+            LOGGER.info("Start indexing {} with {} workers and {} DB writers…", source, workers, dbWriters);
+            // The additional writers get their own connections, the first one uses dbh.
+            try (Indexer indexer = new Indexer(nugetMetadataStore, workers, writerConnections, dbWriters)) {
+                source.index(lastModifiedTime, indexer);
+                indexer.finish();
+            }
             nugetMetadataStore.finish();
             LOGGER.info("Finished indexing {}…", source);
         }
     }
 
+    private static void indexSources(List<MultiSourceIndexer.Source> sources, String connString, Properties dbProps, int workers, int dbBatchSize, boolean bulkLoad, int dbWriters) throws IOException, SQLException, InterruptedException {
+        registerDrivers();
+        try (ConnectionPool connectionPool = new ConnectionPool(connString, updatedProps(dbProps))) {
+            LOGGER.info("Start indexing {} sources with {} shared workers…", sources.size(), workers);
+            new MultiSourceIndexer(sources, connectionPool, workers, dbBatchSize, bulkLoad, dbWriters).index();
+            LOGGER.info("Finished indexing {} sources", sources.size());
+        }
+    }
+
+    private static void runDaemon(NugetSource source, String connString, Properties dbProps, int workers, int dbBatchSize, boolean bulkLoad, int dbWriters,
+                                  long intervalMillis, long jitterMillis, InetSocketAddress address, boolean watch,
+                                  boolean webhook, String webhookSecret) throws IOException, SQLException, InterruptedException {
+        registerDrivers();
+        try (ConnectionPool connectionPool = new ConnectionPool(connString, updatedProps(dbProps))) {
+            final IndexerDaemon daemon = new IndexerDaemon(source, connectionPool, workers, dbBatchSize, bulkLoad, dbWriters, intervalMillis, jitterMillis);
+            // Register the watches before the first pass, so that no package falls in between.
+            final NexusWatcher watcher = watch ? new NexusWatcher((NexusNugetSource) source, NexusWatcher.DEFAULT_DEBOUNCE_MILLIS, new NexusWatcher.Listener() {
+                @Override
+                public void packagesArrived(List<Path> files) {
+                    daemon.runPartialPass(files.size() + " watched files", indexer -> ((NexusNugetSource) source).indexFiles(files, indexer));
+                }
+
+                @Override
+                public void eventsLost() {
+                    daemon.trigger();
+                }
+            }) : null;
+            final CountDownLatch stopped = new CountDownLatch(1);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    if (watcher != null) {
+                        watcher.close();
+                    }
+                } catch (IOException e) {
+                    LOGGER.warn("Cannot stop the watcher", e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                try {
+                    daemon.close();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                stopped.countDown();
+            }));
+            if (address != null) {
+                daemon.listen(address);
+                daemon.addHandler("/metrics", Metrics.handler());
+            }
+            if (webhook) {
+                final ArtifactoryNugetSource artifactorySource = (ArtifactoryNugetSource) source;
+                daemon.addHandler("/artifactory-webhook", new ArtifactoryWebhookReceiver(artifactorySource::accepts, webhookSecret, ArtifactoryWebhookReceiver.DEFAULT_MAX_QUEUED, new ArtifactoryWebhookReceiver.Listener() {
+                    @Override
+                    public void artifactsQueued(ArtifactoryWebhookReceiver receiver) {
+                        daemon.runPartialPass("deployed artifacts", indexer -> artifactorySource.indexArtifacts(receiver.drain(), indexer));
+                    }
+
+                    @Override
+                    public void queueOverflowed() {
+                        daemon.trigger();
+                    }
+                }));
+            }
+            if (watcher != null) {
+                watcher.start();
+            }
+            daemon.start();
+            stopped.await();
+        }
+    }
+
+    private static void serveLookups(InetSocketAddress address, String connString, Properties dbProps, int threads, int cacheSize) throws IOException, SQLException, InterruptedException {
+        registerDrivers();
+        final List<Connection> connections = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            connections.add(DriverManager.getConnection(connString, updatedProps(dbProps)));
+        }
+        try (DbHashResolver resolver = new DbHashResolver(connections)) {
+            final HashLookup lookup = new HashLookup(resolver, cacheSize);
+            lookup.checkGeneration();
+            final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+            scheduler.scheduleWithFixedDelay(() -> {
+                try {
+                    lookup.checkGeneration();
+                } catch (SQLException e) {
+                    LOGGER.warn("Cannot check if the index has changed", e);
+                }
+            }, LOOKUP_GENERATION_CHECK_SECONDS, LOOKUP_GENERATION_CHECK_SECONDS, TimeUnit.SECONDS);
+            final LookupServer server = new LookupServer(address, lookup, threads);
+            final CountDownLatch stopped = new CountDownLatch(1);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                server.close();
+                scheduler.shutdownNow();
+                stopped.countDown();
+            }));
+            server.start();
+            stopped.await();
+        }
+    }
+
+    private static void exportIndex(Path target, String connString, Properties dbProps) throws IOException, SQLException {
+        registerDrivers();
+        try (Connection dbh = DriverManager.getConnection(connString, updatedProps(dbProps))) {
+            HashIndexExporter.export(dbh, target);
+        }
+    }
+
+    private static void reconcile(NugetSource source, String connString, Properties dbProps, int dbBatchSize, int maxRemovalPercent) throws IOException, SQLException {
+        registerDrivers();
+        try (Connection readDbh = DriverManager.getConnection(connString, updatedProps(dbProps));
+             Connection writeDbh = DriverManager.getConnection(connString, updatedProps(dbProps))) {
+            NugetMetadataStore.updateSchema(writeDbh);
+            LOGGER.info("Start reconciling {}…", source);
+            final Reconciler reconciler = new Reconciler(readDbh, writeDbh, source.getHash(), dbBatchSize, maxRemovalPercent);
+            if (source instanceof ArtifactoryNugetSource) {
+                reconciler.reconcileChecksums(((ArtifactoryNugetSource) source)::listChecksums);
+            } else {
+                reconciler.reconcile(((NexusNugetSource) source)::listPackages);
+            }
+        }
+    }
+
     private static Properties updatedProps(Properties dbProps) {
         final Properties clone = (Properties) dbProps.clone();
         clone.put("allowMultiQueries", "true");
@@ -0,0 +1,209 @@
+package com.ysoft.security;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * HTTP interface of {@link HashLookup}.
+ *
+ * <ul>
+ *     <li>GET /lookup?sha1=…&amp;md5=… – the parameters can be repeated</li>
+ *     <li>POST /lookup with body {"sha1": ["…", …], "md5": ["…", …]}</li>
+ * </ul>
+ *
+ * Both return {"sha1": {"&lt;digest&gt;": [{"name": …, "version": …, "file_name": …}, …], …}, "md5": {…}} with an entry
+ * for every requested digest, in the form it has been requested.
+ */
+public class LookupServer implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LookupServer.class);
+
+    static final int MAX_DIGESTS_PER_REQUEST = 10000;
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final HashLookup lookup;
+
+    private final HttpServer server;
+
+    private final ExecutorService executor;
+
+    public LookupServer(InetSocketAddress address, HashLookup lookup, int threads) throws IOException {
+        this.lookup = lookup;
+        this.server = HttpServer.create(address, 0);
+        this.executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.createContext("/lookup", this::handle);
+    }
+
+    public void start() {
+        server.start();
+        LOGGER.info("Listening on {}", server.getAddress());
+    }
+
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            final Map<Hashing.Algorithm, Set<String>> request;
+            switch (exchange.getRequestMethod()) {
+                case "GET":
+                    request = parseQuery(exchange.getRequestURI().getRawQuery());
+                    break;
+                case "POST":
+                    try (InputStream in = exchange.getRequestBody()) {
+                        request = parseBody(in);
+                    }
+                    break;
+                default:
+                    exchange.getResponseHeaders().add("Allow", "GET, POST");
+                    sendError(exchange, 405, "Method not allowed");
+                    return;
+            }
+            final Set<String> sha1s = request.get(Hashing.Algorithm.SHA1);
+            final Set<String> md5s = request.get(Hashing.Algorithm.MD5);
+            if (sha1s.size() + md5s.size() > MAX_DIGESTS_PER_REQUEST) {
+                sendError(exchange, 413, "At most " + MAX_DIGESTS_PER_REQUEST + " digests can be requested at once");
+                return;
+            }
+            final Map<String, List<HashLookup.Match>> results = lookup.lookup(sha1s, md5s);
+            LOGGER.debug("Looked up {} SHA-1 and {} MD5 digests", sha1s.size(), md5s.size());
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream out = exchange.getResponseBody(); JsonGenerator json = JSON_FACTORY.createGenerator(out, JsonEncoding.UTF8)) {
+                json.writeStartObject();
+                writeResults(json, Hashing.Algorithm.SHA1, sha1s, results);
+                writeResults(json, Hashing.Algorithm.MD5, md5s, results);
+                json.writeEndObject();
+            }
+        } catch (BadRequestException e) {
+            sendError(exchange, 400, e.getMessage());
+        } catch (SQLException e) {
+            LOGGER.error("Lookup failed", e);
+            sendError(exchange, 500, "Lookup failed");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void writeResults(JsonGenerator json, Hashing.Algorithm algorithm, Set<String> hexDigests, Map<String, List<HashLookup.Match>> results) throws IOException {
+        json.writeObjectFieldStart(algorithm.getName());
+        for (final String hex : hexDigests) {
+            json.writeArrayFieldStart(hex);
+            for (final HashLookup.Match match : results.get(HashLookup.key(algorithm, hex))) {
+                json.writeStartObject();
+                json.writeStringField("name", match.getName());
+                json.writeStringField("version", match.getVersion());
+                json.writeStringField("file_name", match.getFileName());
+                json.writeEndObject();
+            }
+            json.writeEndArray();
+        }
+        json.writeEndObject();
+    }
+
+    private static Map<Hashing.Algorithm, Set<String>> parseQuery(String rawQuery) throws BadRequestException, UnsupportedEncodingException {
+        final Map<Hashing.Algorithm, Set<String>> request = emptyRequest();
+        if (rawQuery != null) {
+            for (final String parameter : rawQuery.split("&")) {
+                final int eq = parameter.indexOf('=');
+                if (eq == -1) {
+                    throw new BadRequestException("Bad parameter: " + parameter);
+                }
+                addDigest(request, URLDecoder.decode(parameter.substring(0, eq), "UTF-8"), URLDecoder.decode(parameter.substring(eq + 1), "UTF-8"));
+            }
+        }
+        return request;
+    }
+
+    private static Map<Hashing.Algorithm, Set<String>> parseBody(InputStream in) throws IOException, BadRequestException {
+        final Map<Hashing.Algorithm, Set<String>> request = emptyRequest();
+        try (JsonParser parser = JSON_FACTORY.createParser(in)) {
+            expect(parser.nextToken(), JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String algorithm = parser.getCurrentName();
+                expect(parser.nextToken(), JsonToken.START_ARRAY);
+                JsonToken token;
+                while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                    expect(token, JsonToken.VALUE_STRING);
+                    addDigest(request, algorithm, parser.getText());
+                }
+            }
+        } catch (JsonParseException e) {
+            throw new BadRequestException("Bad JSON: " + e.getOriginalMessage());
+        }
+        return request;
+    }
+
+    private static Map<Hashing.Algorithm, Set<String>> emptyRequest() {
+        final Map<Hashing.Algorithm, Set<String>> request = new EnumMap<>(Hashing.Algorithm.class);
+        request.put(Hashing.Algorithm.SHA1, new LinkedHashSet<>());
+        request.put(Hashing.Algorithm.MD5, new LinkedHashSet<>());
+        return request;
+    }
+
+    private static void addDigest(Map<Hashing.Algorithm, Set<String>> request, String algorithm, String hex) throws BadRequestException {
+        final int length;
+        switch (algorithm) {
+            case "sha1":
+                length = 40;
+                break;
+            case "md5":
+                length = 32;
+                break;
+            default:
+                throw new BadRequestException("Unsupported digest: " + algorithm);
+        }
+        if (hex.length() != length || !hex.matches("[0-9a-fA-F]*")) {
+            throw new BadRequestException("Bad " + algorithm + " digest: " + hex);
+        }
+        request.get(algorithm.equals("sha1") ? Hashing.Algorithm.SHA1 : Hashing.Algorithm.MD5).add(hex);
+    }
+
+    private static void expect(JsonToken actual, JsonToken expected) throws BadRequestException {
+        if (actual != expected) {
+            throw new BadRequestException("Bad request: expected " + expected + ", got " + actual);
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        final byte[] body = (message + "\n").getBytes("UTF-8");
+        exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(1);
+        executor.shutdown();
+    }
+
+    private static class BadRequestException extends Exception {
+        BadRequestException(String message) {
+            super(message);
+        }
+    }
+}
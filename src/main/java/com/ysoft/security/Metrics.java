@@ -0,0 +1,451 @@
+package com.ysoft.security;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide metrics of the indexing stages, so that it can be seen which stage limits the throughput. They can be
+ * exported in the Prometheus text format (by {@link #handler()} or {@link #writeFile(Path)}) and by JMX (see
+ * {@link #registerMBean()}).
+ * <p>
+ * Streamed downloads are unzipped while they are being downloaded, so the unzip time includes the time spent waiting
+ * for the network. The pure inflation time is roughly the difference of the unzip and download read times.
+ */
+public final class Metrics {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Metrics.class);
+
+    private static final String PREFIX = "nuget_indexer_";
+
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private static final double[] LATENCY_BUCKETS = {0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 60};
+
+    private static final List<Metric> METRICS = new CopyOnWriteArrayList<>();
+
+    public static final Counter DOWNLOADS = register(new Counter("downloads_total", "Artifacts downloaded from Artifactory.", false));
+    public static final Counter DOWNLOAD_BYTES = register(new Counter("download_bytes_total", "Bytes downloaded from Artifactory.", false));
+    public static final Counter DOWNLOAD_READ_TIME = register(new Counter("download_read_seconds_total", "Time spent waiting for downloaded data.", true));
+    public static final Histogram DOWNLOAD_RESPONSE_TIME = register(new Histogram("download_response_seconds", "Time until the response headers of a download arrive."));
+    public static final Gauge DOWNLOADS_IN_FLIGHT = register(new Gauge("downloads_in_flight", "Downloads started and not finished yet."));
+    public static final Counter SPOOL_HITS = register(new Counter("spool_hits_total", "Downloads avoided, because the package has been found in the spool.", false));
+    public static final Gauge SPOOL_BYTES = register(new Gauge("spool_bytes", "Size of packages in the spool."));
+
+    public static final Histogram PACKAGE_ANALYSIS_TIME = register(new Histogram("package_analysis_seconds", "Time of analysis of a single package, including unzipping and hashing."));
+    public static final Counter UNZIPPED_BYTES = register(new Counter("unzipped_bytes_total", "Bytes of ZIP entries read.", false));
+    public static final Counter UNZIP_TIME = register(new Counter("unzip_seconds_total", "Time spent reading ZIP entries, including reading the compressed data.", true));
+    public static final Counter HASHED_BYTES = register(new Counter("hashed_bytes_total", "Bytes hashed.", false));
+    public static final Counter HASH_TIME = register(new Counter("hash_seconds_total", "Time spent hashing, from a reset of the hasher to the digests, i.e., including reading the hashed data (e.g., unzip_seconds_total).", true));
+    public static final Counter PACKAGES_SKIPPED = register(new Counter("packages_skipped_total", "Packages skipped, because an identical package has been already indexed.", false));
+    public static final Gauge PENDING_PACKAGES = register(new Gauge("pending_packages", "Packages analyzed by workers or waiting for them."));
+
+    public static final Gauge WRITE_QUEUE_DEPTH = register(new Gauge("write_queue_depth", "Analyzed packages waiting for the writer."));
+    public static final Counter PACKAGES_STORED = register(new Counter("packages_stored_total", "Packages passed to the DB.", false));
+    public static final Counter DB_ROWS = register(new Counter("db_rows_total", "File rows passed to the DB.", false));
+    public static final Histogram DB_FLUSH_TIME = register(new Histogram("db_flush_seconds", "Time of writing and committing a batch of rows."));
+
+    private Metrics() {
+    }
+
+    private static <T extends Metric> T register(T metric) {
+        METRICS.add(metric);
+        return metric;
+    }
+
+    abstract static class Metric {
+        final String name;
+        final String help;
+
+        Metric(String name, String help) {
+            this.name = PREFIX + name;
+            this.help = help;
+        }
+
+        abstract String type();
+
+        abstract void writeSamples(StringBuilder out);
+
+        abstract void putAttributes(Map<String, Object> attributes);
+
+        void write(StringBuilder out) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(type()).append('\n');
+            writeSamples(out);
+        }
+    }
+
+    /**
+     * Monotonic counter. Time counters are incremented in nanoseconds and exported in seconds.
+     */
+    public static final class Counter extends Metric {
+        private final LongAdder value = new LongAdder();
+        private final boolean nanos;
+
+        Counter(String name, String help, boolean nanos) {
+            super(name, help);
+            this.nanos = nanos;
+        }
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        Number get() {
+            if (nanos) {
+                return value.sum() / NANOS_PER_SECOND;
+            }
+            return value.sum();
+        }
+
+        @Override
+        String type() {
+            return "counter";
+        }
+
+        @Override
+        void writeSamples(StringBuilder out) {
+            out.append(name).append(' ').append(get()).append('\n');
+        }
+
+        @Override
+        void putAttributes(Map<String, Object> attributes) {
+            attributes.put(name, get());
+        }
+    }
+
+    public static final class Gauge extends Metric {
+        private final LongAdder value = new LongAdder();
+
+        Gauge(String name, String help) {
+            super(name, help);
+        }
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void decrement() {
+            value.decrement();
+        }
+
+        public void add(long delta) {
+            value.add(delta);
+        }
+
+        long get() {
+            return value.sum();
+        }
+
+        @Override
+        String type() {
+            return "gauge";
+        }
+
+        @Override
+        void writeSamples(StringBuilder out) {
+            out.append(name).append(' ').append(get()).append('\n');
+        }
+
+        @Override
+        void putAttributes(Map<String, Object> attributes) {
+            attributes.put(name, get());
+        }
+    }
+
+    /**
+     * Latency histogram with fixed buckets.
+     */
+    public static final class Histogram extends Metric {
+        private final long[] bucketBounds = new long[LATENCY_BUCKETS.length]; // in nanoseconds
+        private final LongAdder[] buckets = new LongAdder[LATENCY_BUCKETS.length + 1]; // not cumulative, the last one is +Inf
+        private final LongAdder sum = new LongAdder();
+
+        Histogram(String name, String help) {
+            super(name, help);
+            for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+                bucketBounds[i] = (long) (LATENCY_BUCKETS[i] * NANOS_PER_SECOND);
+            }
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * @param startNanos value of {@link System#nanoTime()} at the start of the measured operation
+         */
+        public void observeSince(long startNanos) {
+            observe(System.nanoTime() - startNanos);
+        }
+
+        void observe(long nanos) {
+            int i = 0;
+            while (i < bucketBounds.length && nanos > bucketBounds[i]) {
+                i++;
+            }
+            buckets[i].increment();
+            sum.add(nanos);
+        }
+
+        @Override
+        String type() {
+            return "histogram";
+        }
+
+        @Override
+        void writeSamples(StringBuilder out) {
+            long count = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                count += buckets[i].sum();
+                out.append(name).append("_bucket{le=\"").append(i < LATENCY_BUCKETS.length ? String.valueOf(LATENCY_BUCKETS[i]) : "+Inf").append("\"} ")
+                        .append(count).append('\n');
+            }
+            out.append(name).append("_sum ").append(sum.sum() / NANOS_PER_SECOND).append('\n');
+            out.append(name).append("_count ").append(count).append('\n');
+        }
+
+        @Override
+        void putAttributes(Map<String, Object> attributes) {
+            long count = 0;
+            for (final LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            attributes.put(name + "_count", count);
+            attributes.put(name + "_sum", sum.sum() / NANOS_PER_SECOND);
+        }
+    }
+
+    /**
+     * Counts bytes read and the time spent reading them.
+     */
+    static final class MeteredInputStream extends FilterInputStream {
+        private final Counter bytes;
+        private final Counter time;
+
+        MeteredInputStream(InputStream in, Counter bytes, Counter time) {
+            super(in);
+            this.bytes = bytes;
+            this.time = time;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final long start = System.nanoTime();
+            final int b = super.read();
+            time.add(System.nanoTime() - start);
+            if (b != -1) {
+                bytes.increment();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final long start = System.nanoTime();
+            final int count = super.read(b, off, len);
+            time.add(System.nanoTime() - start);
+            if (count > 0) {
+                bytes.add(count);
+            }
+            return count;
+        }
+    }
+
+    /**
+     * All the metrics in the Prometheus text format.
+     */
+    public static String toText() {
+        final StringBuilder out = new StringBuilder();
+        for (final Metric metric : METRICS) {
+            metric.write(out);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Serves GET /metrics in the Prometheus text format.
+     */
+    public static HttpHandler handler() {
+        return Metrics::handle;
+    }
+
+    private static void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.getResponseHeaders().add("Allow", "GET");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            final byte[] body = toText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Writes the metrics for the textfile collector of node_exporter. The file is replaced atomically, so that the
+     * collector never reads it half-written.
+     */
+    public static void writeFile(Path target) throws IOException {
+        final Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        Files.write(tmp, toText().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Serves the metrics on GET /metrics by a server of its own, e.g., for batch runs.
+     */
+    public static HttpServer serve(InetSocketAddress address) throws IOException {
+        final HttpServer server = HttpServer.create(address, 0);
+        server.createContext("/metrics", handler());
+        server.start();
+        LOGGER.info("Serving metrics on {}", server.getAddress());
+        return server;
+    }
+
+    /**
+     * Rewrites the file periodically and once more when closed, so that it contains also the final values of a batch
+     * run.
+     */
+    public static final class FileExporter implements AutoCloseable {
+        private final Path target;
+        private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "nuget-index-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        public FileExporter(Path target, long intervalMillis) {
+            this.target = target;
+            scheduler.scheduleWithFixedDelay(this::write, 0, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+
+        private void write() {
+            try {
+                writeFile(target);
+            } catch (IOException e) {
+                LOGGER.warn("Cannot write metrics to {}", target, e);
+            }
+        }
+
+        @Override
+        public void close() throws InterruptedException {
+            scheduler.shutdown();
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+            write();
+        }
+    }
+
+    /**
+     * Exposes the metrics as attributes of MBean com.ysoft.security:type=NugetIndexerMetrics. Histograms are exposed
+     * by their counts and sums only.
+     */
+    public static void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), new ObjectName("com.ysoft.security:type=NugetIndexerMetrics"));
+        } catch (InstanceAlreadyExistsException e) {
+            LOGGER.debug("The metrics MBean has been already registered");
+        } catch (JMException e) {
+            LOGGER.warn("Cannot register the metrics MBean", e);
+        }
+    }
+
+    private static Map<String, Object> attributes() {
+        final Map<String, Object> attributes = new LinkedHashMap<>();
+        for (final Metric metric : METRICS) {
+            metric.putAttributes(attributes);
+        }
+        return attributes;
+    }
+
+    private static final class MetricsMBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            final Object value = attributes().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] names) {
+            final Map<String, Object> attributes = attributes();
+            final AttributeList list = new AttributeList();
+            for (final String name : names) {
+                if (attributes.containsKey(name)) {
+                    list.add(new Attribute(name, attributes.get(name)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("The metrics are read-only: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            final List<MBeanAttributeInfo> infos = new ArrayList<>();
+            for (final Metric metric : METRICS) {
+                final Map<String, Object> attributes = new LinkedHashMap<>();
+                metric.putAttributes(attributes);
+                for (final Map.Entry<String, Object> attribute : attributes.entrySet()) {
+                    infos.add(new MBeanAttributeInfo(attribute.getKey(), attribute.getValue().getClass().getName(), metric.help, true, false, false));
+                }
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Metrics of the NuGet indexer",
+                    infos.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.ysoft.security;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Indexes multiple sources concurrently within a single process. Each source has its own thread, DB connection
+ * (borrowed from a shared pool) and writer, so it keeps its own last updated time. The workers that analyze packages
+ * are shared, but each source can occupy only a limited number of them. A failure of one source does not stop the
+ * others.
+ */
+public class MultiSourceIndexer {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MultiSourceIndexer.class);
+
+    private final List<Source> sources;
+
+    private final ConnectionPool connectionPool;
+
+    private final int workers;
+
+    private final int dbBatchSize;
+
+    private final boolean bulkLoad;
+
+    private final int dbWriters;
+
+    public static final class Source {
+        private final String name;
+        private final NugetSource nugetSource;
+        private final int maxPendingPackages;
+
+        /**
+         * @param maxPendingPackages see {@link Indexer#Indexer(NugetMetadataStore, ExecutorService, int)}
+         */
+        public Source(String name, NugetSource nugetSource, int maxPendingPackages) {
+            this.name = name;
+            this.nugetSource = nugetSource;
+            this.maxPendingPackages = maxPendingPackages;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public NugetSource getNugetSource() {
+            return nugetSource;
+        }
+
+        public int getMaxPendingPackages() {
+            return maxPendingPackages;
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + nugetSource + ")";
+        }
+    }
+
+    /**
+     * @param workers  number of workers shared by all the sources
+     * @param bulkLoad  see {@link NugetMetadataStore#NugetMetadataStore(java.sql.Connection, long, long, String, int, boolean)}
+     * @param dbWriters number of DB connections writing in parallel for each source
+     */
+    public MultiSourceIndexer(List<Source> sources, ConnectionPool connectionPool, int workers, int dbBatchSize, boolean bulkLoad, int dbWriters) {
+        this.sources = sources;
+        this.connectionPool = connectionPool;
+        this.workers = workers;
+        this.dbBatchSize = dbBatchSize;
+        this.bulkLoad = bulkLoad;
+        this.dbWriters = dbWriters;
+    }
+
+    /**
+     * Runs a pass of each source and waits for all of them.
+     *
+     * @throws IOException if any of the sources has failed
+     */
+    public void index() throws IOException, SQLException, InterruptedException {
+        updateSchema();
+        final ExecutorService sharedWorkers = Indexer.newWorkerPool(workers);
+        final ExecutorService sourceThreads = Executors.newFixedThreadPool(sources.size());
+        try {
+            final List<Future<?>> passes = new ArrayList<>();
+            for (final Source source : sources) {
+                passes.add(sourceThreads.submit(() -> {
+                    Thread.currentThread().setName("nuget-index-source-" + source.getName());
+                    index(source, sharedWorkers);
+                    return null;
+                }));
+            }
+            final List<String> failed = new ArrayList<>();
+            for (int i = 0; i < sources.size(); i++) {
+                try {
+                    passes.get(i).get();
+                } catch (ExecutionException e) {
+                    LOGGER.error("Indexing of {} failed", sources.get(i), e.getCause());
+                    failed.add(sources.get(i).getName());
+                }
+            }
+            if (!failed.isEmpty()) {
+                throw new IOException("Indexing of " + failed.size() + " of " + sources.size() + " sources failed: " + failed);
+            }
+        } finally {
+            sourceThreads.shutdownNow();
+            sharedWorkers.shutdownNow();
+        }
+    }
+
+    private void updateSchema() throws IOException, SQLException {
+        final Connection dbh = connectionPool.borrow();
+        boolean healthy = false;
+        try {
+            NugetMetadataStore.updateSchema(dbh);
+            healthy = true;
+        } finally {
+            if (healthy) {
+                connectionPool.release(dbh);
+            } else {
+                connectionPool.discard(dbh);
+            }
+        }
+    }
+
+    private void index(Source source, ExecutorService sharedWorkers) throws IOException, SQLException {
+        final long start = System.currentTimeMillis();
+        final Connection dbh = connectionPool.borrow();
+        boolean healthy = false;
+        try {
+            final NugetMetadataStore nugetMetadataStore = NugetMetadataStore.openWithoutSchemaUpdate(dbh, source.getNugetSource().getHash(), dbBatchSize, bulkLoad);
+            LOGGER.info("Start indexing {} with up to {} pending packages…", source, source.maxPendingPackages);
+            try (Indexer indexer = new Indexer(nugetMetadataStore, sharedWorkers, source.maxPendingPackages, connectionPool, dbWriters)) {
+                source.getNugetSource().index(nugetMetadataStore.getLastModifiedTime(), indexer);
+                indexer.finish();
+            }
+            nugetMetadataStore.finish();
+            healthy = true;
+            LOGGER.info("Finished indexing {} in {} ms", source, System.currentTimeMillis() - start);
+        } finally {
+            if (healthy) {
+                connectionPool.release(dbh);
+            } else {
+                connectionPool.discard(dbh);
+            }
+        }
+    }
+}
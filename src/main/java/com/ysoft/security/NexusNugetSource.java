@@ -9,9 +9,19 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
-import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 
 import static com.ysoft.security.AngelaTree.merkle;
@@ -22,95 +32,257 @@ public class NexusNugetSource implements NugetSource {
     private static final Logger LOGGER = LoggerFactory.getLogger(NexusNugetSource.class);
     private final List<String> paths;
     private final String serverIdentity;
-    public NexusNugetSource(List<String> paths, String serverIdentity) {
+    private final int scanThreads;
+    private final NavigableSet<String> exclusions;
+    private final ExclusionMatcher exclusionMatcher;
+    public NexusNugetSource(List<String> paths, String serverIdentity, int scanThreads, NavigableSet<String> exclusions) {
         this.paths = paths;
         this.serverIdentity = serverIdentity;
+        this.scanThreads = scanThreads;
+        this.exclusions = exclusions;
+        this.exclusionMatcher = ExclusionMatcher.compile(exclusions);
     }
 
     @Override
     public void index(long lastModifiedTime, Indexer indexer) throws IOException {
-        for (final String path : paths) {
-            indexDirectory(path, lastModifiedTime, indexer);
+        // Nexus stores packages as <id>/<version>/*.nupkg, so each id directory can be scanned independently.
+        // Not a ForkJoinPool, which would wrap an IOException of a walk in RuntimeExceptions.
+        final ExecutorService executor = Executors.newFixedThreadPool(scanThreads);
+        final CompletionService<Path> shards = new ExecutorCompletionService<>(executor);
+        // Walks do not react to interrupts, so they are stopped by this flag once any of them fails.
+        final AtomicBoolean cancelled = new AtomicBoolean(false);
+        try {
+            int shardCount = 0;
+            for (final String path : paths) {
+                final NugetFileVisitor visitor = new NugetFileVisitor(path, lastModifiedTime, indexer, exclusionMatcher, cancelled);
+                try (DirectoryStream<Path> children = Files.newDirectoryStream(Paths.get(path))) {
+                    for (final Path child : children) {
+                        shards.submit(() -> walkFileTree(child, visitor));
+                        shardCount++;
+                    }
+                }
+            }
+            // In the order of completion, so that a failure is noticed as soon as it happens.
+            for (int i = 0; i < shardCount; i++) {
+                shards.take().get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted when scanning " + paths);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            cancelled.set(true);
+            executor.shutdownNow();
+            awaitScans(executor);
         }
     }
 
-    private static void indexDirectory(String searchPath, final long lastModifiedTime, final Indexer indexer) throws IOException {
-        final String prefix = searchPath + (searchPath.endsWith(File.separator) ? "" : File.separator);
-        walkFileTree(Paths.get(searchPath), new FileVisitor<Path>() {
-            public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes basicFileAttributes) throws IOException {
-                return FileVisitResult.CONTINUE;
+    /**
+     * Waits for the running walks, so that none of them passes packages to the indexer after the scan has ended.
+     */
+    private void awaitScans(ExecutorService executor) throws InterruptedIOException {
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                LOGGER.info("Waiting for scans of {} to stop…", paths);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted when waiting for scans of " + paths + " to stop");
+        }
+    }
+
+    /**
+     * Indexes the given files regardless of their timestamps. This is used for files reported by {@link NexusWatcher}.
+     * Files that would be skipped by a scan (e.g., excluded ones) are skipped as well.
+     */
+    public void indexFiles(Collection<Path> files, Indexer indexer) throws IOException {
+        for (final Path file : files) {
+            final String prefix = getPrefix(file);
+            if (prefix == null) {
+                LOGGER.warn("Skipping {} because it is not within {}", file, paths);
+            } else if (!file.getFileName().toString().toLowerCase().endsWith(".nupkg")) {
+                LOGGER.warn("Unknown file skipped: " + file);
+            } else if (Files.isRegularFile(file)) { // it might have been deleted in the meantime
+                indexFile(prefix, file, indexer, exclusionMatcher);
             }
+        }
+    }
 
-            public FileVisitResult visitFile(Path path, BasicFileAttributes basicFileAttributes) throws IOException {
-                // We cannot use basicFileAttributes.creationTime(), because Nexus puts old (original?) timestamp for the files if mirrored
-                final FileTime fileTime;
-                final Process process = new ProcessBuilder("stat", "-c", "%Z", "--", path.toString()).redirectErrorStream(true).start();
-                try {
-                    process.getOutputStream().close();
-                    try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-                        final String firstLine = reader.readLine();
-                        if (reader.readLine() != null) {
-                            throw new IOException("Expected EOF");
-                        }
-                        process.waitFor();
-                        final int exitValue = process.exitValue();
-                        if (exitValue != 0) {
-                            throw new IOException("Bad exit value: " + exitValue);
-                        }
-                        // The time is rounded. Add one second in order to err on the safe side.
-                        fileTime = FileTime.from(Long.parseLong(firstLine) + 1, TimeUnit.SECONDS);
-                    } catch (InterruptedException e) {
-                        throw new IOException(e);
-                    }
-                } finally {
-                    process.destroyForcibly(); // The process is not expected to do anything at this point…
+    /**
+     * Lists packages of all the paths in the order required by {@link Reconciler}, without looking into the packages.
+     * Directories are not listed in any particular order, so the id directories of all the paths are held in memory
+     * to be sorted, i.e., memory grows with the number of distinct package ids. Versions are held for one id at a time.
+     */
+    public void listPackages(Reconciler.PackageConsumer consumer) throws IOException {
+        // The same id can be in multiple paths, possibly in a different case; they are merged.
+        final TreeMap<String, List<Path>> ids = new TreeMap<>((a, b) -> Reconciler.compare(a, "", b, ""));
+        for (final Path root : getRoots()) {
+            for (final Path id : listDirectories(root)) {
+                if (isIndexedDirectory(id)) {
+                    ids.computeIfAbsent(id.getFileName().toString(), name -> new ArrayList<>()).add(id);
                 }
-                if (fileTime.toMillis() > lastModifiedTime) {
-                    if (path.getFileName().toString().toLowerCase().endsWith(".nupkg")) {
-                        try {
-                            return process(path);
-                        } catch (SQLException e) {
-                            throw new IOException(e);
-                        }
-                    } else {
-                        LOGGER.warn("Unknown file skipped: " + path);
-                        return FileVisitResult.CONTINUE;
-                    }
-                } else {
-                    return FileVisitResult.CONTINUE;
+            }
+        }
+        for (final Map.Entry<String, List<Path>> id : ids.entrySet()) {
+            final TreeMap<String, List<Path>> versions = new TreeMap<>((a, b) -> Reconciler.compare("", a, "", b));
+            for (final Path idDirectory : id.getValue()) {
+                for (final Path version : listDirectories(idDirectory)) {
+                    versions.computeIfAbsent(version.getFileName().toString(), name -> new ArrayList<>()).add(version);
+                }
+            }
+            for (final Map.Entry<String, List<Path>> version : versions.entrySet()) {
+                if (containsPackage(version.getValue())) {
+                    consumer.accept(id.getKey(), version.getKey());
                 }
             }
+        }
+    }
+
+    private static List<Path> listDirectories(Path directory) throws IOException {
+        final List<Path> directories = new ArrayList<>();
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(directory, Files::isDirectory)) {
+            children.forEach(directories::add);
+        }
+        return directories;
+    }
 
-            private FileVisitResult process(Path path) throws IOException, SQLException {
-                if (path.toString().startsWith(prefix)) {
-                    final String subpath = path.toString().substring(prefix.length());
-                    if (!subpath.startsWith(".nexus" + File.separator)) {
-                        final String[] components = subpath.split(Pattern.quote(File.separator));
-                        final String name = components[0];
-                        final String version = components[1];
-                        try (InputStream in = Files.newInputStream(path)) {
-                            indexer.index(in, name, version);
-                        }
+    private boolean containsPackage(List<Path> versionDirectories) throws IOException {
+        for (final Path versionDirectory : versionDirectories) {
+            final String prefix = getPrefix(versionDirectory);
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(versionDirectory,
+                    file -> file.getFileName().toString().toLowerCase().endsWith(".nupkg"))) {
+                for (final Path file : files) {
+                    if (!exclusionMatcher.isExcluded(toExclusionPath(file.toString().substring(prefix.length())))) {
+                        return true;
                     }
-                    return FileVisitResult.CONTINUE;
-                } else {
-                    throw new IOException("The path does not start with the expected prefix: " + path);
                 }
             }
+        }
+        return false;
+    }
+
+    /**
+     * Tells if files of the directory (or of its subdirectories) can be indexed at all.
+     */
+    boolean isIndexedDirectory(Path directory) {
+        final String prefix = getPrefix(directory);
+        if (prefix == null) {
+            return false;
+        }
+        final String subpath = directory.toString() + File.separator;
+        return subpath.length() <= prefix.length() || (
+                !subpath.startsWith(prefix + ".nexus" + File.separator) &&
+                !exclusionMatcher.isExcludedPrefix(toExclusionPath(subpath.substring(prefix.length())))
+        );
+    }
+
+    List<Path> getRoots() {
+        final List<Path> roots = new ArrayList<>();
+        for (final String path : paths) {
+            roots.add(Paths.get(path));
+        }
+        return roots;
+    }
+
+    private String getPrefix(Path path) {
+        final String pathString = path.toString() + File.separator;
+        for (final String searchPath : paths) {
+            final String prefix = searchPath + (searchPath.endsWith(File.separator) ? "" : File.separator);
+            if (pathString.startsWith(prefix)) {
+                return prefix;
+            }
+        }
+        return null;
+    }
+
+    private static void indexFile(String prefix, Path path, Indexer indexer, ExclusionMatcher exclusionMatcher) throws IOException {
+        final String subpath = path.toString().substring(prefix.length());
+        if (exclusionMatcher.isExcluded(toExclusionPath(subpath))) {
+            LOGGER.info("Skipping {} because it is excluded", path);
+        } else if (!subpath.startsWith(".nexus" + File.separator)) {
+            final String[] components = subpath.split(Pattern.quote(File.separator));
+            final String name = components[0];
+            final String version = components[1];
+            indexer.index(path, name, version);
+        }
+    }
+
+    private static String toExclusionPath(String subpath) {
+        return File.separatorChar == '/' ? subpath : subpath.replace(File.separatorChar, '/');
+    }
+
+    private static class NugetFileVisitor implements FileVisitor<Path> {
+        private final String prefix;
+        private final long lastModifiedTime;
+        private final Indexer indexer;
+        private final ExclusionMatcher exclusionMatcher;
+        private final AtomicBoolean cancelled;
+
+        NugetFileVisitor(String searchPath, long lastModifiedTime, Indexer indexer, ExclusionMatcher exclusionMatcher, AtomicBoolean cancelled) {
+            this.prefix = searchPath + (searchPath.endsWith(File.separator) ? "" : File.separator);
+            this.lastModifiedTime = lastModifiedTime;
+            this.indexer = indexer;
+            this.exclusionMatcher = exclusionMatcher;
+            this.cancelled = cancelled;
+        }
+
+        public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes basicFileAttributes) throws IOException {
+            if (cancelled.get()) {
+                return FileVisitResult.TERMINATE;
+            }
+            final String directory = path.toString() + File.separator;
+            if (directory.startsWith(prefix) && exclusionMatcher.isExcludedPrefix(toExclusionPath(directory.substring(prefix.length())))) {
+                LOGGER.info("Skipping {} because it is excluded", path);
+                return FileVisitResult.SKIP_SUBTREE;
+            }
+            return FileVisitResult.CONTINUE;
+        }
 
-            public FileVisitResult visitFileFailed(Path path, IOException e) throws IOException {
-                throw e;
+        public FileVisitResult visitFile(Path path, BasicFileAttributes basicFileAttributes) throws IOException {
+            if (cancelled.get()) {
+                return FileVisitResult.TERMINATE;
+            }
+            final FileTime fileTime = FileCtime.read(path);
+            if (fileTime.toMillis() > lastModifiedTime) {
+                if (path.getFileName().toString().toLowerCase().endsWith(".nupkg")) {
+                    return process(path);
+                } else {
+                    LOGGER.warn("Unknown file skipped: " + path);
+                    return FileVisitResult.CONTINUE;
+                }
+            } else {
+                return FileVisitResult.CONTINUE;
             }
+        }
 
-            public FileVisitResult postVisitDirectory(Path path, IOException e) throws IOException {
+        private FileVisitResult process(Path path) throws IOException {
+            if (path.toString().startsWith(prefix)) {
+                indexFile(prefix, path, indexer, exclusionMatcher);
                 return FileVisitResult.CONTINUE;
+            } else {
+                throw new IOException("The path does not start with the expected prefix: " + path);
             }
-        });
+        }
+
+        public FileVisitResult visitFileFailed(Path path, IOException e) throws IOException {
+            throw e;
+        }
+
+        public FileVisitResult postVisitDirectory(Path path, IOException e) throws IOException {
+            return FileVisitResult.CONTINUE;
+        }
     }
 
     @Override
     public String getHash() {
-        return DatatypeConverter.printHexBinary(merkle("Nexus".getBytes(StandardCharsets.UTF_8), serverIdentity.getBytes(StandardCharsets.UTF_8), merkleSorted(paths)));
+        // Exclusions are added only if present, so that the hash (and thus the index state) of existing sources is kept.
+        return DatatypeConverter.printHexBinary(exclusions.isEmpty()
+                ? merkle("Nexus".getBytes(StandardCharsets.UTF_8), serverIdentity.getBytes(StandardCharsets.UTF_8), merkleSorted(paths))
+                : merkle("Nexus".getBytes(StandardCharsets.UTF_8), serverIdentity.getBytes(StandardCharsets.UTF_8), merkleSorted(paths), merkle(exclusions)));
     }
 
     @Override
@@ -118,6 +290,8 @@ public class NexusNugetSource implements NugetSource {
         return "NexusNugetSource{" +
                 "serverIdentity='" + serverIdentity + '\'' +
                 ", paths=" + paths +
+                ", scanThreads=" + scanThreads +
+                ", exclusions=" + exclusions +
                 '}';
     }
 }
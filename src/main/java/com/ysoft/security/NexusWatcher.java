@@ -0,0 +1,217 @@
+package com.ysoft.security;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches Nexus storage for new packages, so that they can be indexed without waiting for the next full scan (e.g., by
+ * a partial pass of {@link IndexerDaemon}). All the &lt;id&gt; and &lt;id&gt;/&lt;version&gt; directories are
+ * watched, including new ones. A file is reported once there has been no event for it for a while, so that it is not
+ * read while Nexus is still writing it. When events get lost (overflow), the listener is told to rescan instead.
+ */
+public class NexusWatcher implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(NexusWatcher.class);
+
+    static final long DEFAULT_DEBOUNCE_MILLIS = 2000;
+
+    /**
+     * Packages are stored as &lt;root&gt;/&lt;id&gt;/&lt;version&gt;/*.nupkg.
+     */
+    private static final int PACKAGE_DEPTH = 3;
+
+    private final NexusNugetSource source;
+
+    private final Listener listener;
+
+    private final long debounceMillis;
+
+    private final WatchService watchService;
+
+    private final Map<WatchKey, WatchedDirectory> watchedDirectories = new HashMap<>();
+
+    /**
+     * Files waiting for the debounce period, with the time of their last event, in the order of arrival.
+     */
+    private final Map<Path, Long> pendingFiles = new LinkedHashMap<>();
+
+    private final Thread thread;
+
+    /**
+     * Called from the watcher thread.
+     */
+    public interface Listener {
+        void packagesArrived(List<Path> files);
+
+        /**
+         * Some packages might have been missed, so a full scan is needed.
+         */
+        void eventsLost();
+    }
+
+    private static final class WatchedDirectory {
+        private final Path path;
+        private final int depth;
+
+        WatchedDirectory(Path path, int depth) {
+            this.path = path;
+            this.depth = depth;
+        }
+    }
+
+    public NexusWatcher(NexusNugetSource source, long debounceMillis, Listener listener) throws IOException {
+        this.source = source;
+        this.listener = listener;
+        this.debounceMillis = debounceMillis;
+        this.watchService = source.getRoots().get(0).getFileSystem().newWatchService();
+        try {
+            registerRoots();
+        } catch (IOException | RuntimeException e) {
+            watchService.close();
+            throw e;
+        }
+        this.thread = new Thread(this::watch, "nuget-nexus-watcher");
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Registers all the directories. Existing packages are left to a full pass.
+     */
+    private void registerRoots() throws IOException {
+        final long start = System.currentTimeMillis();
+        for (final Path root : source.getRoots()) {
+            register(root, 0, false);
+        }
+        LOGGER.info("Watching {} directories, registered in {} ms", watchedDirectories.size(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Registers the directory and its subdirectories.
+     *
+     * @param queuePackages whether to queue packages found there, which is needed for new directories, because the
+     *                      packages might have been created before the registration
+     */
+    private void register(Path directory, int depth, boolean queuePackages) throws IOException {
+        if (!source.isIndexedDirectory(directory)) {
+            return;
+        }
+        final WatchKey key = directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        watchedDirectories.put(key, new WatchedDirectory(directory, depth));
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(directory)) {
+            for (final Path child : children) {
+                if (depth + 1 < PACKAGE_DEPTH && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                    register(child, depth + 1, queuePackages);
+                } else if (queuePackages && depth + 1 == PACKAGE_DEPTH && isPackage(child)) {
+                    pendingFiles.put(child, System.currentTimeMillis());
+                }
+            }
+        }
+    }
+
+    private static boolean isPackage(Path file) {
+        return file.getFileName().toString().toLowerCase().endsWith(".nupkg");
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                final WatchKey key;
+                if (pendingFiles.isEmpty()) {
+                    key = watchService.take();
+                } else {
+                    final long oldest = pendingFiles.values().iterator().next();
+                    key = watchService.poll(Math.max(0, oldest + debounceMillis - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                }
+                if (key != null) {
+                    handle(key);
+                }
+                submitSettledFiles();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            LOGGER.debug("Watcher stopped");
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("Watcher failed, new packages are going to be found by regular passes only", e);
+        }
+    }
+
+    private void handle(WatchKey key) throws IOException {
+        final WatchedDirectory directory = watchedDirectories.get(key);
+        boolean overflow = false;
+        for (final WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflow = true;
+            } else if (directory != null) {
+                final Path child = directory.path.resolve((Path) event.context());
+                if (directory.depth + 1 < PACKAGE_DEPTH) {
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                        try {
+                            register(child, directory.depth + 1, true);
+                        } catch (NoSuchFileException e) {
+                            LOGGER.debug("{} has disappeared before it could be watched", child);
+                        }
+                    }
+                } else if (isPackage(child)) {
+                    pendingFiles.remove(child); // moves it to the end
+                    pendingFiles.put(child, System.currentTimeMillis());
+                }
+            }
+        }
+        if (!key.reset()) {
+            watchedDirectories.remove(key); // deleted
+        }
+        if (overflow) {
+            LOGGER.warn("Some file events have been lost, rescanning");
+            for (final WatchKey watchKey : watchedDirectories.keySet()) {
+                watchKey.cancel();
+            }
+            watchedDirectories.clear();
+            registerRoots();
+            listener.eventsLost();
+        }
+    }
+
+    private void submitSettledFiles() {
+        final long settledBefore = System.currentTimeMillis() - debounceMillis;
+        final List<Path> settledFiles = new ArrayList<>();
+        for (final Iterator<Map.Entry<Path, Long>> iterator = pendingFiles.entrySet().iterator(); iterator.hasNext(); ) {
+            final Map.Entry<Path, Long> entry = iterator.next();
+            if (entry.getValue() > settledBefore) {
+                break;
+            }
+            settledFiles.add(entry.getKey());
+            iterator.remove();
+        }
+        if (!settledFiles.isEmpty()) {
+            LOGGER.info("Got {} new files, e.g., {}", settledFiles.size(), settledFiles.get(0));
+            listener.packagesArrived(settledFiles);
+        }
+    }
+
+    @Override
+    public void close() throws IOException, InterruptedException {
+        watchService.close();
+        thread.interrupt();
+        thread.join();
+    }
+}
@@ -1,18 +1,43 @@
 package com.ysoft.security;
 
+import java.util.HashMap;
 import java.util.Map;
 
 public class NugetMetadata {
     private final NugetIdentifier nugetIdentifier;
-    private final Map<String, Map<String, String>> hashesForFiles;
-    public NugetMetadata(NugetIdentifier nugetIdentifier, Map<String, Map<String, String>> hashesForFiles) {
+    private final Map<String, Hashing.Digests> digestsForFiles;
+    private final String packageSha1;
+    public NugetMetadata(NugetIdentifier nugetIdentifier, Map<String, Hashing.Digests> digestsForFiles) {
+        this(nugetIdentifier, digestsForFiles, null);
+    }
+    public NugetMetadata(NugetIdentifier nugetIdentifier, Map<String, Hashing.Digests> digestsForFiles, String packageSha1) {
         this.nugetIdentifier = nugetIdentifier;
-        this.hashesForFiles = hashesForFiles;
+        this.digestsForFiles = digestsForFiles;
+        this.packageSha1 = packageSha1;
     }
     public NugetIdentifier getNugetIdentifier() {
         return nugetIdentifier;
     }
+    public Map<String, Hashing.Digests> getDigestsForFiles() {
+        return digestsForFiles;
+    }
+    /**
+     * Hex representation of {@link #getDigestsForFiles()}. It is computed on every call.
+     */
     public Map<String, Map<String, String>> getHashesForFiles() {
+        final Map<String, Map<String, String>> hashesForFiles = new HashMap<>();
+        for (final Map.Entry<String, Hashing.Digests> file : digestsForFiles.entrySet()) {
+            hashesForFiles.put(file.getKey(), file.getValue().toHexMap());
+        }
         return hashesForFiles;
     }
+    /**
+     * @return SHA-1 of the whole package, if known, or null
+     */
+    public String getPackageSha1() {
+        return packageSha1;
+    }
+    public NugetMetadata withPackageSha1(String packageSha1) {
+        return new NugetMetadata(nugetIdentifier, digestsForFiles, packageSha1);
+    }
 }
@@ -3,16 +3,41 @@ package com.ysoft.security;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.xml.bind.DatatypeConverter;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.sql.*;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.TreeMap;
 
 public class NugetMetadataStore {
     private static final Logger LOGGER = LoggerFactory.getLogger(NugetMetadataStore.class);
 
-    private static final int REQUIRED_SCHEMA_VERSION = 2;
+    private static final int REQUIRED_SCHEMA_VERSION = 14;
+
+    /**
+     * This version has no script, it converts the digests added by schema 4 in Java.
+     */
+    private static final int FILL_BINARY_DIGESTS_SCHEMA_VERSION = 5;
+
+    /**
+     * This version has no script, it copies rows of the former nuget_index_hashes to the tables added by schema 7.
+     */
+    private static final int FILL_NORMALIZED_TABLES_SCHEMA_VERSION = 8;
+
+    private static final int MIGRATION_CHUNK_SIZE = 10000;
+
+    /**
+     * Number of packages or contents whose ids are selected by a single statement in MySQL, see {@link #selectIds}.
+     */
+    private static final int ID_CHUNK_SIZE = 100;
 
     private final Connection dbh;
 
@@ -22,22 +47,106 @@ public class NugetMetadataStore {
 
     private final String sourceHash;
 
-    public NugetMetadataStore(Connection dbh, long startTime, long lastModifiedTime, String sourceHash) {
+    private final int batchSize;
+
+    private final boolean bulkLoad;
+
+    private BulkLoader bulkLoader;
+
+    private PreparedStatement insertPackageStatement;
+
+    private PreparedStatement insertContentStatement;
+
+    private PreparedStatement insertFileStatement;
+
+    private PreparedStatement selectPackageIdsStatement;
+
+    private PreparedStatement selectContentIdsStatement;
+
+    private PreparedStatement insertSourcePackageStatement;
+
+    private PreparedStatement insertChecksumStatement;
+
+    private PackageLookup packageLookup;
+
+    /**
+     * Packages, contents and checksums are sent sorted, so that concurrent writers (see
+     * {@link #withConnection(Connection)}) lock their shared rows in the same order and cannot deadlock.
+     */
+    private final TreeMap<String, NugetIdentifier> pendingPackages = new TreeMap<>();
+
+    private final TreeMap<String, Hashing.Digests> pendingContents = new TreeMap<>();
+
+    private final TreeMap<String, NugetIdentifier> pendingChecksums = new TreeMap<>();
+
+    private final List<PendingFile> pendingFiles = new ArrayList<>();
+
+    private int pendingRows = 0;
+
+    public NugetMetadataStore(Connection dbh, long startTime, long lastModifiedTime, String sourceHash, int batchSize) {
+        this(dbh, startTime, lastModifiedTime, sourceHash, batchSize, false);
+    }
+
+    /**
+     * @param bulkLoad if true, file rows are written by {@link BulkLoader} rather than by batched inserts
+     */
+    public NugetMetadataStore(Connection dbh, long startTime, long lastModifiedTime, String sourceHash, int batchSize, boolean bulkLoad) {
         this.dbh = dbh;
         this.startTime = startTime;
         this.lastModifiedTime = lastModifiedTime;
         this.sourceHash = sourceHash;
+        this.batchSize = batchSize;
+        this.bulkLoad = bulkLoad;
     }
 
-    public static NugetMetadataStore open(Connection dbh, String hash) throws SQLException, IOException {
-        LOGGER.info("Opening metadata store for {}", hash);
+    public static NugetMetadataStore open(Connection dbh, String hash, int batchSize) throws SQLException, IOException {
+        return open(dbh, hash, batchSize, false);
+    }
+
+    /**
+     * Returns a store of the same source and run that writes by another connection, so that packages can be written
+     * in parallel. Only checkpoints and {@link #finishPartial()} should be used on it, the last updated time is set by
+     * {@link #finish()} of this store once all the writes are done.
+     */
+    public NugetMetadataStore withConnection(Connection otherDbh) {
+        return new NugetMetadataStore(otherDbh, startTime, lastModifiedTime, sourceHash, batchSize, bulkLoad);
+    }
+
+    /**
+     * Returns a lookup of known packages of the same source that runs by another connection.
+     */
+    PackageLookup newPackageLookup(Connection otherDbh) {
+        return new PackageLookup(otherDbh, sourceHash);
+    }
+
+    /**
+     * @param bulkLoad see {@link #NugetMetadataStore(Connection, long, long, String, int, boolean)}
+     */
+    public static NugetMetadataStore open(Connection dbh, String hash, int batchSize, boolean bulkLoad) throws SQLException, IOException {
         final long startTime = System.currentTimeMillis();
+        updateSchema(dbh);
+        return open(dbh, hash, batchSize, bulkLoad, startTime);
+    }
+
+    /**
+     * Opens the store without checking the schema, which is supposed to be updated by {@link #updateSchema(Connection)}
+     * before. This is meant for repeated runs of a long-running process.
+     */
+    public static NugetMetadataStore openWithoutSchemaUpdate(Connection dbh, String hash, int batchSize, boolean bulkLoad) throws SQLException {
+        return open(dbh, hash, batchSize, bulkLoad, System.currentTimeMillis());
+    }
+
+    public static void updateSchema(Connection dbh) throws SQLException, IOException {
         final int schemaVersion = getSchemaVersion(dbh);
         LOGGER.info("Schema version: {}", schemaVersion);
         updateDbStructure(dbh, schemaVersion);
+    }
+
+    private static NugetMetadataStore open(Connection dbh, String hash, int batchSize, boolean bulkLoad, long startTime) throws SQLException {
+        LOGGER.info("Opening metadata store for {}", hash);
         final IndexState indexState = getIndexState(dbh, hash);
         LOGGER.info("Index state: {}", indexState);
-        return new NugetMetadataStore(dbh, startTime, indexState.getLastModifiedTime(), indexState.getSourceHash());
+        return new NugetMetadataStore(dbh, startTime, indexState.getLastModifiedTime(), indexState.getSourceHash(), batchSize, bulkLoad);
     }
 
     private static IndexState getIndexState(Connection dbh, String sourceHash) throws SQLException {
@@ -85,30 +194,198 @@ public class NugetMetadataStore {
     private static void updateDbStructure(Connection dbh, int schemaVersion) throws IOException, SQLException {
         for(int i = schemaVersion+1; i <= REQUIRED_SCHEMA_VERSION; i++){
             LOGGER.info("Updating schema to version "+i+"…");
-            try (final InputStream in = NugetMetadataStore.class.getResourceAsStream("/schema/" + i + ".sql")) {
-                final byte[] buffer = new byte[4096];
-                int size;
-                final ByteArrayOutputStream out = new ByteArrayOutputStream();
-                while((size = in.read(buffer)) != -1){
-                    out.write(buffer, 0, size);
+            switch (i) {
+                case FILL_BINARY_DIGESTS_SCHEMA_VERSION:
+                    fillBinaryDigests(dbh);
+                    updateSchemaVersion(dbh, i);
+                    break;
+                case FILL_NORMALIZED_TABLES_SCHEMA_VERSION:
+                    fillNormalizedTables(dbh);
+                    updateSchemaVersion(dbh, i);
+                    break;
+                default:
+                    runSchemaScript(dbh, i);
+            }
+        }
+    }
+
+    private static void runSchemaScript(Connection dbh, int schemaVersion) throws IOException, SQLException {
+        // A dialect-specific script takes precedence over the common one.
+        final InputStream dialectIn = NugetMetadataStore.class.getResourceAsStream("/schema/" + schemaVersion + "." + getDialect(dbh) + ".sql");
+        try (final InputStream in = dialectIn != null ? dialectIn : NugetMetadataStore.class.getResourceAsStream("/schema/" + schemaVersion + ".sql")) {
+            final byte[] buffer = new byte[4096];
+            int size;
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            while((size = in.read(buffer)) != -1){
+                out.write(buffer, 0, size);
+            }
+            final String sql = out.toString();
+            try (Statement statement = dbh.createStatement()) {
+                // I know, it can catch a semicolon inside a string or comment or so, but we can live with that.
+                // This is needed if the DB engine does not support multiple queries in a single batch.
+                for (String sqlPart : sql.split(";")) {
+                    statement.addBatch(sqlPart);
                 }
-                final String sql = out.toString();
-                try (Statement statement = dbh.createStatement()) {
-                    // I know, it can catch a semicolon inside a string or comment or so, but we can live with that.
-                    // This is needed if the DB engine does not support multiple queries in a single batch.
-                    for (String sqlPart : sql.split(";")) {
-                        statement.addBatch(sqlPart);
-                    }
-                    statement.addBatch("UPDATE nuget_index_state SET schema_version = "+i);
-                    statement.executeBatch();
+                statement.addBatch("UPDATE nuget_index_state SET schema_version = "+schemaVersion);
+                statement.executeBatch();
+            }
+        }
+    }
+
+    private static void updateSchemaVersion(Connection dbh, int schemaVersion) throws SQLException {
+        try (Statement statement = dbh.createStatement()) {
+            statement.execute("UPDATE nuget_index_state SET schema_version = " + schemaVersion);
+        }
+    }
+
+    /**
+     * Converts hex digests to binary ones. This runs in chunks of ids, each in its own transaction, so that it neither
+     * holds locks for long nor needs a huge undo log. When interrupted, it just continues with the remaining rows.
+     */
+    private static void fillBinaryDigests(Connection dbh) throws SQLException {
+        final String unhex = getDialect(dbh).equals("postgresql") ? "decode(%s, 'hex')" : "UNHEX(%s)";
+        fillInChunks(dbh, "nuget_index_hashes", "UPDATE nuget_index_hashes SET " +
+                "digest_sha1 = " + String.format(unhex, "digest_hex_sha1") + ", " +
+                "digest_md5 = " + String.format(unhex, "digest_hex_md5") + " " +
+                "WHERE id >= ? AND id < ? AND digest_sha1 IS NULL");
+        fillInChunks(dbh, "nuget_index_package_checksums", "UPDATE nuget_index_package_checksums SET " +
+                "digest_sha1 = " + String.format(unhex, "digest_hex_sha1") + " " +
+                "WHERE id >= ? AND id < ? AND digest_sha1 IS NULL");
+    }
+
+    /**
+     * Splits rows of the former nuget_index_hashes to packages, contents and files. Like {@link #fillBinaryDigests},
+     * this runs in chunks and it can be safely restarted, as all the inserts ignore existing rows.
+     */
+    private static void fillNormalizedTables(Connection dbh) throws SQLException {
+        fillInChunks(dbh, "nuget_index_hashes_old",
+                insertIgnoring(dbh, "INSERT INTO nuget_index_packages (name, version) " +
+                        "SELECT DISTINCT name, version FROM nuget_index_hashes_old " +
+                        "WHERE id >= ? AND id < ? AND version IS NOT NULL"),
+                insertIgnoring(dbh, "INSERT INTO nuget_index_contents (digest_sha1, digest_md5, digest_sha256) " +
+                        "SELECT DISTINCT digest_sha1, digest_md5, digest_sha256 FROM nuget_index_hashes_old " +
+                        "WHERE id >= ? AND id < ? AND digest_sha1 IS NOT NULL AND digest_md5 IS NOT NULL"),
+                insertIgnoring(dbh, "INSERT INTO nuget_index_package_files (package_id, file_name, content_id) " +
+                        "SELECT DISTINCT p.id, o.file_name, c.id FROM nuget_index_hashes_old o " +
+                        "JOIN nuget_index_packages p ON p.name = o.name AND p.version = o.version " +
+                        "JOIN nuget_index_contents c ON c.digest_sha1 = o.digest_sha1 AND c.digest_md5 = o.digest_md5 " +
+                        "WHERE o.id >= ? AND o.id < ? AND o.file_name IS NOT NULL"));
+    }
+
+    static String insertIgnoring(Connection dbh, String insert) throws SQLException {
+        return getDialect(dbh).equals("postgresql")
+                ? insert + " ON CONFLICT DO NOTHING"
+                : insert.replaceFirst("^INSERT ", "INSERT IGNORE ");
+    }
+
+    /**
+     * Runs the statements for each range of ids of the table. Each statement gets the range as two parameters,
+     * inclusive start and exclusive end.
+     */
+    private static void fillInChunks(Connection dbh, String table, String... updates) throws SQLException {
+        final long minId;
+        final long maxId;
+        try (Statement statement = dbh.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT MIN(id), MAX(id) FROM " + table)) {
+            resultSet.next();
+            minId = resultSet.getLong(1);
+            maxId = resultSet.getLong(2);
+            if (resultSet.wasNull()) {
+                return; // empty table
+            }
+        }
+        final PreparedStatement[] statements = new PreparedStatement[updates.length];
+        try {
+            for (int i = 0; i < updates.length; i++) {
+                statements[i] = dbh.prepareStatement(updates[i]);
+            }
+            for (long from = minId; from <= maxId; from += MIGRATION_CHUNK_SIZE) {
+                for (final PreparedStatement statement : statements) {
+                    statement.setLong(1, from);
+                    statement.setLong(2, from + MIGRATION_CHUNK_SIZE);
+                    statement.executeUpdate();
                 }
+                LOGGER.info("Converted {} up to id {} of {}", table, Math.min(from + MIGRATION_CHUNK_SIZE - 1, maxId), maxId);
             }
+        } finally {
+            for (final PreparedStatement statement : statements) {
+                if (statement != null) {
+                    statement.close();
+                }
+            }
+        }
+    }
 
+    static String getDialect(Connection dbh) throws SQLException {
+        String databaseProductName = dbh.getMetaData().getDatabaseProductName();
+        switch (databaseProductName) {
+            case "MySQL":
+            case "MariaDB":
+                return "mysql";
+            case "PostgreSQL":
+                return "postgresql";
+            default:
+                throw new SQLException("Unexpected database: " + databaseProductName);
+        }
+    }
+
+    public synchronized void finish() throws SQLException {
+        finish(true);
+    }
+
+    /**
+     * Like {@link #finish()}, but it keeps the last updated time of the source, because such run (e.g., of a few
+     * files reported by a watcher) has not seen all the new packages. They are found by the next full run.
+     */
+    public synchronized void finishPartial() throws SQLException {
+        finish(false);
+    }
+
+    private void finish(boolean updateLastUpdated) throws SQLException {
+        flush();
+        if (insertFileStatement != null) {
+            insertPackageStatement.close();
+            insertPackageStatement = null;
+            insertContentStatement.close();
+            insertContentStatement = null;
+            insertFileStatement.close();
+            insertFileStatement = null;
+            selectPackageIdsStatement.close();
+            selectPackageIdsStatement = null;
+            selectContentIdsStatement.close();
+            selectContentIdsStatement = null;
+        }
+        if (insertChecksumStatement != null) {
+            insertSourcePackageStatement.close();
+            insertSourcePackageStatement = null;
+            insertChecksumStatement.close();
+            insertChecksumStatement = null;
+            bulkLoader = null;
+        }
+        if (packageLookup != null) {
+            packageLookup.close();
+            packageLookup = null;
+        }
+        if (updateLastUpdated) {
+            updateLastUpdated(dbh, startTime, sourceHash);
+        }
+        if (!dbh.getAutoCommit()) {
+            dbh.commit();
+            dbh.setAutoCommit(true);
         }
     }
 
-    public void finish() throws SQLException {
-        updateLastUpdated(dbh, startTime, sourceHash);
+    /**
+     * Stores the pending rows and the time, before which everything has been stored, as the last updated time of the
+     * source. A run started after a crash continues from there.
+     */
+    public synchronized void checkpoint(long lastUpdated) throws SQLException {
+        flush();
+        updateLastUpdated(dbh, lastUpdated, sourceHash);
+        if (!dbh.getAutoCommit()) {
+            dbh.commit();
+        }
+        LOGGER.info("Checkpoint: {}", Instant.ofEpochMilli(lastUpdated));
     }
 
     private static void updateLastUpdated(Connection dbh, long lastUpdated, String hash) throws SQLException {
@@ -137,32 +414,316 @@ public class NugetMetadataStore {
         }
     }
 
-    public void addHash(String name, String version, String fileName, Map<String, String> hashes) throws SQLException {
-        try (PreparedStatement preparedStatement = dbh.prepareStatement(getInsertCommand())) {
-            preparedStatement.setString(1, name);
-            preparedStatement.setString(2, version);
-            preparedStatement.setString(3, fileName);
-            preparedStatement.setString(4, hashes.get("sha1"));
-            preparedStatement.setString(5, hashes.get("md5"));
-            preparedStatement.execute();
+    /**
+     * Queues the row for insertion. The rows are sent to the DB by {@link #flush()} or {@link #flushIfFull()}, so they
+     * should be called only at package boundaries in order not to commit a package partially.
+     */
+    public synchronized void addHash(String name, String version, String fileName, Hashing.Digests digests) throws SQLException {
+        prepareInserts();
+        pendingRows++;
+        Metrics.DB_ROWS.increment();
+        // NuGet ids and versions contain no spaces.
+        final String packageKey = name + " " + version;
+        pendingPackages.putIfAbsent(packageKey, new NugetIdentifier(name, version));
+        if (bulkLoader != null) {
+            bulkLoader.add(name, version, fileName, digests);
+            return;
+        }
+        final String contentKey = digests.getHex(Hashing.Algorithm.SHA1) + digests.getHex(Hashing.Algorithm.MD5);
+        pendingContents.putIfAbsent(contentKey, digests);
+        pendingFiles.add(new PendingFile(packageKey, fileName, contentKey));
+    }
+
+    /**
+     * Queues the checksum of a whole package, which is stored in the same transaction as its files, see
+     * {@link #addHash(String, String, String, Hashing.Digests)}. It is linked to the package, so that it is removed
+     * with the package by {@link Reconciler}.
+     */
+    public synchronized void addPackageChecksum(String name, String version, String sha1) throws SQLException {
+        prepareInserts();
+        pendingChecksums.put(sha1.toUpperCase(Locale.ROOT), new NugetIdentifier(name, version));
+        pendingRows++;
+    }
+
+    /**
+     * Checks if a package with the given checksum has been already stored. This can be called from any thread, but it
+     * waits for the writes by this store, as they share the connection. See {@link PackageLookup} for lookups by
+     * another connection.
+     */
+    public synchronized boolean isKnownPackage(String sha1) throws SQLException {
+        if (packageLookup == null) {
+            packageLookup = newPackageLookup(dbh);
+        }
+        return packageLookup.isKnownPackage(sha1);
+    }
+
+    private void prepareInserts() throws SQLException {
+        if (insertChecksumStatement == null) {
+            dbh.setAutoCommit(false);
+            if (bulkLoad) {
+                bulkLoader = new BulkLoader(dbh);
+            } else {
+                insertPackageStatement = dbh.prepareStatement(getInsertPackageCommand());
+                insertContentStatement = dbh.prepareStatement(getInsertContentCommand());
+                insertFileStatement = dbh.prepareStatement(getInsertFileCommand());
+                selectPackageIdsStatement = dbh.prepareStatement(getSelectIdsCommand("nuget_index_packages", false, "name", "version"));
+                selectContentIdsStatement = dbh.prepareStatement(getSelectIdsCommand("nuget_index_contents", true, "digest_sha1", "digest_md5"));
+            }
+            insertSourcePackageStatement = dbh.prepareStatement(getInsertSourcePackageCommand(dbh));
+            insertChecksumStatement = dbh.prepareStatement(getInsertChecksumCommand());
+        }
+    }
+
+    public synchronized void flushIfFull() throws SQLException {
+        if (pendingRows >= batchSize) {
+            flush();
+        }
+    }
+
+    public synchronized void flush() throws SQLException {
+        if (pendingRows > 0) {
+            LOGGER.debug("Writing {} rows", pendingRows);
+            final long start = System.nanoTime();
+            if (bulkLoader != null) {
+                bulkLoader.load();
+            } else {
+                // Files refer to packages and contents, so they have to go last. Their ids are selected once per package
+                // or content rather than by subselects of each file row.
+                for (final NugetIdentifier nugetIdentifier : pendingPackages.values()) {
+                    insertPackageStatement.setString(1, nugetIdentifier.getId());
+                    insertPackageStatement.setString(2, nugetIdentifier.getVersion());
+                    insertPackageStatement.addBatch();
+                }
+                insertPackageStatement.executeBatch();
+                final Map<String, Long> packageIds = selectIds(selectPackageIdsStatement, new ArrayList<>(pendingPackages.keySet()),
+                        pendingPackages.values().stream().map(NugetIdentifier::getId).toArray(String[]::new),
+                        pendingPackages.values().stream().map(NugetIdentifier::getVersion).toArray(String[]::new));
+                for (final Hashing.Digests digests : pendingContents.values()) {
+                    insertContentStatement.setBytes(1, digests.get(Hashing.Algorithm.SHA1));
+                    insertContentStatement.setBytes(2, digests.get(Hashing.Algorithm.MD5));
+                    insertContentStatement.setBytes(3, digests.get(Hashing.Algorithm.SHA256));
+                    insertContentStatement.addBatch();
+                }
+                insertContentStatement.executeBatch();
+                final Map<String, Long> contentIds = selectIds(selectContentIdsStatement, new ArrayList<>(pendingContents.keySet()),
+                        pendingContents.values().stream().map(digests -> digests.getHex(Hashing.Algorithm.SHA1)).toArray(String[]::new),
+                        pendingContents.values().stream().map(digests -> digests.getHex(Hashing.Algorithm.MD5)).toArray(String[]::new));
+                pendingContents.clear();
+                // In the order of the primary key, like the packages and contents above.
+                pendingFiles.sort(Comparator.comparing((PendingFile file) -> contentIds.get(file.contentKey))
+                        .thenComparing(file -> packageIds.get(file.packageKey))
+                        .thenComparing(file -> file.fileName));
+                if (getDialect(dbh).equals("postgresql")) {
+                    insertFileStatement.setArray(1, dbh.createArrayOf("int8", pendingFiles.stream().map(file -> packageIds.get(file.packageKey)).toArray(Long[]::new)));
+                    insertFileStatement.setArray(2, dbh.createArrayOf("varchar", pendingFiles.stream().map(file -> file.fileName).toArray(String[]::new)));
+                    insertFileStatement.setArray(3, dbh.createArrayOf("int8", pendingFiles.stream().map(file -> contentIds.get(file.contentKey)).toArray(Long[]::new)));
+                    insertFileStatement.executeUpdate();
+                } else {
+                    for (final PendingFile file : pendingFiles) {
+                        insertFileStatement.setLong(1, packageIds.get(file.packageKey));
+                        insertFileStatement.setString(2, file.fileName);
+                        insertFileStatement.setLong(3, contentIds.get(file.contentKey));
+                        insertFileStatement.addBatch();
+                    }
+                    insertFileStatement.executeBatch();
+                }
+                pendingFiles.clear();
+            }
+            for (final NugetIdentifier nugetIdentifier : pendingPackages.values()) {
+                insertSourcePackageStatement.setString(1, sourceHash);
+                insertSourcePackageStatement.setString(2, nugetIdentifier.getId());
+                insertSourcePackageStatement.setString(3, nugetIdentifier.getVersion());
+                insertSourcePackageStatement.addBatch();
+            }
+            pendingPackages.clear();
+            insertSourcePackageStatement.executeBatch();
+            for (final Map.Entry<String, NugetIdentifier> checksum : pendingChecksums.entrySet()) {
+                insertChecksumStatement.setBytes(1, DatatypeConverter.parseHexBinary(checksum.getKey()));
+                insertChecksumStatement.setString(2, checksum.getValue().getId());
+                insertChecksumStatement.setString(3, checksum.getValue().getVersion());
+                insertChecksumStatement.addBatch();
+            }
+            pendingChecksums.clear();
+            insertChecksumStatement.executeBatch();
+            // Tells the lookup mode to drop its cache, see DbHashResolver.getGeneration(). It goes last, as it waits for
+            // other writers doing the same.
+            try (Statement statement = dbh.createStatement()) {
+                statement.executeUpdate("UPDATE nuget_index_state SET writes = writes + 1 WHERE id = 1");
+            }
+            dbh.commit();
+            Metrics.DB_FLUSH_TIME.observeSince(start);
+            pendingRows = 0;
         }
     }
 
-    private String getInsertCommand() throws SQLException {
+    private String getInsertPackageCommand() throws SQLException {
         String databaseProductName = dbh.getMetaData().getDatabaseProductName();
         switch(databaseProductName){
             case "MySQL":
             case "MariaDB":
-                return "INSERT IGNORE INTO nuget_index_hashes (name, version, file_name, digest_hex_sha1, digest_hex_md5) VALUES(?, ?, ?, ?, ?)";
+                return "INSERT IGNORE INTO nuget_index_packages (name, version) VALUES(?, ?)";
             case "PostgreSQL":
-                return "INSERT INTO nuget_index_hashes (name, version, file_name, digest_hex_sha1, digest_hex_md5) VALUES(?, ?, ?, ?, ?)" +
-                        "ON CONFLICT (name, version, file_name, digest_hex_sha1, digest_hex_md5) DO NOTHING";
+                return "INSERT INTO nuget_index_packages (name, version) VALUES(?, ?) ON CONFLICT (name, version) DO NOTHING";
             default:
                 throw new SQLException("Unexpected database: " + databaseProductName);
         }
     }
 
+    private String getInsertContentCommand() throws SQLException {
+        String databaseProductName = dbh.getMetaData().getDatabaseProductName();
+        switch(databaseProductName){
+            case "MySQL":
+            case "MariaDB":
+                return "INSERT IGNORE INTO nuget_index_contents (digest_sha1, digest_md5, digest_sha256) VALUES(?, ?, ?)";
+            case "PostgreSQL":
+                return "INSERT INTO nuget_index_contents (digest_sha1, digest_md5, digest_sha256) VALUES(?, ?, ?) " +
+                        "ON CONFLICT (digest_sha1, digest_md5) DO NOTHING";
+            default:
+                throw new SQLException("Unexpected database: " + databaseProductName);
+        }
+    }
+
+    /**
+     * Selects ids of rows, which have been already inserted in this transaction, by the values of their columns.
+     *
+     * @param statement see {@link #getSelectIdsCommand(String, boolean, String...)}
+     * @param keys keys of the rows, in the order of the values
+     * @param values values of each column
+     * @return ids by the keys
+     */
+    private Map<String, Long> selectIds(PreparedStatement statement, List<String> keys, String[]... values) throws SQLException {
+        final Map<String, Long> ids = new HashMap<>();
+        if (getDialect(dbh).equals("postgresql")) {
+            for (int column = 0; column < values.length; column++) {
+                statement.setArray(column + 1, dbh.createArrayOf("varchar", values[column]));
+            }
+            readIds(statement, keys, 0, ids);
+        } else {
+            for (int start = 0; start < keys.size(); start += ID_CHUNK_SIZE) {
+                for (int i = 0; i < ID_CHUNK_SIZE; i++) {
+                    // The last chunk is padded by its last row, so that a single statement fits all the chunks.
+                    final int row = Math.min(start + i, keys.size() - 1);
+                    for (int column = 0; column < values.length; column++) {
+                        statement.setString(i * values.length + column + 1, values[column][row]);
+                    }
+                }
+                readIds(statement, keys, start, ids);
+            }
+        }
+        for (final String key : keys) {
+            if (!ids.containsKey(key)) {
+                throw new SQLException("Cannot find the inserted row of " + key);
+            }
+        }
+        return ids;
+    }
+
+    private static void readIds(PreparedStatement statement, List<String> keys, int start, Map<String, Long> ids) throws SQLException {
+        try (ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                final int row = start + resultSet.getInt(1);
+                if (row < keys.size()) {
+                    ids.put(keys.get(row), resultSet.getLong(2));
+                }
+            }
+        }
+    }
+
+    /**
+     * Selects ids with the positions of their rows, which are given by a parameter per column. PostgreSQL gets all the
+     * rows at once as arrays. MySQL gets {@link #ID_CHUNK_SIZE} rows by a branch per row, which compares the values
+     * like the inserts do (e.g., case-insensitively). It reads with locks, as a plain read in its REPEATABLE READ
+     * transaction would not see rows committed by concurrent writers meanwhile.
+     *
+     * @param hex if true, the columns are binary and their values are given in hex, as the driver cannot send arrays
+     *            of binary values
+     */
+    private String getSelectIdsCommand(String table, boolean hex, String... columns) throws SQLException {
+        final StringBuilder command = new StringBuilder();
+        switch (getDialect(dbh)) {
+            case "mysql":
+                for (int i = 0; i < ID_CHUNK_SIZE; i++) {
+                    command.append(i > 0 ? " UNION ALL " : "").append("(SELECT ").append(i).append(", id FROM ").append(table).append(" WHERE ");
+                    for (int column = 0; column < columns.length; column++) {
+                        command.append(column > 0 ? " AND " : "").append(columns[column]).append(hex ? " = UNHEX(?)" : " = ?");
+                    }
+                    command.append(" LOCK IN SHARE MODE)");
+                }
+                break;
+            case "postgresql":
+                command.append("SELECT v.row - 1, t.id FROM unnest(");
+                for (int column = 0; column < columns.length; column++) {
+                    command.append(column > 0 ? ", " : "").append("?");
+                }
+                command.append(") WITH ORDINALITY AS v(").append(String.join(", ", columns)).append(", row) JOIN ").append(table).append(" t ON ");
+                for (int column = 0; column < columns.length; column++) {
+                    final String value = "v." + columns[column];
+                    command.append(column > 0 ? " AND " : "").append("t.").append(columns[column]).append(" = ")
+                            .append(hex ? "decode(" + value + ", 'hex')" : value);
+                }
+                break;
+            default:
+                throw new AssertionError(getDialect(dbh));
+        }
+        return command.toString();
+    }
+
+    private String getInsertFileCommand() throws SQLException {
+        String databaseProductName = dbh.getMetaData().getDatabaseProductName();
+        switch(databaseProductName){
+            case "MySQL":
+            case "MariaDB":
+                // The driver can rewrite the batch to multi-row inserts (rewriteBatchedStatements).
+                return "INSERT IGNORE INTO nuget_index_package_files (package_id, file_name, content_id) VALUES(?, ?, ?)";
+            case "PostgreSQL":
+                // All the files of a flush by a single statement, whatever the driver options.
+                return "INSERT INTO nuget_index_package_files (package_id, file_name, content_id) " +
+                        "SELECT * FROM unnest(?::int8[], ?::varchar[], ?::int8[]) " +
+                        "ON CONFLICT (content_id, package_id, file_name) DO NOTHING";
+            default:
+                throw new SQLException("Unexpected database: " + databaseProductName);
+        }
+    }
+
+    private String getInsertChecksumCommand() throws SQLException {
+        String databaseProductName = dbh.getMetaData().getDatabaseProductName();
+        switch(databaseProductName){
+            case "MySQL":
+            case "MariaDB":
+                return "INSERT IGNORE INTO nuget_index_package_checksums (digest_sha1, package_id) " +
+                        "VALUES(?, (SELECT id FROM nuget_index_packages WHERE name = ? AND version = ?))";
+            case "PostgreSQL":
+                return "INSERT INTO nuget_index_package_checksums (digest_sha1, package_id) " +
+                        "VALUES(?, (SELECT id FROM nuget_index_packages WHERE name = ? AND version = ?)) " +
+                        "ON CONFLICT (digest_sha1) DO NOTHING";
+            default:
+                throw new SQLException("Unexpected database: " + databaseProductName);
+        }
+    }
+
+    /**
+     * Records that the package has been found in the source. Parameters: source hash, package name and version.
+     */
+    static String getInsertSourcePackageCommand(Connection dbh) throws SQLException {
+        return insertIgnoring(dbh, "INSERT INTO nuget_index_source_packages (source_hash, package_id) " +
+                "SELECT ?, id FROM nuget_index_packages WHERE name = ? AND version = ?");
+    }
+
     public long getLastModifiedTime() {
         return lastModifiedTime;
     }
+
+    private static final class PendingFile {
+        private final String packageKey;
+
+        private final String fileName;
+
+        private final String contentKey;
+
+        private PendingFile(String packageKey, String fileName, String contentKey) {
+            this.packageKey = packageKey;
+            this.fileName = fileName;
+            this.contentKey = contentKey;
+        }
+    }
 }
@@ -3,8 +3,10 @@ package com.ysoft.security;
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.NoSuchAlgorithmException;
+import java.nio.file.Path;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.xml.stream.XMLEventReader;
@@ -13,7 +15,9 @@ import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.events.XMLEvent;
 
 import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,12 +28,14 @@ public class NugetReader {
     }
 
     public static NugetMetadata analyzeNuget(InputStream in, String expectedName, String expectedVersion) throws IOException {
+        final long start = System.nanoTime();
         NugetIdentifier nugetIdentifier = null;
-        final Map<String, Map<String, String>> hashesForFiles = new HashMap<>();
-        try (ZipArchiveInputStream zip = new ZipArchiveInputStream(new BufferedInputStream(in))) {
+        final Map<String, Hashing.Digests> digestsForFiles = new HashMap<>();
+        try (ZipArchiveInputStream zip = new ZipArchiveInputStream(new BufferedInputStream(in)); Hashing.Hasher hasher = Hashing.hasher()) {
             ArchiveEntry entry;
             while ((entry = zip.getNextEntry()) != null) {
-                final Hashing.HashingInputStream hashIn = new Hashing.HashingInputStream(zip);
+                final Hashing.HashingInputStream hashIn = new Hashing.HashingInputStream(
+                        new Metrics.MeteredInputStream(zip, Metrics.UNZIPPED_BYTES, Metrics.UNZIP_TIME), hasher);
                 if (isManifest(entry)) {
                     if (nugetIdentifier == null) {
                         nugetIdentifier = getNugetIdentifierFromManifest(hashIn);
@@ -37,22 +43,75 @@ public class NugetReader {
                         throw new IOException("Multiple NuGet manifests!");
                     }
                 }
-                consumeStream(hashIn); // read the rest
+                hashIn.consume(); // read the rest
                 if (!isBlacklistedFile(entry.getName())) {
-                    final Object previous = hashesForFiles.put(entry.getName(), hashIn.finalizeHashes());
+                    final Object previous = digestsForFiles.put(entry.getName(), hashIn.finish());
                     if (previous != null && entry.getName().toLowerCase().endsWith(".dll")) {
                         throw new IOException("Multiple occurrences of file: " + entry.getName());
                     }
                 }
             }
-        } catch (NoSuchAlgorithmException e) {
-            throw new AssertionError(e);
         } catch (XMLStreamException e) {
             throw new IOException(e);
         }
         if (nugetIdentifier == null) {
             throw new IOException("Missing manifest file");
         }
+        checkIdentifier(nugetIdentifier, expectedName, expectedVersion);
+        final NugetMetadata nugetMetadata = new NugetMetadata(nugetIdentifier, digestsForFiles);
+        Metrics.PACKAGE_ANALYSIS_TIME.observeSince(start);
+        LOGGER.info("name: " + nugetIdentifier.getId() + ", version: " + nugetIdentifier.getVersion());
+        return nugetMetadata;
+    }
+
+    /**
+     * Analyzes a local file. Unlike the streaming variant, this reads the ZIP central directory, so it can read the
+     * manifest first and it does not inflate entries that are not going to be stored at all. The results are the same
+     * as for {@link #analyzeNuget(InputStream, String, String)}.
+     */
+    public static NugetMetadata analyzeNuget(Path file, String expectedName, String expectedVersion) throws IOException {
+        final long start = System.nanoTime();
+        try (ZipFile zip = new ZipFile(file.toFile()); Hashing.Hasher hasher = Hashing.hasher()) {
+            // Physical order, so that the last of duplicate entries wins like with the streaming variant.
+            final List<ZipArchiveEntry> entries = Collections.list(zip.getEntriesInPhysicalOrder());
+            final Map<String, Hashing.Digests> digestsForFiles = new HashMap<>();
+            NugetIdentifier nugetIdentifier = null;
+            for (final ZipArchiveEntry entry : entries) {
+                if (isManifest(entry)) {
+                    if (nugetIdentifier != null) {
+                        throw new IOException("Multiple NuGet manifests!");
+                    }
+                    try (InputStream in = zip.getInputStream(entry)) {
+                        nugetIdentifier = getNugetIdentifierFromManifest(in);
+                    }
+                }
+            }
+            if (nugetIdentifier == null) {
+                throw new IOException("Missing manifest file");
+            }
+            // Fail fast, before inflating the rest.
+            checkIdentifier(nugetIdentifier, expectedName, expectedVersion);
+            for (final ZipArchiveEntry entry : entries) {
+                if (!isBlacklistedFile(entry.getName())) {
+                    final Hashing.Digests digests;
+                    try (InputStream in = new Metrics.MeteredInputStream(zip.getInputStream(entry), Metrics.UNZIPPED_BYTES, Metrics.UNZIP_TIME)) {
+                        digests = hasher.hash(in);
+                    }
+                    final Object previous = digestsForFiles.put(entry.getName(), digests);
+                    if (previous != null && entry.getName().toLowerCase().endsWith(".dll")) {
+                        throw new IOException("Multiple occurrences of file: " + entry.getName());
+                    }
+                }
+            }
+            Metrics.PACKAGE_ANALYSIS_TIME.observeSince(start);
+            LOGGER.info("name: " + nugetIdentifier.getId() + ", version: " + nugetIdentifier.getVersion());
+            return new NugetMetadata(nugetIdentifier, digestsForFiles);
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static void checkIdentifier(NugetIdentifier nugetIdentifier, String expectedName, String expectedVersion) throws IOException {
         if (expectedName != null) {
             if (!expectedName.equalsIgnoreCase(nugetIdentifier.getId())) {
                 throw new IOException("Does not equal: " + expectedName + " and " + nugetIdentifier.getId());
@@ -63,9 +122,6 @@ public class NugetReader {
                 throw new IOException("Does not equal: " + expectedVersion + " and " + nugetIdentifier.getVersion());
             }
         }
-        final NugetMetadata nugetMetadata = new NugetMetadata(nugetIdentifier, hashesForFiles);
-        LOGGER.info("name: " + nugetIdentifier.getId() + ", version: " + nugetIdentifier.getVersion());
-        return nugetMetadata;
     }
 
     private static boolean isBlacklistedFile(String name) {
@@ -73,14 +129,6 @@ public class NugetReader {
         return nn.endsWith(".xml") || nn.endsWith("/.rels");
     }
 
-    private static void consumeStream(InputStream hashIn) throws IOException {
-        final byte[] buffer = new byte[4096];
-        //noinspection StatementWithEmptyBody
-        while (hashIn.read(buffer) > 0) {
-            // just consume in order to compute the proper hash
-        }
-    }
-
     public static NugetIdentifier getNugetIdentifierFromManifest(InputStream input) throws XMLStreamException, IOException {
         String id = null;
         String version = null;
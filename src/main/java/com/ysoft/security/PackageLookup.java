@@ -0,0 +1,70 @@
+package com.ysoft.security;
+
+import javax.xml.bind.DatatypeConverter;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Finds already indexed packages by their checksums. Lookups are serialized, because a connection is not thread-safe.
+ * With a connection of its own, a lookup does not wait for writers, which hold their connections for whole batches.
+ * <p>
+ * A found package is recorded for the source (see nuget_index_source_packages) unless it is already, because the source
+ * is not going to store it. Otherwise, {@link Reconciler} would remove it once it is gone from the source that has
+ * stored it, even though this source still has it.
+ */
+class PackageLookup implements AutoCloseable {
+    private final Connection dbh;
+
+    private final String sourceHash;
+
+    private PreparedStatement selectChecksumStatement;
+
+    private PreparedStatement insertSourcePackageStatement;
+
+    PackageLookup(Connection dbh, String sourceHash) {
+        this.dbh = dbh;
+        this.sourceHash = sourceHash;
+    }
+
+    synchronized boolean isKnownPackage(String sha1) throws SQLException {
+        if (selectChecksumStatement == null) {
+            selectChecksumStatement = dbh.prepareStatement("SELECT c.package_id, EXISTS (SELECT 1 FROM nuget_index_source_packages s " +
+                    "WHERE s.source_hash = ? AND s.package_id = c.package_id) FROM nuget_index_package_checksums c WHERE c.digest_sha1 = ?");
+        }
+        selectChecksumStatement.setString(1, sourceHash);
+        selectChecksumStatement.setBytes(2, DatatypeConverter.parseHexBinary(sha1));
+        final long packageId;
+        try (ResultSet resultSet = selectChecksumStatement.executeQuery()) {
+            if (!resultSet.next()) {
+                return false;
+            }
+            packageId = resultSet.getLong(1);
+            // Checksums stored before schema 11 have no package, so there is nothing to record.
+            if (resultSet.wasNull() || resultSet.getBoolean(2)) {
+                return true;
+            }
+        }
+        if (insertSourcePackageStatement == null) {
+            insertSourcePackageStatement = dbh.prepareStatement(NugetMetadataStore.insertIgnoring(dbh,
+                    "INSERT INTO nuget_index_source_packages (source_hash, package_id) VALUES (?, ?)"));
+        }
+        insertSourcePackageStatement.setString(1, sourceHash);
+        insertSourcePackageStatement.setLong(2, packageId);
+        insertSourcePackageStatement.execute();
+        return true;
+    }
+
+    @Override
+    public synchronized void close() throws SQLException {
+        if (selectChecksumStatement != null) {
+            selectChecksumStatement.close();
+            selectChecksumStatement = null;
+        }
+        if (insertSourcePackageStatement != null) {
+            insertSourcePackageStatement.close();
+            insertSourcePackageStatement = null;
+        }
+    }
+}
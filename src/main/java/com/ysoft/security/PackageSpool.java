@@ -0,0 +1,263 @@
+package com.ysoft.security;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * On-disk cache of downloaded packages, keyed by their SHA-1, so that a package is downloaded once and analyzed from a
+ * local file. It is shared by reruns (e.g., after a crash) and by all repositories and sources using the same directory.
+ * <p>
+ * The least recently used packages are deleted when the total size exceeds the limit. The order survives restarts,
+ * because the modification time of a file is updated when it is used. Packages in use are never deleted, so the limit
+ * can be exceeded temporarily by up to the number of packages in use.
+ */
+public class PackageSpool {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PackageSpool.class);
+
+    private static final String SUFFIX = ".nupkg";
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final Map<Path, PackageSpool> OPEN_SPOOLS = new HashMap<>();
+
+    private final Path directory;
+
+    private final long maxBytes;
+
+    /**
+     * Sizes of stored packages in access order.
+     */
+    private final LinkedHashMap<String, Long> sizes = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final Map<String, Integer> pins = new HashMap<>();
+
+    private long totalBytes;
+
+    PackageSpool(Path directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(directory);
+        load();
+        LOGGER.info("Spool {} contains {} packages ({} MiB)", directory, sizes.size(), totalBytes >> 20);
+    }
+
+    /**
+     * Returns the spool in the directory. It is opened once per process, so that all sources and passes using the
+     * directory share the size limit.
+     */
+    public static PackageSpool open(Path directory, long maxBytes) throws IOException {
+        final Path key = directory.toAbsolutePath().normalize();
+        synchronized (OPEN_SPOOLS) {
+            final PackageSpool spool = OPEN_SPOOLS.get(key);
+            if (spool == null) {
+                final PackageSpool newSpool = new PackageSpool(key, maxBytes);
+                OPEN_SPOOLS.put(key, newSpool);
+                return newSpool;
+            }
+            if (spool.maxBytes != maxBytes) {
+                throw new IOException("Spool " + key + " is already used with a limit of " + spool.maxBytes + " bytes");
+            }
+            return spool;
+        }
+    }
+
+    /**
+     * A package in the spool. It is not deleted until it is closed.
+     */
+    public final class Entry implements AutoCloseable {
+        private final String sha1;
+        private final Path file;
+        private boolean closed;
+
+        private Entry(String sha1, Path file) {
+            this.sha1 = sha1;
+            this.file = file;
+        }
+
+        public String getSha1() {
+            return sha1;
+        }
+
+        public Path getFile() {
+            return file;
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (PackageSpool.this) {
+                if (!closed) {
+                    closed = true;
+                    unpin(sha1);
+                    evict();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the package with the given SHA-1, or null if it is not in the spool.
+     */
+    public Entry get(String sha1) throws IOException {
+        final String key = sha1.toLowerCase(Locale.ROOT);
+        final Path file = fileFor(key);
+        synchronized (this) {
+            if (sizes.get(key) == null) {
+                return null;
+            }
+            pin(key);
+        }
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (NoSuchFileException e) {
+            // Deleted meanwhile, e.g., manually
+            synchronized (this) {
+                unpin(key);
+                remove(key);
+            }
+            return null;
+        }
+        return new Entry(key, file);
+    }
+
+    /**
+     * Stores the package read from the stream. The stream is read until its end.
+     *
+     * @param expectedSha1 SHA-1 reported by the server if known, otherwise null; a mismatching package is rejected
+     */
+    public Entry put(InputStream in, String expectedSha1) throws IOException {
+        final Path temp = Files.createTempFile(directory, "download-", TEMP_SUFFIX);
+        try {
+            final MessageDigest digest = newSha1();
+            final long size;
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                final byte[] buffer = new byte[64 * 1024];
+                long total = 0;
+                int len;
+                while ((len = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, len);
+                    out.write(buffer, 0, len);
+                    total += len;
+                }
+                size = total;
+            }
+            final String sha1 = DatatypeConverter.printHexBinary(digest.digest()).toLowerCase(Locale.ROOT);
+            if (expectedSha1 != null && !expectedSha1.equalsIgnoreCase(sha1)) {
+                throw new IOException("Downloaded package has SHA-1 " + sha1 + ", expected " + expectedSha1);
+            }
+            final Path file = fileFor(sha1);
+            Files.createDirectories(file.getParent());
+            synchronized (this) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                final Long previous = sizes.put(sha1, size);
+                totalBytes += size - (previous == null ? 0 : previous);
+                Metrics.SPOOL_BYTES.add(size - (previous == null ? 0 : previous));
+                pin(sha1);
+                evict();
+            }
+            return new Entry(sha1, file);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private Path fileFor(String sha1) {
+        return directory.resolve(sha1.substring(0, 2)).resolve(sha1 + SUFFIX);
+    }
+
+    private void pin(String sha1) {
+        pins.merge(sha1, 1, Integer::sum);
+    }
+
+    private void unpin(String sha1) {
+        pins.computeIfPresent(sha1, (key, count) -> count == 1 ? null : count - 1);
+    }
+
+    private void remove(String sha1) {
+        final Long size = sizes.remove(sha1);
+        if (size != null) {
+            totalBytes -= size;
+            Metrics.SPOOL_BYTES.add(-size);
+        }
+    }
+
+    private synchronized void evict() throws IOException {
+        final Iterator<Map.Entry<String, Long>> iterator = sizes.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            final Map.Entry<String, Long> entry = iterator.next();
+            if (!pins.containsKey(entry.getKey())) {
+                LOGGER.debug("Evicting {} from the spool", entry.getKey());
+                Files.deleteIfExists(fileFor(entry.getKey()));
+                totalBytes -= entry.getValue();
+                Metrics.SPOOL_BYTES.add(-entry.getValue());
+                iterator.remove();
+            }
+        }
+    }
+
+    private void load() throws IOException {
+        final List<Path> files = new ArrayList<>();
+        final Map<Path, BasicFileAttributes> attributes = new HashMap<>();
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                final String name = file.getFileName().toString();
+                if (name.endsWith(TEMP_SUFFIX)) {
+                    // A download interrupted by a crash
+                    Files.delete(file);
+                } else if (name.endsWith(SUFFIX)) {
+                    files.add(file);
+                    attributes.put(file, attrs);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        files.sort(Comparator.comparing(file -> attributes.get(file).lastModifiedTime()));
+        for (final Path file : files) {
+            final String name = file.getFileName().toString();
+            final long size = attributes.get(file).size();
+            sizes.put(name.substring(0, name.length() - SUFFIX.length()), size);
+            totalBytes += size;
+        }
+        Metrics.SPOOL_BYTES.add(totalBytes);
+        evict();
+    }
+
+    private static MessageDigest newSha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PackageSpool{" +
+                "directory=" + directory +
+                ", maxBytes=" + maxBytes +
+                '}';
+    }
+}
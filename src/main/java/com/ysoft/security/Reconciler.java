@@ -0,0 +1,467 @@
+package com.ysoft.security;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Locale;
+
+/**
+ * Removes packages that have disappeared from a source. The listing of the source and the packages recorded for the
+ * source (see nuget_index_source_packages) are both sorted by {@link #compare(String, String, String, String)} and
+ * merged like in a merge join, so neither of them is loaded into memory. Stale packages are detached from the source
+ * in batches; a package detached from all its sources is deleted with its files and checksum. File contents are kept,
+ * as they can be shared by other packages and they are not found by lookups without files.
+ * <p>
+ * Listed packages that are not recorded for the source yet (e.g., indexed before the packages were recorded) are
+ * recorded, so that they can be removed later.
+ * <p>
+ * Sources whose listing cannot tell ids and versions of packages (Artifactory) are reconciled by SHA-1 checksums of
+ * the packages instead, see {@link #reconcileChecksums(ChecksumListing)}.
+ * <p>
+ * The merge runs twice. The first run only counts the stale packages, and nothing is changed if there are too many of
+ * them. A source that looks empty or partial, e.g., because a path is not mounted, would otherwise lose its packages.
+ */
+public class Reconciler {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Reconciler.class);
+
+    private static final int FETCH_SIZE = 10000;
+
+    private static final int PROGRESS_INTERVAL = 100000;
+
+    /**
+     * Receives packages of a source in the order of {@link #compare(String, String, String, String)}.
+     */
+    public interface PackageConsumer {
+        void accept(String name, String version) throws IOException;
+    }
+
+    public interface PackageListing {
+        void list(PackageConsumer consumer) throws IOException;
+    }
+
+    /**
+     * Receives SHA-1 checksums of packages of a source, in hex, in ascending order.
+     */
+    public interface ChecksumConsumer {
+        void accept(String sha1) throws IOException;
+    }
+
+    public interface ChecksumListing {
+        void list(ChecksumConsumer consumer) throws IOException;
+    }
+
+    /**
+     * Changes found by {@link #merge(PackageListing, Cursor, Changes)}.
+     */
+    interface Changes {
+        /**
+         * The recorded package is not listed anymore.
+         */
+        void detach(long packageId, String name, String version) throws SQLException;
+
+        /**
+         * The listed package has not been recorded.
+         */
+        void attach(String name, String version) throws SQLException;
+    }
+
+    private final Connection readDbh;
+
+    private final Connection writeDbh;
+
+    private final String sourceHash;
+
+    private final int batchSize;
+
+    private final int maxRemovalPercent;
+
+    private PreparedStatement detachStatement;
+
+    private PreparedStatement[] deleteStatements;
+
+    private PreparedStatement attachStatement;
+
+    private int pendingRows = 0;
+
+    private long listed = 0;
+
+    private long detached = 0;
+
+    private long attached = 0;
+
+    /**
+     * @param readDbh  connection for the sorted cursor, which is not closed until the end
+     * @param writeDbh connection for the changes; it has to be another one, because MySQL/MariaDB cannot run other
+     *                 statements on a connection while it is streaming a result set
+     * @param maxRemovalPercent maximum share of the recorded packages that can be detached, in percent
+     */
+    public Reconciler(Connection readDbh, Connection writeDbh, String sourceHash, int batchSize, int maxRemovalPercent) {
+        this.readDbh = readDbh;
+        this.writeDbh = writeDbh;
+        this.sourceHash = sourceHash;
+        this.batchSize = batchSize;
+        this.maxRemovalPercent = maxRemovalPercent;
+    }
+
+    /**
+     * Order of packages for the merge: case-insensitive by name (like NuGet ids), then by version. Both are compared
+     * by code points. The recorded packages are selected in the same order by forcing it in their ORDER BY (COLLATE "C"
+     * on PostgreSQL, a cast to BINARY on MariaDB/MySQL), whatever the collation of the columns is.
+     */
+    static int compare(String name1, String version1, String name2, String version2) {
+        final int byName = compareCodePoints(name1.toLowerCase(Locale.ROOT), name2.toLowerCase(Locale.ROOT));
+        return byName != 0 ? byName : compareCodePoints(version1, version2);
+    }
+
+    private static int compareCodePoints(String a, String b) {
+        int i = 0;
+        int j = 0;
+        while (i < a.length() && j < b.length()) {
+            final int ca = a.codePointAt(i);
+            final int cb = b.codePointAt(j);
+            if (ca != cb) {
+                return Integer.compare(ca, cb);
+            }
+            i += Character.charCount(ca);
+            j += Character.charCount(cb);
+        }
+        return Boolean.compare(i < a.length(), j < b.length());
+    }
+
+    public void reconcile(PackageListing listing) throws IOException, SQLException {
+        reconcile(listing, false);
+    }
+
+    /**
+     * Reconciles the source by checksums of its packages. They are merged like ids and versions, as names with empty
+     * versions in lower case, which sorts them like their bytes in the DB. Packages recorded without a checksum (i.e.,
+     * indexed before schema 11) and packages with several checksums (i.e., different files of the same id and version)
+     * are never detached, because the listing of one checksum does not tell whether the package is still there.
+     */
+    public void reconcileChecksums(ChecksumListing listing) throws IOException, SQLException {
+        reconcile(consumer -> listing.list(sha1 -> consumer.accept(sha1.toLowerCase(Locale.ROOT), "")), true);
+    }
+
+    private void reconcile(PackageListing listing, boolean byChecksum) throws IOException, SQLException {
+        final boolean readAutoCommit = readDbh.getAutoCommit();
+        final boolean writeAutoCommit = writeDbh.getAutoCommit();
+        // PostgreSQL streams results only within a transaction.
+        readDbh.setAutoCommit(false);
+        writeDbh.setAutoCommit(false);
+        detached = 0;
+        attached = 0;
+        try {
+            final long[] stale = new long[1];
+            final long recorded = mergeRecorded(listing, byChecksum, new Changes() {
+                @Override
+                public void detach(long packageId, String name, String version) {
+                    stale[0]++;
+                }
+
+                @Override
+                public void attach(String name, String version) {
+                }
+            });
+            checkRemovals(stale[0], recorded);
+            LOGGER.info("Found {} stale packages of {} recorded ones", stale[0], recorded);
+            mergeRecorded(listing, byChecksum, new Changes() {
+                @Override
+                public void detach(long packageId, String name, String version) throws SQLException {
+                    Reconciler.this.detach(packageId, name, version);
+                }
+
+                @Override
+                public void attach(String name, String version) throws SQLException {
+                    Reconciler.this.attach(name, version, byChecksum);
+                }
+            });
+            flush();
+            LOGGER.info("Reconciled {} listed packages, detached {} stale ones and recorded {} new ones", listed, detached, attached);
+        } finally {
+            close(detachStatement);
+            close(attachStatement);
+            if (deleteStatements != null) {
+                for (final PreparedStatement deleteStatement : deleteStatements) {
+                    close(deleteStatement);
+                }
+            }
+            detachStatement = null;
+            attachStatement = null;
+            deleteStatements = null;
+            pendingRows = 0;
+            // Nothing pending after a successful flush, so this drops just an unfinished batch.
+            writeDbh.rollback();
+            writeDbh.setAutoCommit(writeAutoCommit);
+            readDbh.rollback();
+            readDbh.setAutoCommit(readAutoCommit);
+        }
+    }
+
+    /**
+     * Merges the listing with the packages recorded for the source.
+     *
+     * @return number of the recorded packages
+     */
+    private long mergeRecorded(PackageListing listing, boolean byChecksum, Changes changes) throws IOException, SQLException {
+        final String command = byChecksum ? getSelectChecksumsCommand(readDbh) : getSelectCommand(readDbh);
+        try (PreparedStatement statement = readDbh.prepareStatement(command, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            // MySQL and MariaDB drivers stream results only with this magic value.
+            statement.setFetchSize(NugetMetadataStore.getDialect(readDbh).equals("postgresql") ? FETCH_SIZE : Integer.MIN_VALUE);
+            statement.setString(1, sourceHash);
+            try (ResultSet recorded = statement.executeQuery()) {
+                final Cursor cursor = new ResultSetCursor(recorded);
+                merge(listing, cursor, changes);
+                return cursor.rows;
+            }
+        }
+    }
+
+    /**
+     * Refuses to detach more than the allowed share of the recorded packages.
+     */
+    void checkRemovals(long stale, long recorded) throws IOException {
+        if (stale > 0 && stale * 100 > recorded * maxRemovalPercent) {
+            throw new IOException("Refusing to remove " + stale + " of " + recorded + " packages recorded for the source, " +
+                    "which is more than " + maxRemovalPercent + " %. Check that all the paths of the source are available, " +
+                    "or allow more removals.");
+        }
+    }
+
+    /**
+     * Merges the sorted listing with the sorted recorded packages: recorded packages missing in the listing are
+     * detached and listed packages that are not recorded are attached.
+     */
+    void merge(PackageListing listing, Cursor cursor, Changes changes) throws IOException, SQLException {
+        listed = 0;
+        cursor.next();
+        final String[] previous = new String[2];
+        listing.list((name, version) -> {
+            if (previous[0] != null) {
+                final int order = compare(previous[0], previous[1], name, version);
+                if (order == 0) {
+                    return; // the same package in another directory
+                }
+                if (order > 0) {
+                    throw new IOException("The listing is not sorted: " + name + " " + version + " follows " + previous[0] + " " + previous[1]);
+                }
+            }
+            previous[0] = name;
+            previous[1] = version;
+            try {
+                while (cursor.name != null && compare(cursor.name, cursor.version, name, version) < 0) {
+                    changes.detach(cursor.packageId, cursor.name, cursor.version);
+                    cursor.next();
+                }
+                if (cursor.name != null && compare(cursor.name, cursor.version, name, version) == 0) {
+                    // A case-sensitive DB (PostgreSQL) can hold the package in several cases, e.g., "Foo 1.0" and
+                    // "foo 1.0". All of them match the listed one.
+                    do {
+                        cursor.next();
+                    } while (cursor.name != null && compare(cursor.name, cursor.version, name, version) == 0);
+                } else {
+                    changes.attach(name, version);
+                }
+                if (++listed % PROGRESS_INTERVAL == 0) {
+                    LOGGER.info("Reconciled {} listed packages", listed);
+                }
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+        });
+        while (cursor.name != null) {
+            changes.detach(cursor.packageId, cursor.name, cursor.version);
+            cursor.next();
+        }
+    }
+
+    /**
+     * Current row of the recorded packages, whose order is checked, so that a DB order different from
+     * {@link #compare(String, String, String, String)} cannot cause false removals.
+     */
+    abstract static class Cursor {
+        private long packageId;
+        private String name;
+        private String version;
+        private long rows = 0;
+
+        private void next() throws SQLException {
+            final String previousName = name;
+            final String previousVersion = version;
+            if (!fetch()) {
+                name = null;
+                version = null;
+                return;
+            }
+            rows++;
+            if (previousName != null && compare(previousName, previousVersion, name, version) > 0) {
+                throw new SQLException("Recorded packages are not sorted as expected: " + name + " " + version + " follows " + previousName + " " + previousVersion);
+            }
+        }
+
+        /**
+         * Moves to the next row and sets it by {@link #set(long, String, String)}.
+         *
+         * @return false if there are no more rows
+         */
+        abstract boolean fetch() throws SQLException;
+
+        final void set(long packageId, String name, String version) {
+            this.packageId = packageId;
+            this.name = name;
+            this.version = version;
+        }
+    }
+
+    private static final class ResultSetCursor extends Cursor {
+        private final ResultSet resultSet;
+
+        private ResultSetCursor(ResultSet resultSet) {
+            this.resultSet = resultSet;
+        }
+
+        @Override
+        boolean fetch() throws SQLException {
+            if (!resultSet.next()) {
+                return false;
+            }
+            set(resultSet.getLong(1), resultSet.getString(2), resultSet.getString(3));
+            return true;
+        }
+    }
+
+    private void detach(long packageId, String name, String version) throws SQLException {
+        LOGGER.info("Removing {} {}, because it is not in the source anymore", name, version);
+        if (detachStatement == null) {
+            detachStatement = writeDbh.prepareStatement("DELETE FROM nuget_index_source_packages WHERE source_hash = ? AND package_id = ?");
+            // Only packages that are not in any other source are deleted. Files and checksums go first, as they refer
+            // to the package.
+            final String orphan = "NOT EXISTS (SELECT 1 FROM nuget_index_source_packages s WHERE s.package_id = ?)";
+            deleteStatements = new PreparedStatement[]{
+                    writeDbh.prepareStatement("DELETE FROM nuget_index_package_files WHERE package_id = ? AND " + orphan),
+                    writeDbh.prepareStatement("DELETE FROM nuget_index_package_checksums WHERE package_id = ? AND " + orphan),
+                    writeDbh.prepareStatement("DELETE FROM nuget_index_packages WHERE id = ? AND " + orphan),
+            };
+        }
+        detachStatement.setString(1, sourceHash);
+        detachStatement.setLong(2, packageId);
+        detachStatement.addBatch();
+        for (final PreparedStatement deleteStatement : deleteStatements) {
+            deleteStatement.setLong(1, packageId);
+            deleteStatement.setLong(2, packageId);
+            deleteStatement.addBatch();
+        }
+        detached++;
+        pendingRows++;
+        flushIfFull();
+    }
+
+    /**
+     * @param byChecksum if true, the name is a SHA-1 checksum and the version is empty
+     */
+    private void attach(String name, String version, boolean byChecksum) throws SQLException {
+        if (attachStatement == null) {
+            attachStatement = writeDbh.prepareStatement(byChecksum ?
+                    NugetMetadataStore.insertIgnoring(writeDbh, "INSERT INTO nuget_index_source_packages (source_hash, package_id) " +
+                            "SELECT ?, package_id FROM nuget_index_package_checksums WHERE digest_sha1 = ? AND package_id IS NOT NULL") :
+                    NugetMetadataStore.getInsertSourcePackageCommand(writeDbh));
+        }
+        attachStatement.setString(1, sourceHash);
+        if (byChecksum) {
+            attachStatement.setBytes(2, DatatypeConverter.parseHexBinary(name));
+        } else {
+            attachStatement.setString(2, name);
+            attachStatement.setString(3, version);
+        }
+        attachStatement.addBatch();
+        pendingRows++;
+        flushIfFull();
+    }
+
+    private void flushIfFull() throws SQLException {
+        if (pendingRows >= batchSize) {
+            flush();
+        }
+    }
+
+    private void flush() throws SQLException {
+        if (pendingRows > 0) {
+            if (detachStatement != null) {
+                detachStatement.executeBatch();
+                int[] deletedPackages = new int[0];
+                for (final PreparedStatement deleteStatement : deleteStatements) {
+                    deletedPackages = deleteStatement.executeBatch(); // packages go last
+                }
+                boolean removed = false;
+                for (final int count : deletedPackages) {
+                    removed |= count != 0; // also an unknown count
+                }
+                if (removed) {
+                    // Tells the lookup mode to drop its cache, see DbHashResolver.getGeneration().
+                    try (Statement statement = writeDbh.createStatement()) {
+                        statement.executeUpdate("UPDATE nuget_index_state SET removals = removals + 1 WHERE id = 1");
+                    }
+                }
+            }
+            if (attachStatement != null) {
+                // Counts only packages that are in the index, i.e., not the ones that have not been indexed yet.
+                for (final int count : attachStatement.executeBatch()) {
+                    attached += Math.max(count, 0);
+                }
+            }
+            writeDbh.commit();
+            pendingRows = 0;
+        }
+    }
+
+    private static String getSelectCommand(Connection dbh) throws SQLException {
+        final String order;
+        switch (NugetMetadataStore.getDialect(dbh)) {
+            case "mysql":
+                order = "CAST(LOWER(p.name) AS BINARY), CAST(p.version AS BINARY)";
+                break;
+            case "postgresql":
+                order = "LOWER(p.name) COLLATE \"C\", p.version COLLATE \"C\"";
+                break;
+            default:
+                throw new AssertionError();
+        }
+        return "SELECT p.id, p.name, p.version FROM nuget_index_source_packages s " +
+                "JOIN nuget_index_packages p ON p.id = s.package_id " +
+                "WHERE s.source_hash = ? ORDER BY " + order;
+    }
+
+    /**
+     * Selects checksums of the recorded packages ordered by their bytes, which is the order of their hex in lower case.
+     */
+    private static String getSelectChecksumsCommand(Connection dbh) throws SQLException {
+        final String hex;
+        switch (NugetMetadataStore.getDialect(dbh)) {
+            case "mysql":
+                hex = "LOWER(HEX(c.digest_sha1))";
+                break;
+            case "postgresql":
+                hex = "encode(c.digest_sha1, 'hex')";
+                break;
+            default:
+                throw new AssertionError();
+        }
+        return "SELECT p.id, " + hex + ", '' FROM nuget_index_source_packages s " +
+                "JOIN nuget_index_packages p ON p.id = s.package_id " +
+                "JOIN nuget_index_package_checksums c ON c.package_id = p.id " +
+                "WHERE s.source_hash = ? AND NOT EXISTS (SELECT 1 FROM nuget_index_package_checksums o " +
+                "WHERE o.package_id = p.id AND o.digest_sha1 <> c.digest_sha1) ORDER BY c.digest_sha1";
+    }
+
+    private static void close(PreparedStatement statement) throws SQLException {
+        if (statement != null) {
+            statement.close();
+        }
+    }
+}
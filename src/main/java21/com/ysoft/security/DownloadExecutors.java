@@ -0,0 +1,16 @@
+package com.ysoft.security;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Java 21 variant: one virtual thread per download. The number of downloads in flight is limited by the caller.
+ */
+final class DownloadExecutors {
+    private DownloadExecutors() {
+    }
+
+    static ExecutorService create(int maxInFlight) {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("nuget-download-", 1).factory());
+    }
+}
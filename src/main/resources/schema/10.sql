@@ -0,0 +1,2 @@
+-- for lookups by MD5
+CREATE INDEX nuget_index_contents_md5 ON nuget_index_contents (digest_md5)
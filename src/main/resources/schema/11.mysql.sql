@@ -0,0 +1,14 @@
+-- Packages found in each source, so that packages removed from all their sources can be removed by --reconcile
+CREATE TABLE nuget_index_source_packages (
+  source_hash VARCHAR(128)    NOT NULL,
+  package_id  BIGINT UNSIGNED NOT NULL,
+  PRIMARY KEY (source_hash, package_id)
+);
+
+CREATE INDEX nuget_index_source_packages_package ON nuget_index_source_packages (package_id);
+
+-- NULL for checksums stored before this version and for packages without files
+ALTER TABLE nuget_index_package_checksums
+  ADD COLUMN package_id BIGINT UNSIGNED NULL;
+
+CREATE INDEX nuget_index_package_checksums_package ON nuget_index_package_checksums (package_id)
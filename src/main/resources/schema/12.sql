@@ -0,0 +1,3 @@
+-- Bumped by --reconcile whenever it removes packages, so that the lookup mode can tell that cached lookups are stale
+ALTER TABLE nuget_index_state
+  ADD COLUMN removals BIGINT NOT NULL DEFAULT 0
\ No newline at end of file
@@ -0,0 +1,2 @@
+-- for removals of packages by --reconcile, the primary key starts with the content
+CREATE INDEX nuget_index_package_files_package ON nuget_index_package_files (package_id)
\ No newline at end of file
@@ -0,0 +1,4 @@
+-- Bumped by every write of indexed packages in the same transaction, so that the lookup mode can tell that cached
+-- lookups are stale, even if writers commit in another order than the one of their ids
+ALTER TABLE nuget_index_state
+  ADD COLUMN writes BIGINT NOT NULL DEFAULT 0
\ No newline at end of file
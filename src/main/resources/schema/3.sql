@@ -0,0 +1,4 @@
+CREATE TABLE nuget_index_package_checksums (
+  id              SERIAL   PRIMARY KEY,
+  digest_hex_sha1 CHAR(40) NOT NULL UNIQUE -- of the whole .nupkg file
+)
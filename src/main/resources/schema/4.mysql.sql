@@ -0,0 +1,7 @@
+ALTER TABLE nuget_index_hashes
+  ADD COLUMN digest_sha1   BINARY(20),
+  ADD COLUMN digest_md5    BINARY(16),
+  ADD COLUMN digest_sha256 BINARY(32); -- optional, see --sha256
+
+ALTER TABLE nuget_index_package_checksums
+  ADD COLUMN digest_sha1 BINARY(20)
@@ -0,0 +1,7 @@
+ALTER TABLE nuget_index_hashes
+  ADD COLUMN digest_sha1   BYTEA,
+  ADD COLUMN digest_md5    BYTEA,
+  ADD COLUMN digest_sha256 BYTEA; -- optional, see --sha256
+
+ALTER TABLE nuget_index_package_checksums
+  ADD COLUMN digest_sha1 BYTEA
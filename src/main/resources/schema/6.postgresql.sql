@@ -0,0 +1,13 @@
+DROP INDEX nuget_index_hashes_unique_combination;
+
+ALTER TABLE nuget_index_hashes
+  DROP COLUMN digest_hex_sha1,
+  DROP COLUMN digest_hex_md5;
+
+-- Digests go first, so that lookups by a digest can use the index, too.
+CREATE UNIQUE INDEX nuget_index_hashes_unique_combination ON nuget_index_hashes (digest_sha1, digest_md5, name, version, file_name);
+
+ALTER TABLE nuget_index_package_checksums
+  DROP COLUMN digest_hex_sha1,
+  ALTER COLUMN digest_sha1 SET NOT NULL,
+  ADD UNIQUE (digest_sha1)
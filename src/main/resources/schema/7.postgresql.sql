@@ -0,0 +1,30 @@
+CREATE TABLE nuget_index_packages (
+  id      SERIAL       PRIMARY KEY,
+  name    VARCHAR(512) NOT NULL,
+  version VARCHAR(128) NOT NULL,
+  UNIQUE (name, version)
+);
+
+-- One row per unique file content, shared by all packages that contain it
+CREATE TABLE nuget_index_contents (
+  id            SERIAL PRIMARY KEY,
+  digest_sha1   BYTEA  NOT NULL,
+  digest_md5    BYTEA  NOT NULL,
+  digest_sha256 BYTEA,
+  UNIQUE (digest_sha1, digest_md5)
+);
+
+CREATE TABLE nuget_index_package_files (
+  package_id INTEGER      NOT NULL,
+  file_name  VARCHAR(512) NOT NULL,
+  content_id INTEGER      NOT NULL,
+  PRIMARY KEY (content_id, package_id, file_name) -- content first for lookups by digest
+);
+
+ALTER TABLE nuget_index_hashes RENAME TO nuget_index_hashes_old; -- dropped in schema 9
+
+CREATE VIEW nuget_index_hashes AS
+  SELECT p.name, p.version, f.file_name, c.digest_sha1, c.digest_md5, c.digest_sha256
+  FROM nuget_index_package_files f
+    JOIN nuget_index_packages p ON p.id = f.package_id
+    JOIN nuget_index_contents c ON c.id = f.content_id
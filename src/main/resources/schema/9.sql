@@ -0,0 +1 @@
+DROP TABLE nuget_index_hashes_old
@@ -0,0 +1,162 @@
+package com.ysoft.security;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ArtifactoryAqlSearchTest {
+
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    private static final long T0 = Instant.parse("2020-01-01T00:00:00Z").toEpochMilli();
+
+    /**
+     * Two items in each of three slices.
+     */
+    private static final long[] CREATED = {T0, T0 + 10, T0 + HOUR, T0 + HOUR + 10, T0 + 2 * HOUR, T0 + 2 * HOUR + 10};
+
+    private static final Pattern GTE = Pattern.compile("\"\\$gte\":\"([^\"]+)\"");
+
+    private static final Pattern LT = Pattern.compile("\"\\$lt\":\"([^\"]+)\"");
+
+    private static final Pattern GT = Pattern.compile("\"\\$gt\":\"([^\"]+)\"");
+
+    private static final Pattern LIMIT = Pattern.compile("\\.limit\\((\\d+)\\)$");
+
+    /**
+     * Sorted checksums of items listed by {@link ArtifactoryAqlSearch#listByChecksum}, more than two pages of them.
+     * Some of them are shared by several items.
+     */
+    private static final List<String> CHECKSUMS = new ArrayList<>();
+
+    static {
+        for (int i = 0; i < 2500; i++) {
+            CHECKSUMS.add(String.format("%040x", i / 2));
+        }
+    }
+
+    private HttpServer server;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/artifactory/api/search/aql", exchange -> {
+            final String aql = read(exchange.getRequestBody());
+            if (aql.contains(".sort({\"$asc\":[\"actual_sha1\"]})")) {
+                respond(exchange, listChecksums(aql));
+                return;
+            }
+            final Matcher gte = GTE.matcher(aql);
+            final Matcher lt = LT.matcher(aql);
+            final long from = gte.find() ? Instant.parse(gte.group(1)).toEpochMilli() : Long.MIN_VALUE;
+            final long to = lt.find() ? Instant.parse(lt.group(1)).toEpochMilli() : Long.MAX_VALUE;
+            final int limit = aql.endsWith(".limit(1)") ? 1 : Integer.MAX_VALUE;
+            final StringBuilder json = new StringBuilder("{\"results\": [");
+            for (int i = 0, count = 0; i < CREATED.length && count < limit; i++) {
+                if (CREATED[i] >= from && CREATED[i] < to) {
+                    count++;
+                    json.append(json.charAt(json.length() - 1) == '[' ? "" : ",")
+                            .append("{\"repo\": \"nuget-local\", \"path\": \"Foo\", \"name\": \"Foo.1.0.").append(i).append(".nupkg\", ")
+                            .append("\"created\": \"").append(Instant.ofEpochMilli(CREATED[i])).append("\"}");
+                }
+            }
+            respond(exchange, json.append("], \"range\": {}}").toString());
+        });
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    private static String listChecksums(String aql) {
+        final Matcher gt = GT.matcher(aql);
+        final String after = gt.find() ? gt.group(1) : null;
+        final Matcher limit = LIMIT.matcher(aql);
+        assertTrue(limit.find(), aql);
+        final StringBuilder json = new StringBuilder("{\"results\": [");
+        int count = 0;
+        for (int i = 0; i < CHECKSUMS.size() && count < Integer.parseInt(limit.group(1)); i++) {
+            if (after == null || CHECKSUMS.get(i).compareTo(after) > 0) {
+                json.append(count++ == 0 ? "" : ",")
+                        .append("{\"repo\": \"nuget-local\", \"path\": \"Foo\", \"name\": \"Foo.1.0.").append(i).append(".nupkg\", ")
+                        .append("\"actual_sha1\": \"").append(CHECKSUMS.get(i)).append("\"}");
+            }
+        }
+        return json.append("], \"range\": {}}").toString();
+    }
+
+    private static void respond(HttpExchange exchange, String json) throws IOException {
+        final byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static String read(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int size;
+        while ((size = in.read(buffer)) != -1) {
+            out.write(buffer, 0, size);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void testProgressOfSlicesCompletedOutOfOrder() throws IOException {
+        final ArtifactoryHttp http = new ArtifactoryHttp("http://127.0.0.1:" + server.getAddress().getPort() + "/artifactory", null, null);
+        final Map<String, Runnable> pending = new ConcurrentHashMap<>();
+        final List<Long> progress = new CopyOnWriteArrayList<>();
+        final long to = T0 + 3 * HOUR;
+        new ArtifactoryAqlSearch(http, Collections.singletonList("nuget-local"), HOUR, 3).search(
+                T0,
+                to,
+                (item, done) -> pending.put(item.getItemPath(), done),
+                progress::add
+        );
+        assertEquals(CREATED.length, pending.size());
+        // The items are processed asynchronously, e.g., by downloads, in any order.
+        pending.remove("Foo/Foo.1.0.2.nupkg").run();
+        pending.remove("Foo/Foo.1.0.3.nupkg").run();
+        pending.remove("Foo/Foo.1.0.0.nupkg").run();
+        assertEquals(Collections.emptyList(), progress, "slice 0 is not done yet, although slice 1 is");
+        pending.remove("Foo/Foo.1.0.1.nupkg").run();
+        assertEquals(Collections.singletonList(T0 + 2 * HOUR), progress, "slices 0 and 1 are done");
+        pending.remove("Foo/Foo.1.0.5.nupkg").run();
+        pending.remove("Foo/Foo.1.0.4.nupkg").run();
+        assertEquals(Arrays.asList(T0 + 2 * HOUR, to), progress);
+    }
+
+    @Test
+    void testListByChecksumPagesAfterLastChecksum() throws IOException {
+        final ArtifactoryHttp http = new ArtifactoryHttp("http://127.0.0.1:" + server.getAddress().getPort() + "/artifactory", null, null);
+        final List<String> listed = new ArrayList<>();
+        new ArtifactoryAqlSearch(http, Collections.singletonList("nuget-local"), HOUR, 1).listByChecksum(item -> listed.add(item.getSha1()));
+        // Items sharing the last checksum of a page are skipped by the next page, but each checksum is there.
+        assertEquals(new TreeSet<>(CHECKSUMS), new TreeSet<>(listed));
+        final List<String> sorted = new ArrayList<>(listed);
+        Collections.sort(sorted);
+        assertEquals(sorted, listed);
+    }
+}
@@ -0,0 +1,187 @@
+package com.ysoft.security;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ArtifactoryDownloaderTest {
+
+    private static final int MAX_IN_FLIGHT = 3;
+
+    private HttpServer server;
+
+    private final AtomicInteger running = new AtomicInteger();
+
+    private final AtomicInteger maxRunning = new AtomicInteger();
+
+    private final Map<String, String> authorizations = new ConcurrentHashMap<>();
+
+    private byte[] nupkg;
+
+    private String nupkgSha1;
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    @BeforeEach
+    void startServer() throws IOException {
+        nupkg = readResource("/System.Globalization.4.3.0.nupkg");
+        nupkgSha1 = Hashing.hash(new ByteArrayInputStream(nupkg)).getHex(Hashing.Algorithm.SHA1).toLowerCase(Locale.ROOT);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/artifactory/", exchange -> {
+            requests.incrementAndGet();
+            final int current = running.incrementAndGet();
+            maxRunning.accumulateAndGet(current, Math::max);
+            try {
+                authorizations.put(exchange.getRequestURI().getPath(), String.valueOf(exchange.getRequestHeaders().getFirst("Authorization")));
+                Thread.sleep(50);
+                if (exchange.getRequestURI().getPath().endsWith("/missing.nupkg")) {
+                    exchange.sendResponseHeaders(404, -1);
+                } else {
+                    exchange.getResponseHeaders().add("X-Checksum-Sha1", nupkgSha1);
+                    exchange.sendResponseHeaders(200, nupkg.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(nupkg);
+                    }
+                }
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } finally {
+                running.decrementAndGet();
+                exchange.close();
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    private String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/artifactory";
+    }
+
+    @Test
+    void testConcurrentDownloadsAreLimited() throws IOException {
+        final Map<String, NugetIdentifier> results = new ConcurrentHashMap<>();
+        try (ArtifactoryDownloader downloader = new ArtifactoryDownloader(url(), "user", "secret", MAX_IN_FLIGHT)) {
+            for (int i = 0; i < 12; i++) {
+                final String path = "System.Globalization/" + i + "/System Globalization.nupkg";
+                downloader.download("nuget-remote", path, (body, sha1) -> results.put(path, NugetReader.analyzeNuget(body, null, null).getNugetIdentifier()));
+            }
+            downloader.awaitCompletion();
+        }
+        assertEquals(12, results.size());
+        for (NugetIdentifier identifier : results.values()) {
+            assertEquals(new NugetIdentifier("System.Globalization", "4.3.0"), identifier);
+        }
+        assertTrue(maxRunning.get() <= MAX_IN_FLIGHT, "Too many downloads in flight: " + maxRunning.get());
+        assertTrue(maxRunning.get() > 1, "Downloads do not run concurrently");
+        assertEquals("Basic dXNlcjpzZWNyZXQ=", authorizations.get("/artifactory/nuget-remote/System.Globalization/0/System Globalization.nupkg"));
+    }
+
+    @Test
+    void testFailedDownloadIsReported() throws IOException {
+        try (ArtifactoryDownloader downloader = new ArtifactoryDownloader(url(), null, null, MAX_IN_FLIGHT)) {
+            downloader.download("nuget-remote", "x/missing.nupkg", (body, sha1) -> fail("Unexpected body"));
+            final IOException e = assertThrows(IOException.class, downloader::awaitCompletion);
+            assertTrue(e.getCause().getMessage().contains("404"), e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    void testDownloadCanBeSkippedByChecksum() throws IOException {
+        final Map<String, String> skipped = new ConcurrentHashMap<>();
+        try (ArtifactoryDownloader downloader = new ArtifactoryDownloader(url(), null, null, MAX_IN_FLIGHT)) {
+            downloader.download("nuget-remote", "x/1.0/x.nupkg", new ArtifactoryDownloader.BodyHandler() {
+                @Override
+                public boolean accept(String sha1) {
+                    skipped.put("x", sha1);
+                    return false;
+                }
+
+                @Override
+                public void handle(InputStream body, String sha1) {
+                    fail("Unexpected body");
+                }
+            });
+            downloader.awaitCompletion();
+        }
+        assertEquals(nupkgSha1, skipped.get("x"));
+    }
+
+    @Test
+    void testSpooledPackageIsNotDownloadedAgain() throws IOException {
+        final Path dir = Files.createTempDirectory("downloader-spool-test");
+        try {
+            final PackageSpool spool = new PackageSpool(dir, 1 << 20);
+            final Map<String, NugetIdentifier> results = new ConcurrentHashMap<>();
+            final ArtifactoryDownloader.BodyHandler fromFile = new ArtifactoryDownloader.BodyHandler() {
+                @Override
+                public void handle(InputStream body, String sha1) {
+                    fail("The package should be spooled");
+                }
+
+                @Override
+                public void handle(Path file, String sha1) throws IOException {
+                    assertEquals(nupkgSha1, sha1);
+                    results.put(file.toString(), NugetReader.analyzeNuget(file, null, null).getNugetIdentifier());
+                }
+            };
+            try (ArtifactoryDownloader downloader = new ArtifactoryDownloader(url(), null, null, MAX_IN_FLIGHT, spool)) {
+                downloader.download("nuget-remote", "a/1.0/a.nupkg", fromFile);
+                downloader.awaitCompletion();
+                assertEquals(1, requests.get());
+                // the checksum from a search avoids the request
+                downloader.download("nuget-local", "b/1.0/b.nupkg", nupkgSha1, fromFile);
+                downloader.awaitCompletion();
+                assertEquals(1, requests.get());
+                // the checksum from the response headers avoids the download of the body
+                downloader.download("nuget-local", "c/1.0/c.nupkg", fromFile);
+                downloader.awaitCompletion();
+                assertEquals(2, requests.get());
+            }
+            assertEquals(Collections.singleton(new NugetIdentifier("System.Globalization", "4.3.0")), new HashSet<>(results.values()));
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                for (final Path file : (Iterable<Path>) files.sorted(Collections.reverseOrder())::iterator) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    private byte[] readResource(String path) throws IOException {
+        try (InputStream in = getClass().getResourceAsStream(path)) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int size;
+            while ((size = in.read(buffer)) != -1) {
+                out.write(buffer, 0, size);
+            }
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.ysoft.security;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ArtifactoryWebhookReceiverTest {
+
+    private HttpServer server;
+
+    private ArtifactoryWebhookReceiver receiver;
+
+    private final AtomicInteger queuedCalls = new AtomicInteger();
+
+    private final AtomicInteger overflowCalls = new AtomicInteger();
+
+    private void start(String secret, int maxQueued) throws IOException {
+        receiver = new ArtifactoryWebhookReceiver(
+                artifact -> artifact.getRepoKey().equals("nuget-local") && artifact.getItemPath().endsWith(".nupkg"),
+                secret,
+                maxQueued,
+                new ArtifactoryWebhookReceiver.Listener() {
+                    @Override
+                    public void artifactsQueued(ArtifactoryWebhookReceiver receiver) {
+                        queuedCalls.incrementAndGet();
+                    }
+
+                    @Override
+                    public void queueOverflowed() {
+                        overflowCalls.incrementAndGet();
+                    }
+                });
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/artifactory-webhook", receiver);
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    private static String deployed(String repoKey, String path) {
+        return "{\"domain\": \"artifact\", \"event_type\": \"deployed\", \"data\": {\"repo_key\": \"" + repoKey + "\", " +
+                "\"path\": \"" + path + "\", \"name\": \"x\", \"size\": 123, \"sha256\": \"abc\"}, \"subscription_key\": \"s\", " +
+                "\"jpd_origin\": \"https://example.com\", \"source\": \"jfrog/user@example.com\"}";
+    }
+
+    private int post(String body, String secret) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/artifactory-webhook").openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        if (secret != null) {
+            connection.setRequestProperty("X-JFrog-Event-Auth", secret);
+        }
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+        return connection.getResponseCode();
+    }
+
+    @Test
+    void testQueueing() throws IOException {
+        start(null, 100);
+        assertEquals(202, post(deployed("nuget-local", "Foo/Foo.1.0.0.nupkg"), null));
+        assertEquals(202, post(deployed("nuget-local", "Foo/Foo.1.0.0.nupkg"), null));
+        assertEquals(202, post(deployed("nuget-local", "Bar/Bar.1.0.0.nupkg"), null));
+        assertEquals(202, post(deployed("other-repo", "Foo/Foo.1.0.0.nupkg"), null));
+        assertEquals(202, post(deployed("nuget-local", "Foo/readme.txt"), null));
+        assertEquals(202, post("{\"domain\": \"artifact\", \"event_type\": \"deleted\", \"data\": {\"repo_key\": \"nuget-local\", \"path\": \"Baz/Baz.1.0.0.nupkg\"}}", null));
+        assertEquals(1, queuedCalls.get());
+        assertEquals(Arrays.asList(
+                new ArtifactoryNugetSource.Artifact("nuget-local", "Foo/Foo.1.0.0.nupkg"),
+                new ArtifactoryNugetSource.Artifact("nuget-local", "Bar/Bar.1.0.0.nupkg")
+        ), receiver.drain());
+        assertEquals(Collections.emptyList(), receiver.drain());
+        // The queue is empty again, so the listener is called again.
+        assertEquals(202, post(deployed("nuget-local", "Foo/Foo.1.0.0.nupkg"), null));
+        assertEquals(2, queuedCalls.get());
+        assertEquals(0, overflowCalls.get());
+    }
+
+    @Test
+    void testOverflow() throws IOException {
+        start(null, 2);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(202, post(deployed("nuget-local", "Foo/Foo.1.0." + i + ".nupkg"), null));
+        }
+        assertEquals(2, overflowCalls.get());
+        assertEquals(2, receiver.drain().size());
+    }
+
+    @Test
+    void testBadRequests() throws IOException {
+        start("s3cr3t", 100);
+        assertEquals(401, post(deployed("nuget-local", "Foo/Foo.1.0.0.nupkg"), null));
+        assertEquals(401, post(deployed("nuget-local", "Foo/Foo.1.0.0.nupkg"), "wrong"));
+        assertEquals(400, post("[]", "s3cr3t"));
+        assertEquals(400, post("{\"domain\": \"artifact\", \"event_type\": \"deployed\", \"data\": {}}", "s3cr3t"));
+        assertEquals(Collections.emptyList(), receiver.drain());
+        assertEquals(202, post(deployed("nuget-local", "Foo/Foo.1.0.0.nupkg"), "s3cr3t"));
+        assertEquals(1, receiver.drain().size());
+    }
+}
@@ -0,0 +1,86 @@
+package com.ysoft.security;
+
+import org.junit.jupiter.api.Test;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class BulkLoaderTest {
+
+    @Test
+    void testSeparatorsAreEscaped() {
+        assertEquals("lib\\\\net45\\\\a\\tb\\nc\\rd.dll", BulkLoader.appendText(new StringBuilder(), "lib\\net45\\a\tb\nc\rd.dll").toString());
+        assertEquals("Příliš.žluťoučký", BulkLoader.appendText(new StringBuilder(), "Příliš.žluťoučký").toString());
+    }
+
+    /**
+     * Needs a disposable DB like {@link ReconcilerTest#testPackageSharedBySourcesIsKeptUntilGoneFromAll()}.
+     */
+    @Test
+    void testBulkLoadWritesSameRowsAsBatchedInserts() throws IOException, SQLException {
+        final String url = System.getProperty("nuget.test.db.url");
+        assumeTrue(url != null, "No test DB");
+        final List<String> batched = write(url, false);
+        assertEquals(7, batched.size());
+        assertTrue(batched.contains("Foo 1.0 lib/net45/Foo.dll " + hex(digests("foo", false).get(Hashing.Algorithm.SHA1)) + " "
+                + hex(digests("foo", false).get(Hashing.Algorithm.MD5)) + " null"), batched.toString());
+        assertEquals(batched, write(url, true));
+    }
+
+    /**
+     * Writes the same packages in two batches, the second one with rows that are already there, into an empty DB.
+     *
+     * @return the rows of nuget_index_hashes
+     */
+    private static List<String> write(String url, boolean bulkLoad) throws IOException, SQLException {
+        try (Connection dbh = ReconcilerTest.connectToEmptyDb(url)) {
+            final NugetMetadataStore store = NugetMetadataStore.openWithoutSchemaUpdate(dbh, "source", 1000, bulkLoad);
+            store.addHash("Foo", "1.0", "lib/net45/Foo.dll", digests("foo", false));
+            store.addHash("Foo", "1.0", "lib/net45/Foo.xml", digests("shared", false));
+            store.addHash("Bar", "2.0.0-beta", "lib/net45/Bar.dll", digests("bar", true));
+            store.addHash("Bar", "2.0.0-beta", "content/a\tb\\c.txt", digests("shared", false));
+            store.flush();
+            store.addHash("Foo", "1.0", "lib/net45/Foo.dll", digests("foo", false));
+            store.addHash("Foo", "1.1", "lib/net45/Foo.dll", digests("foo", false));
+            store.addHash("Příliš", "1.0", "žluťoučký kůň.dll", digests("kůň", true));
+            store.addHash("Příliš", "1.0", "lib/net45/Foo.dll", digests("foo", false));
+            store.finish();
+            final List<String> rows = new ArrayList<>();
+            try (Statement statement = dbh.createStatement();
+                 ResultSet resultSet = statement.executeQuery("SELECT name, version, file_name, digest_sha1, digest_md5, digest_sha256 " +
+                         "FROM nuget_index_hashes ORDER BY name, version, file_name")) {
+                while (resultSet.next()) {
+                    rows.add(resultSet.getString(1) + " " + resultSet.getString(2) + " " + resultSet.getString(3) + " " +
+                            hex(resultSet.getBytes(4)) + " " + hex(resultSet.getBytes(5)) + " " + hex(resultSet.getBytes(6)));
+                }
+            }
+            return rows;
+        }
+    }
+
+    private static Hashing.Digests digests(String content, boolean sha256) throws IOException {
+        Hashing.setAlgorithms(sha256 ? EnumSet.allOf(Hashing.Algorithm.class) : Hashing.REQUIRED_ALGORITHMS);
+        try {
+            return Hashing.hash(new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)));
+        } finally {
+            Hashing.setAlgorithms(Hashing.REQUIRED_ALGORITHMS);
+        }
+    }
+
+    private static String hex(byte[] digest) {
+        return digest == null ? "null" : DatatypeConverter.printHexBinary(digest);
+    }
+}
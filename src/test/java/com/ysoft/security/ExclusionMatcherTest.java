@@ -0,0 +1,63 @@
+package com.ysoft.security;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ExclusionMatcherTest {
+
+    private final ExclusionMatcher matcher = ExclusionMatcher.compile(Arrays.asList(
+            "nuget-remote/Foo",
+            "nuget-remote/Foo.Bar/1.0",
+            "glob:nuget-local/*/0.0.*/*.nupkg",
+            "glob:nuget-cache/**/preview?.nupkg",
+            "glob:nuget-remote/Exact/1.0",
+            "nuget-literal/Foo*"
+    ));
+
+    @Test
+    void testPrefixes() {
+        assertTrue(matcher.isExcluded("nuget-remote/Foo/1.0/Foo.1.0.nupkg"));
+        assertTrue(matcher.isExcluded("nuget-remote/FooBar/1.0/FooBar.1.0.nupkg"));
+        assertTrue(matcher.isExcluded("nuget-remote/Foo"));
+        assertFalse(matcher.isExcluded("nuget-remote/Fo"));
+        assertFalse(matcher.isExcluded("nuget-remote/Bar/1.0/Bar.1.0.nupkg"));
+        assertFalse(matcher.isExcluded("nuget-local/Foo/1.0/Foo.1.0.nupkg"));
+    }
+
+    @Test
+    void testWildcardsWithoutGlobPrefixAreLiteral() {
+        assertTrue(matcher.isExcluded("nuget-literal/Foo*/1.0/Foo.1.0.nupkg"));
+        assertFalse(matcher.isExcluded("nuget-literal/FooBar/1.0/FooBar.1.0.nupkg"));
+        assertTrue(matcher.isExcludedPrefix("nuget-literal/Foo*/"));
+    }
+
+    @Test
+    void testGlobs() {
+        assertTrue(matcher.isExcluded("nuget-local/Foo/0.0.1/Foo.0.0.1.nupkg"));
+        assertFalse(matcher.isExcluded("nuget-local/Foo/0.1.1/Foo.0.1.1.nupkg"));
+        assertFalse(matcher.isExcluded("nuget-local/Foo/Bar/0.0.1/Foo.0.0.1.nupkg"));
+        assertFalse(matcher.isExcluded("nuget-local/Foo/0.0.1/Foo.0.0.1.nupkg.sha1"));
+        assertTrue(matcher.isExcluded("nuget-cache/a/b/c/preview1.nupkg"));
+        assertFalse(matcher.isExcluded("nuget-cache/a/b/c/preview12.nupkg"));
+        assertTrue(matcher.isExcluded("nuget-remote/Exact/1.0"));
+        assertFalse(matcher.isExcluded("nuget-remote/Exact/1.0/Exact.1.0.nupkg"), "a glob without wildcards matches the whole path");
+        assertFalse(matcher.isExcluded("glob:nuget-local/Foo/0.0.1/Foo.0.0.1.nupkg"));
+    }
+
+    @Test
+    void testExcludedPrefix() {
+        assertTrue(matcher.isExcludedPrefix("nuget-remote/Foo.Bar/"));
+        assertFalse(matcher.isExcludedPrefix("nuget-local/Foo/"));
+        assertFalse(matcher.isExcludedPrefix("nuget-remote/"));
+    }
+
+    @Test
+    void testEmpty() {
+        assertFalse(ExclusionMatcher.compile(Collections.emptyList()).isExcluded("nuget-remote/Foo/1.0/Foo.1.0.nupkg"));
+    }
+}
@@ -0,0 +1,25 @@
+package com.ysoft.security;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class FileCtimeTest {
+
+    @Test
+    void testInJvmCtimeMatchesStat() throws IOException {
+        assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("unix"));
+        final Path file = Files.createTempFile("ctime", ".nupkg");
+        try {
+            assertEquals(FileCtime.readWithStat(file), FileCtime.readInJvm(file));
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.ysoft.security;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HashIndexFileTest {
+
+    private static final byte[] SHA1_A = DatatypeConverter.parseHexBinary("0000000000000000000000000000000000000001");
+    private static final byte[] SHA1_B = DatatypeConverter.parseHexBinary("7FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF");
+    private static final byte[] SHA1_C = DatatypeConverter.parseHexBinary("FF00000000000000000000000000000000000000");
+    private static final byte[] MD5_A = DatatypeConverter.parseHexBinary("00000000000000000000000000000001");
+    private static final byte[] MD5_C = DatatypeConverter.parseHexBinary("F0000000000000000000000000000000");
+
+    private Path dir;
+
+    @BeforeEach
+    void createDir() throws IOException {
+        dir = Files.createTempDirectory("hash-index-test");
+    }
+
+    @AfterEach
+    void deleteDir() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            for (final Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    private Path write() throws IOException {
+        final Path file = dir.resolve("index.bin");
+        try (HashIndexFile.Writer writer = new HashIndexFile.Writer(file)) {
+            writer.addSha1(SHA1_A, "Foo", "1.0.0", "lib/net45/Foo.dll");
+            writer.addSha1(SHA1_B, "Foo", "1.0.0", "lib/net45/Foo.xml");
+            writer.addSha1(SHA1_B, "Foo", "1.1.0", "lib/net45/Foo.xml");
+            writer.addSha1(SHA1_C, "Bář", "2.0.0-beta", "lib/Bář.dll");
+            writer.addMd5(MD5_A, "Foo", "1.0.0", "lib/net45/Foo.dll");
+            writer.addMd5(MD5_C, "Bář", "2.0.0-beta", "lib/Bář.dll");
+            writer.finish();
+        }
+        return file;
+    }
+
+    @Test
+    void testLookups() throws IOException {
+        // The small chunks make records and strings cross chunk boundaries.
+        for (final long chunkSize : new long[]{1L << 30, 7}) {
+            try (HashIndexFile index = HashIndexFile.open(write(), chunkSize)) {
+                assertEquals(4, index.getSha1Count());
+                assertEquals(2, index.getMd5Count());
+                assertEquals(Collections.singletonList(new HashLookup.Match("Foo", "1.0.0", "lib/net45/Foo.dll")), index.findBySha1(SHA1_A));
+                assertEquals(Arrays.asList(
+                        new HashLookup.Match("Foo", "1.0.0", "lib/net45/Foo.xml"),
+                        new HashLookup.Match("Foo", "1.1.0", "lib/net45/Foo.xml")
+                ), index.findBySha1(SHA1_B));
+                assertEquals(Collections.singletonList(new HashLookup.Match("Bář", "2.0.0-beta", "lib/Bář.dll")), index.findBySha1(SHA1_C));
+                assertEquals(Collections.emptyList(), index.findBySha1(new byte[20]));
+                assertEquals(Collections.singletonList(new HashLookup.Match("Bář", "2.0.0-beta", "lib/Bář.dll")), index.findByMd5(MD5_C));
+                assertEquals(Collections.emptyList(), index.findByMd5(new byte[16]));
+            }
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(1, files.count(), "temporary files should be removed");
+        }
+    }
+
+    @Test
+    void testUnsortedRecordsAreRejected() throws IOException {
+        try (HashIndexFile.Writer writer = new HashIndexFile.Writer(dir.resolve("index.bin"))) {
+            writer.addSha1(SHA1_C, "Foo", "1.0.0", "a.dll");
+            assertThrows(IOException.class, () -> writer.addSha1(SHA1_A, "Foo", "1.0.0", "b.dll"));
+        }
+    }
+
+    @Test
+    void testNotAnIndex() throws IOException {
+        final Path file = dir.resolve("other.bin");
+        Files.write(file, new byte[100]);
+        assertThrows(IOException.class, () -> HashIndexFile.open(file));
+    }
+}
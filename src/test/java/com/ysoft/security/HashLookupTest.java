@@ -0,0 +1,103 @@
+package com.ysoft.security;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HashLookupTest {
+
+    static final String SHA1 = "879325A6B71BBDEA6F2D2F9D85311559653B4F11";
+
+    static final String MD5 = "c481520a478dc704f80f25fd3894b563";
+
+    static final HashLookup.Match MATCH = new HashLookup.Match("System.Globalization", "4.3.0", "ref/netstandard1.3/System.Globalization.dll");
+
+    /**
+     * Knows just one file and counts the calls.
+     */
+    static class FakeResolver implements HashLookup.Resolver {
+        final List<List<String>> calls = new ArrayList<>();
+        Object generation = 1;
+
+        @Override
+        public Map<String, List<HashLookup.Match>> resolve(Collection<String> sha1s, Collection<String> md5s) {
+            final List<String> call = new ArrayList<>();
+            final Map<String, List<HashLookup.Match>> results = new HashMap<>();
+            for (String sha1 : sha1s) {
+                call.add(sha1);
+                results.put(HashLookup.key(Hashing.Algorithm.SHA1, sha1), sha1.equalsIgnoreCase(SHA1) ? singletonList(MATCH) : emptyList());
+            }
+            for (String md5 : md5s) {
+                call.add(md5);
+                results.put(HashLookup.key(Hashing.Algorithm.MD5, md5), md5.equalsIgnoreCase(MD5) ? singletonList(MATCH) : emptyList());
+            }
+            calls.add(call);
+            return results;
+        }
+
+        @Override
+        public Object getGeneration() {
+            return generation;
+        }
+    }
+
+    private static final String UNKNOWN_SHA1 = "0000000000000000000000000000000000000000";
+
+    @Test
+    void testMissesAreResolvedInOneCall() throws Exception {
+        final FakeResolver resolver = new FakeResolver();
+        final HashLookup lookup = new HashLookup(resolver, 100);
+        final Map<String, List<HashLookup.Match>> results = lookup.lookup(asList(SHA1, UNKNOWN_SHA1), singletonList(MD5));
+        assertEquals(singletonList(asList(SHA1, UNKNOWN_SHA1, MD5)), resolver.calls);
+        assertEquals(singletonList(MATCH), results.get(HashLookup.key(Hashing.Algorithm.SHA1, SHA1)));
+        assertEquals(emptyList(), results.get(HashLookup.key(Hashing.Algorithm.SHA1, UNKNOWN_SHA1)));
+        assertEquals(singletonList(MATCH), results.get(HashLookup.key(Hashing.Algorithm.MD5, MD5)));
+    }
+
+    @Test
+    void testRepeatedLookupsAreCached() throws Exception {
+        final FakeResolver resolver = new FakeResolver();
+        final HashLookup lookup = new HashLookup(resolver, 100);
+        lookup.lookup(asList(SHA1, UNKNOWN_SHA1), emptyList());
+        final Map<String, List<HashLookup.Match>> results = lookup.lookup(asList(SHA1.toLowerCase(), UNKNOWN_SHA1), singletonList(MD5));
+        assertEquals(asList(asList(SHA1, UNKNOWN_SHA1), singletonList(MD5)), resolver.calls);
+        assertEquals(singletonList(MATCH), results.get(HashLookup.key(Hashing.Algorithm.SHA1, SHA1)));
+        assertEquals(emptyList(), results.get(HashLookup.key(Hashing.Algorithm.SHA1, UNKNOWN_SHA1)));
+    }
+
+    @Test
+    void testCacheIsBounded() throws Exception {
+        final FakeResolver resolver = new FakeResolver();
+        final HashLookup lookup = new HashLookup(resolver, 2);
+        lookup.lookup(singletonList(SHA1), emptyList());
+        lookup.lookup(singletonList(UNKNOWN_SHA1), emptyList());
+        lookup.lookup(singletonList(SHA1), emptyList()); // hit, SHA1 is now the most recently used
+        lookup.lookup(emptyList(), singletonList(MD5)); // evicts UNKNOWN_SHA1
+        resolver.calls.clear();
+        lookup.lookup(asList(SHA1, UNKNOWN_SHA1), singletonList(MD5));
+        assertEquals(singletonList(singletonList(UNKNOWN_SHA1)), resolver.calls);
+    }
+
+    @Test
+    void testCacheIsDroppedWhenIndexChanges() throws Exception {
+        final FakeResolver resolver = new FakeResolver();
+        final HashLookup lookup = new HashLookup(resolver, 100);
+        lookup.checkGeneration();
+        lookup.lookup(singletonList(UNKNOWN_SHA1), emptyList());
+        lookup.checkGeneration(); // unchanged
+        lookup.lookup(singletonList(UNKNOWN_SHA1), emptyList());
+        assertEquals(1, resolver.calls.size());
+        resolver.generation = 2;
+        lookup.checkGeneration();
+        lookup.lookup(singletonList(UNKNOWN_SHA1), emptyList());
+        assertEquals(2, resolver.calls.size());
+        lookup.invalidate();
+        lookup.lookup(singletonList(UNKNOWN_SHA1), emptyList());
+        assertEquals(3, resolver.calls.size());
+    }
+}
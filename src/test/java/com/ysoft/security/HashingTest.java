@@ -0,0 +1,80 @@
+package com.ysoft.security;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HashingTest {
+
+    private static final byte[] DATA = "The quick brown fox jumps over the lazy dog".getBytes(StandardCharsets.US_ASCII);
+
+    @AfterEach
+    void restoreAlgorithms() {
+        Hashing.setAlgorithms(Hashing.REQUIRED_ALGORITHMS);
+    }
+
+    @Test
+    void testDefaultAlgorithms() throws IOException {
+        final Hashing.Digests digests = Hashing.hash(new ByteArrayInputStream(DATA));
+        assertEquals("2FD4E1C67A2D28FCED849EE1BB76E7391B93EB12", digests.getHex(Hashing.Algorithm.SHA1));
+        assertEquals("9E107D9D372BB6826BD81D3542A419D6", digests.getHex(Hashing.Algorithm.MD5));
+        assertNull(digests.get(Hashing.Algorithm.SHA256));
+    }
+
+    @Test
+    void testSha256() throws IOException {
+        Hashing.setAlgorithms(EnumSet.allOf(Hashing.Algorithm.class));
+        final Hashing.Digests digests = Hashing.hash(new ByteArrayInputStream(DATA));
+        assertArrayEquals(DatatypeConverter.parseHexBinary("D7A8FBB307D7809469CA9ABCB0082E4F8D5651E46D3CDB762D02D0BF37C9E592"), digests.get(Hashing.Algorithm.SHA256));
+        assertEquals("2FD4E1C67A2D28FCED849EE1BB76E7391B93EB12", digests.getHex(Hashing.Algorithm.SHA1));
+    }
+
+    @Test
+    void testRequiredAlgorithmsCannotBeDisabled() {
+        assertThrows(IllegalArgumentException.class, () -> Hashing.setAlgorithms(EnumSet.of(Hashing.Algorithm.SHA256)));
+    }
+
+    @Test
+    void testReusedHasherIsReset() throws IOException {
+        final Hashing.Digests expected = Hashing.hash(new ByteArrayInputStream(DATA));
+        try (Hashing.Hasher hasher = Hashing.hasher()) {
+            hasher.update(new byte[]{1, 2, 3}, 0, 3); // left unfinished
+        }
+        try (Hashing.Hasher hasher = Hashing.hasher()) {
+            assertEquals(expected, hasher.hash(new ByteArrayInputStream(DATA)));
+        }
+    }
+
+    @Test
+    void testSkippedDataAreHashed() throws IOException {
+        try (Hashing.Hasher hasher = Hashing.hasher();
+             Hashing.HashingInputStream in = new Hashing.HashingInputStream(new ByteArrayInputStream(DATA), hasher)) {
+            assertEquals('T', in.read());
+            assertEquals(10, in.skip(10));
+            in.consume();
+            assertEquals(Hashing.hash(new ByteArrayInputStream(DATA)), in.finish());
+        }
+    }
+
+    @Test
+    void testHashedBytesAreCountedOncePerHash() {
+        final long before = Metrics.HASHED_BYTES.get().longValue();
+        try (Hashing.Hasher hasher = Hashing.hasher()) {
+            for (final byte b : DATA) {
+                hasher.update(b);
+            }
+            assertEquals(before, Metrics.HASHED_BYTES.get().longValue(), "nothing is counted per byte");
+            hasher.finish();
+            assertEquals(before + DATA.length, Metrics.HASHED_BYTES.get().longValue());
+            hasher.finish();
+            assertEquals(before + DATA.length, Metrics.HASHED_BYTES.get().longValue(), "the count is reset with the digests");
+        }
+    }
+}
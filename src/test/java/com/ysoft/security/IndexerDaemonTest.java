@@ -0,0 +1,71 @@
+package com.ysoft.security;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IndexerDaemonTest {
+
+    private static final long INTERVAL_MILLIS = 1000;
+
+    private final BlockingQueue<CountDownLatch> passes = new LinkedBlockingQueue<>();
+
+    /**
+     * Each pass blocks until its latch is released by the test.
+     */
+    private final IndexerDaemon daemon = new IndexerDaemon(null, new ConnectionPool("jdbc:unused", new Properties()), 1, 1, false, 1, INTERVAL_MILLIS, 0) {
+        @Override
+        void runPass() {
+            final CountDownLatch done = new CountDownLatch(1);
+            passes.add(done);
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    };
+
+    @AfterEach
+    void closeDaemon() throws InterruptedException {
+        daemon.close();
+    }
+
+    @Test
+    void testTriggersDuringPassRunOneMorePass() throws InterruptedException {
+        daemon.start();
+        final CountDownLatch first = nextPass();
+        daemon.trigger();
+        daemon.trigger();
+        daemon.trigger();
+        first.countDown();
+        nextPass().countDown();
+        // A single periodic schedule continues, not one per trigger.
+        nextPass().countDown();
+        assertNull(passes.poll(500, TimeUnit.MILLISECONDS), "Only one pass should be scheduled");
+    }
+
+    @Test
+    void testTriggerWhenIdleStartsPassNow() throws InterruptedException {
+        daemon.start();
+        nextPass().countDown();
+        daemon.trigger();
+        nextPass().countDown();
+        daemon.trigger();
+        nextPass().countDown();
+        assertNull(passes.poll(500, TimeUnit.MILLISECONDS), "The scheduled pass should have been replaced");
+    }
+
+    private CountDownLatch nextPass() throws InterruptedException {
+        final CountDownLatch pass = passes.poll(10, TimeUnit.SECONDS);
+        assertNotNull(pass, "A pass should have started");
+        return pass;
+    }
+}
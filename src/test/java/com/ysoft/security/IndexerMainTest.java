@@ -0,0 +1,96 @@
+package com.ysoft.security;
+
+import org.apache.commons.cli.ParseException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IndexerMainTest {
+
+    private Path sourcesFile;
+
+    @BeforeEach
+    void createSourcesFile() throws IOException {
+        sourcesFile = Files.createTempFile("sources", ".properties");
+    }
+
+    @AfterEach
+    void deleteSourcesFile() throws IOException {
+        Files.delete(sourcesFile);
+    }
+
+    @Test
+    void testSourcesFile() throws IOException, ParseException {
+        writeSources(
+                "sources = main legacy",
+                "main.source-type = nexus",
+                "main.nexus-nuget-path = /srv/main",
+                "main.nexus-server-identity = https://main.example.com",
+                "main.nexus-exclude = Foo/ Bar/",
+                "main.workers = 2",
+                "legacy.source-type = nexus",
+                "legacy.nexus-nuget-path = /srv/legacy",
+                "legacy.nexus-server-identity = https://legacy.example.com"
+        );
+        final List<MultiSourceIndexer.Source> sources = IndexerMain.parseSourcesFile(sourcesFile.toString(), 8);
+        assertEquals(2, sources.size());
+        assertEquals("main", sources.get(0).getName());
+        assertEquals(2, sources.get(0).getMaxPendingPackages());
+        final NexusNugetSource main = (NexusNugetSource) sources.get(0).getNugetSource();
+        assertEquals("NexusNugetSource{serverIdentity='https://main.example.com', paths=[/srv/main], scanThreads=4, exclusions=[Bar/, Foo/]}", main.toString());
+        assertEquals("legacy", sources.get(1).getName());
+        assertEquals(8, sources.get(1).getMaxPendingPackages(), "the number of workers by default");
+        assertNotEquals(main.getHash(), sources.get(1).getNugetSource().getHash());
+    }
+
+    @Test
+    void testSourcesWithSameHashAreRejected() throws IOException {
+        writeSources(
+                "sources = main copy",
+                "main.source-type = nexus",
+                "main.nexus-nuget-path = /srv/main",
+                "main.nexus-server-identity = https://main.example.com",
+                "copy.source-type = nexus",
+                "copy.nexus-nuget-path = /srv/main",
+                "copy.nexus-server-identity = https://main.example.com",
+                "copy.workers = 1"
+        );
+        final ParseException e = assertThrows(ParseException.class, () -> IndexerMain.parseSourcesFile(sourcesFile.toString(), 8));
+        assertEquals("Sources main and copy are the same, they would overwrite each other's state", e.getMessage());
+    }
+
+    @Test
+    void testUnknownOptionsAndUnlistedSourcesAreRejected() throws IOException {
+        writeSources(
+                "sources = main",
+                "main.source-type = nexus",
+                "main.nexus-nuget-path = /srv/main",
+                "main.nexus-server-identity = https://main.example.com",
+                "main.nexus-typo = 1"
+        );
+        assertEquals("Unknown option of source main: nexus-typo",
+                assertThrows(ParseException.class, () -> IndexerMain.parseSourcesFile(sourcesFile.toString(), 8)).getMessage());
+        writeSources(
+                "sources = main",
+                "main.source-type = nexus",
+                "main.nexus-nuget-path = /srv/main",
+                "main.nexus-server-identity = https://main.example.com",
+                "other.source-type = nexus"
+        );
+        assertTrue(assertThrows(ParseException.class, () -> IndexerMain.parseSourcesFile(sourcesFile.toString(), 8)).getMessage()
+                .startsWith("Properties of unlisted sources in "));
+    }
+
+    private void writeSources(String... lines) throws IOException {
+        Files.write(sourcesFile, Arrays.asList(lines), StandardCharsets.ISO_8859_1);
+    }
+}
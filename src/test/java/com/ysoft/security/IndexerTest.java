@@ -0,0 +1,405 @@
+package com.ysoft.security;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IndexerTest {
+
+    /**
+     * Rows committed by the writers, as "writer id version file".
+     */
+    private final List<String> written = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * Stored checkpoints, as "time rows", where rows is the number of rows committed by then.
+     */
+    private final List<String> checkpoints = Collections.synchronizedList(new ArrayList<>());
+
+    private final FakeConnectionPool connectionPool = new FakeConnectionPool();
+
+    private Path directory;
+
+    /**
+     * Writes in memory, each writer named after its connection ("main" for the store of the indexer).
+     */
+    private class FakeStore extends NugetMetadataStore {
+        private final String writer;
+
+        private final List<String> pending = new ArrayList<>();
+
+        FakeStore(String writer) {
+            super(null, 0, 0, "source", 1000);
+            this.writer = writer;
+        }
+
+        @Override
+        public NugetMetadataStore withConnection(Connection otherDbh) {
+            return new FakeStore(otherDbh.toString());
+        }
+
+        @Override
+        PackageLookup newPackageLookup(Connection otherDbh) {
+            return new PackageLookup(otherDbh, "source");
+        }
+
+        @Override
+        public synchronized void addHash(String name, String version, String fileName, Hashing.Digests digests) throws SQLException {
+            pending.add(writer + " " + name + " " + version + " " + fileName);
+        }
+
+        @Override
+        public synchronized void addPackageChecksum(String name, String version, String sha1) {
+        }
+
+        @Override
+        public synchronized void flushIfFull() {
+        }
+
+        @Override
+        public synchronized void flush() throws SQLException {
+            written.addAll(pending);
+            pending.clear();
+        }
+
+        @Override
+        public synchronized void checkpoint(long lastUpdated) throws SQLException {
+            flush();
+            checkpoints.add(lastUpdated + " " + written.size());
+        }
+
+        @Override
+        public synchronized void finishPartial() throws SQLException {
+            flush();
+        }
+
+        @Override
+        public synchronized boolean isKnownPackage(String sha1) {
+            return false;
+        }
+    }
+
+    private static final class FakeConnectionPool extends ConnectionPool {
+        private final List<Connection> borrowed = new ArrayList<>();
+        private final List<Connection> released = Collections.synchronizedList(new ArrayList<>());
+        private final List<Connection> discarded = Collections.synchronizedList(new ArrayList<>());
+
+        FakeConnectionPool() {
+            super("jdbc:unused", new Properties());
+        }
+
+        @Override
+        public synchronized Connection borrow() {
+            final String name = "connection-" + (borrowed.size() + 1);
+            final Connection connection = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Connection.class},
+                    (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "toString":
+                                return name;
+                            case "hashCode":
+                                return System.identityHashCode(proxy);
+                            case "equals":
+                                return proxy == args[0];
+                            default:
+                                throw new UnsupportedOperationException(method.getName());
+                        }
+                    });
+            borrowed.add(connection);
+            return connection;
+        }
+
+        @Override
+        public void release(Connection connection) {
+            released.add(connection);
+        }
+
+        @Override
+        public void discard(Connection connection) {
+            discarded.add(connection);
+        }
+    }
+
+    @BeforeEach
+    void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("indexer-test");
+    }
+
+    @AfterEach
+    void deleteDirectory() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (final Path file : (Iterable<Path>) files.sorted(Collections.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    void testSingleWriterStoresPackagesAndCheckpointsInOrder() throws IOException, SQLException {
+        final List<String> expected = new ArrayList<>();
+        try (Indexer indexer = new Indexer(new FakeStore("main"), 1)) {
+            for (int i = 0; i < 10; i++) {
+                indexer.index(new ByteArrayInputStream(nupkg("Package" + i, "1.0", "lib/a.dll")), null, null, null);
+                expected.add("main Package" + i + " 1.0");
+                if (i == 4) {
+                    indexer.checkpoint(1000);
+                }
+            }
+            indexer.finish();
+        }
+        final List<String> packages = new ArrayList<>();
+        for (final String row : written) {
+            final String writtenPackage = row.substring(0, row.lastIndexOf(' '));
+            if (!writtenPackage.equals(packages.isEmpty() ? null : packages.get(packages.size() - 1))) {
+                packages.add(writtenPackage);
+            }
+        }
+        assertEquals(expected, packages);
+        assertEquals(Collections.singletonList("1000 10"), checkpoints, "the checkpoint follows the first five packages");
+    }
+
+    /**
+     * With one worker, there are two pending packages: one analyzed and one waiting. The analyzed one waits for the
+     * writer, whose queue is full, too.
+     */
+    @Test
+    void testBlockedWriterStopsSource() throws IOException, SQLException, InterruptedException {
+        final CountDownLatch unblock = new CountDownLatch(1);
+        final NugetMetadataStore store = new FakeStore("main") {
+            // Not synchronized, so that workers can look up known packages meanwhile.
+            @Override
+            public void addHash(String name, String version, String fileName, Hashing.Digests digests) throws SQLException {
+                try {
+                    assertTrue(unblock.await(10, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    throw new SQLException(e);
+                }
+                super.addHash(name, version, fileName, digests);
+            }
+        };
+        final AtomicInteger submitted = new AtomicInteger();
+        final AtomicReference<Throwable> sourceFailure = new AtomicReference<>();
+        try (Indexer indexer = new Indexer(store, 1)) {
+            final Thread source = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 10; i++) {
+                        indexer.index(file("Package" + i, "1.0"), null, null);
+                        submitted.incrementAndGet();
+                    }
+                } catch (Throwable e) {
+                    sourceFailure.set(e);
+                }
+            });
+            source.start();
+            // one in the writer, two in its queue, one waiting for the queue and one waiting for the worker
+            waitUntil(() -> submitted.get() == 5);
+            Thread.sleep(300);
+            assertEquals(5, submitted.get(), "the source has to wait");
+            unblock.countDown();
+            source.join(10000);
+            assertNull(sourceFailure.get());
+            assertEquals(10, submitted.get());
+            indexer.finish();
+        }
+        assertEquals(10 * 2, written.size());
+    }
+
+    @Test
+    void testFailedAnalysisStopsSourceAndFailsFinish() throws IOException {
+        try (Indexer indexer = new Indexer(new FakeStore("main"), 2)) {
+            final Path broken = Files.write(directory.resolve("broken.nupkg"), "not a ZIP".getBytes(StandardCharsets.UTF_8));
+            indexer.index(broken, null, null);
+            final IOException e = assertThrows(IOException.class, () -> {
+                for (int i = 0; i < 100; i++) {
+                    indexer.index(file("Package" + i, "1.0"), null, null);
+                    Thread.sleep(10);
+                }
+            });
+            assertEquals("Indexing has failed", e.getMessage());
+            assertThrows(IOException.class, indexer::finish);
+        }
+    }
+
+    @Test
+    void testAllRowsOfPackageGoToOneWriter() throws IOException, SQLException {
+        try (Indexer indexer = new Indexer(new FakeStore("main"), 1, connectionPool, 3)) {
+            for (int i = 0; i < 20; i++) {
+                indexer.index(new ByteArrayInputStream(nupkg("Package" + i, "1.0." + i, "lib/a.dll", "lib/b.dll", "lib/c.dll")), null, null, null);
+            }
+            indexer.finish();
+        }
+        final Map<String, Set<String>> writersOfPackages = writersOfPackages();
+        assertEquals(20, writersOfPackages.size());
+        final Set<String> writers = new HashSet<>();
+        for (final Map.Entry<String, Set<String>> writersOfPackage : writersOfPackages.entrySet()) {
+            assertEquals(1, writersOfPackage.getValue().size(), writersOfPackage.getKey());
+            writers.addAll(writersOfPackage.getValue());
+        }
+        assertEquals(new HashSet<>(Arrays.asList("main", "connection-2", "connection-3")), writers, "the first connection is for lookups");
+        assertEquals(20 * 4, written.size());
+        assertEquals(connectionPool.borrowed, connectionPool.released);
+        assertEquals(Collections.emptyList(), connectionPool.discarded);
+    }
+
+    /**
+     * A case-insensitive collation (MySQL/MariaDB) stores the variants as a single package, so concurrent writers would
+     * lock the same row.
+     */
+    @Test
+    void testCaseVariantsOfPackageGoToOneWriter() throws IOException, SQLException {
+        try (Indexer indexer = new Indexer(new FakeStore("main"), 1, connectionPool, 3)) {
+            for (int i = 0; i < 10; i++) {
+                for (final String id : Arrays.asList("Package" + i, "PACKAGE" + i, "package" + i)) {
+                    indexer.index(new ByteArrayInputStream(nupkg(id, "1.0.0-Beta", "lib/a.dll")), null, null, null);
+                }
+            }
+            indexer.finish();
+        }
+        final Map<String, Set<String>> writersOfPackages = new HashMap<>();
+        for (final Map.Entry<String, Set<String>> writersOfPackage : writersOfPackages().entrySet()) {
+            writersOfPackages.computeIfAbsent(writersOfPackage.getKey().toLowerCase(), k -> new HashSet<>()).addAll(writersOfPackage.getValue());
+        }
+        assertEquals(10, writersOfPackages.size());
+        for (final Map.Entry<String, Set<String>> writersOfPackage : writersOfPackages.entrySet()) {
+            assertEquals(1, writersOfPackage.getValue().size(), writersOfPackage.getKey());
+        }
+    }
+
+    @Test
+    void testCheckpointIsStoredOnceAllWritersHaveFlushed() throws IOException, SQLException, InterruptedException {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch unblock = new CountDownLatch(1);
+        final CountDownLatch othersFlushed = new CountDownLatch(2);
+        final NugetMetadataStore store = new FakeStore("main") {
+            @Override
+            public NugetMetadataStore withConnection(Connection otherDbh) {
+                return new FakeStore(otherDbh.toString()) {
+                    @Override
+                    public synchronized void flush() throws SQLException {
+                        super.flush();
+                        othersFlushed.countDown();
+                    }
+                };
+            }
+
+            @Override
+            public synchronized void flush() throws SQLException {
+                blocked.countDown();
+                try {
+                    assertTrue(unblock.await(10, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    throw new SQLException(e);
+                }
+                super.flush();
+            }
+        };
+        try (Indexer indexer = new Indexer(store, 1, connectionPool, 3)) {
+            for (int i = 0; i < 20; i++) {
+                indexer.index(new ByteArrayInputStream(nupkg("Package" + i, "1.0", "lib/a.dll")), null, null, null);
+            }
+            indexer.checkpoint(1000);
+            assertTrue(blocked.await(10, TimeUnit.SECONDS));
+            assertTrue(othersFlushed.await(10, TimeUnit.SECONDS));
+            assertEquals(Collections.emptyList(), checkpoints, "the first writer has not flushed yet");
+            unblock.countDown();
+            indexer.finish();
+        }
+        assertEquals(Collections.singletonList("1000 " + 20 * 2), checkpoints);
+    }
+
+    @Test
+    void testFailedWriterFailsFinishAndDiscardsConnections() throws IOException, SQLException {
+        final NugetMetadataStore store = new FakeStore("main") {
+            @Override
+            public NugetMetadataStore withConnection(Connection otherDbh) {
+                return new FakeStore(otherDbh.toString()) {
+                    @Override
+                    public synchronized void addHash(String name, String version, String fileName, Hashing.Digests digests) throws SQLException {
+                        throw new SQLException("Cannot write " + name);
+                    }
+                };
+            }
+        };
+        try (Indexer indexer = new Indexer(store, 1, connectionPool, 3)) {
+            try {
+                for (int i = 0; i < 20; i++) {
+                    indexer.index(new ByteArrayInputStream(nupkg("Package" + i, "1.0", "lib/a.dll")), null, null, null);
+                }
+            } catch (IOException e) {
+                // Indexing has failed, which is reported by finish().
+            }
+            final SQLException e = assertThrows(SQLException.class, indexer::finish);
+            assertTrue(e.getMessage().startsWith("Cannot write Package"), e.getMessage());
+        }
+        assertEquals(Collections.emptyList(), connectionPool.released);
+        assertEquals(connectionPool.borrowed, connectionPool.discarded);
+    }
+
+    private Path file(String id, String version) throws IOException {
+        return Files.write(directory.resolve(id + "." + version + ".nupkg"), nupkg(id, version, "lib/a.dll"));
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "Timed out");
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * @return writers of each package, by "id version"
+     */
+    private Map<String, Set<String>> writersOfPackages() {
+        final Map<String, Set<String>> writersOfPackages = new HashMap<>();
+        for (final String row : written) {
+            final String[] parts = row.split(" ");
+            writersOfPackages.computeIfAbsent(parts[1] + " " + parts[2], k -> new HashSet<>()).add(parts[0]);
+        }
+        return writersOfPackages;
+    }
+
+    /**
+     * Creates a minimal package, whose files contain their names.
+     */
+    static byte[] nupkg(String id, String version, String... files) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(out)) {
+            zip.putNextEntry(new ZipEntry(id + ".nuspec"));
+            zip.write(("<package><metadata><id>" + id + "</id><version>" + version + "</version></metadata></package>").getBytes(StandardCharsets.UTF_8));
+            for (final String file : files) {
+                zip.putNextEntry(new ZipEntry(file));
+                zip.write(file.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,82 @@
+package com.ysoft.security;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LookupServerTest {
+
+    private LookupServer server;
+
+    private HashLookupTest.FakeResolver resolver;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        resolver = new HashLookupTest.FakeResolver();
+        server = new LookupServer(new InetSocketAddress("127.0.0.1", 0), new HashLookup(resolver, 100), 2);
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.close();
+    }
+
+    @Test
+    void testGet() throws IOException {
+        final HttpURLConnection connection = open("/lookup?sha1=" + HashLookupTest.SHA1 + "&md5=00000000000000000000000000000000");
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("{\"sha1\":{\"" + HashLookupTest.SHA1 + "\":[{\"name\":\"System.Globalization\",\"version\":\"4.3.0\",\"file_name\":\"ref/netstandard1.3/System.Globalization.dll\"}]}," +
+                "\"md5\":{\"00000000000000000000000000000000\":[]}}", read(connection.getInputStream()));
+    }
+
+    @Test
+    void testPostIsResolvedAtOnce() throws IOException {
+        final HttpURLConnection connection = open("/lookup");
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(("{\"sha1\": [\"0000000000000000000000000000000000000000\", \"1111111111111111111111111111111111111111\"], " +
+                    "\"md5\": [\"" + HashLookupTest.MD5 + "\"]}").getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals(200, connection.getResponseCode());
+        final String response = read(connection.getInputStream());
+        assertTrue(response.contains("\"" + HashLookupTest.MD5 + "\":[{\"name\":\"System.Globalization\""), response);
+        assertTrue(response.contains("\"1111111111111111111111111111111111111111\":[]"), response);
+        assertEquals(1, resolver.calls.size());
+    }
+
+    @Test
+    void testBadDigest() throws IOException {
+        assertEquals(400, open("/lookup?sha1=abc").getResponseCode());
+        assertEquals(400, open("/lookup?sha256=" + HashLookupTest.SHA1).getResponseCode());
+        assertEquals(0, resolver.calls.size());
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        return (HttpURLConnection) new URL("http://127.0.0.1:" + server.getAddress().getPort() + path).openConnection();
+    }
+
+    private static String read(InputStream in) throws IOException {
+        try (InputStream input = in) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int size;
+            while ((size = input.read(buffer)) != -1) {
+                out.write(buffer, 0, size);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
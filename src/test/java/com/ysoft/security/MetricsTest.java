@@ -0,0 +1,56 @@
+package com.ysoft.security;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MetricsTest {
+
+    private static String text(Metrics.Metric metric) {
+        final StringBuilder out = new StringBuilder();
+        metric.write(out);
+        return out.toString();
+    }
+
+    @Test
+    void testHistogram() {
+        final Metrics.Histogram histogram = new Metrics.Histogram("test_seconds", "Test.");
+        histogram.observe(TimeUnit.MICROSECONDS.toNanos(500));
+        histogram.observe(TimeUnit.MILLISECONDS.toNanos(1)); // the bounds are inclusive
+        histogram.observe(TimeUnit.MILLISECONDS.toNanos(300));
+        histogram.observe(TimeUnit.MINUTES.toNanos(2));
+        assertEquals("# HELP nuget_indexer_test_seconds Test.\n" +
+                "# TYPE nuget_indexer_test_seconds histogram\n" +
+                "nuget_indexer_test_seconds_bucket{le=\"0.001\"} 2\n" +
+                "nuget_indexer_test_seconds_bucket{le=\"0.005\"} 2\n" +
+                "nuget_indexer_test_seconds_bucket{le=\"0.01\"} 2\n" +
+                "nuget_indexer_test_seconds_bucket{le=\"0.05\"} 2\n" +
+                "nuget_indexer_test_seconds_bucket{le=\"0.1\"} 2\n" +
+                "nuget_indexer_test_seconds_bucket{le=\"0.5\"} 3\n" +
+                "nuget_indexer_test_seconds_bucket{le=\"1.0\"} 3\n" +
+                "nuget_indexer_test_seconds_bucket{le=\"5.0\"} 3\n" +
+                "nuget_indexer_test_seconds_bucket{le=\"10.0\"} 3\n" +
+                "nuget_indexer_test_seconds_bucket{le=\"60.0\"} 3\n" +
+                "nuget_indexer_test_seconds_bucket{le=\"+Inf\"} 4\n" +
+                "nuget_indexer_test_seconds_sum 120.3015\n" +
+                "nuget_indexer_test_seconds_count 4\n", text(histogram));
+    }
+
+    @Test
+    void testMeteredInputStream() throws IOException {
+        final Metrics.Counter bytes = new Metrics.Counter("test_bytes_total", "Test.", false);
+        final Metrics.Counter time = new Metrics.Counter("test_seconds_total", "Test.", true);
+        try (InputStream in = new Metrics.MeteredInputStream(new ByteArrayInputStream(new byte[1000]), bytes, time)) {
+            assertEquals(0, in.read());
+            assertEquals(999, in.read(new byte[2000]));
+            assertEquals(-1, in.read());
+        }
+        assertEquals(1000L, bytes.get());
+        assertTrue(time.get() instanceof Double, "time is exported in seconds");
+    }
+}
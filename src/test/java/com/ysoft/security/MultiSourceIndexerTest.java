@@ -0,0 +1,75 @@
+package com.ysoft.security;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class MultiSourceIndexerTest {
+
+    /**
+     * Needs a disposable DB like {@link ReconcilerTest#testPackageSharedBySourcesIsKeptUntilGoneFromAll()}.
+     */
+    @Test
+    void testFailedSourceDoesNotStopOthers() throws IOException, SQLException, InterruptedException {
+        final String url = System.getProperty("nuget.test.db.url");
+        assumeTrue(url != null, "No test DB");
+        final Path root = Files.createTempDirectory("multi-source-test");
+        try (Connection dbh = ReconcilerTest.connectToEmptyDb(url);
+             ConnectionPool connectionPool = new ConnectionPool(url, new Properties())) {
+            final Path directory = Files.createDirectories(root.resolve("NetMQ/4.0.0.207"));
+            try (InputStream in = getClass().getResourceAsStream("/netmq.4.0.0.207.nupkg")) {
+                Files.copy(in, directory.resolve("netmq.4.0.0.207.nupkg"));
+            }
+            final NexusNugetSource nexus = new NexusNugetSource(Collections.singletonList(root.toString()), "test", 1, new TreeSet<>());
+            final NugetSource failing = new NugetSource() {
+                @Override
+                public void index(long lastModifiedTime, Indexer indexer) throws IOException {
+                    throw new IOException("The source is not available");
+                }
+
+                @Override
+                public String getHash() {
+                    return "FAILING";
+                }
+            };
+            final MultiSourceIndexer multiSourceIndexer = new MultiSourceIndexer(Arrays.asList(
+                    new MultiSourceIndexer.Source("failing", failing, 1),
+                    new MultiSourceIndexer.Source("nexus", nexus, 1)
+            ), connectionPool, 2, 10, false, 1);
+            final IOException e = assertThrows(IOException.class, multiSourceIndexer::index);
+            assertEquals("Indexing of 1 of 2 sources failed: [failing]", e.getMessage());
+            try (Statement statement = dbh.createStatement();
+                 ResultSet resultSet = statement.executeQuery("SELECT source_hash FROM nuget_index_sources")) {
+                assertTrue(resultSet.next());
+                assertEquals(nexus.getHash(), resultSet.getString(1), "only the successful source is finished");
+                assertFalse(resultSet.next());
+            }
+            try (Statement statement = dbh.createStatement();
+                 ResultSet resultSet = statement.executeQuery("SELECT name, version FROM nuget_index_packages")) {
+                assertTrue(resultSet.next());
+                assertEquals("NetMQ 4.0.0.207", resultSet.getString(1) + " " + resultSet.getString(2));
+            }
+        } finally {
+            try (Stream<Path> files = Files.walk(root)) {
+                for (final Path file : (Iterable<Path>) files.sorted(Collections.reverseOrder())::iterator) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.ysoft.security;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NexusNugetSourceTest {
+
+    private Path first;
+
+    private Path second;
+
+    /**
+     * Records the packages instead of analyzing them.
+     */
+    private static class RecordingIndexer extends Indexer {
+        private final Set<String> indexed = ConcurrentHashMap.newKeySet();
+
+        RecordingIndexer() {
+            super(new NugetMetadataStore(null, 0, 0, "source", 1), 1);
+        }
+
+        @Override
+        public void index(Path file, String expectedName, String expectedVersion) throws IOException {
+            indexed.add(expectedName + " " + expectedVersion + " " + file.getFileName());
+        }
+    }
+
+    @BeforeEach
+    void createRoots() throws IOException {
+        first = Files.createTempDirectory("nexus-test");
+        second = Files.createTempDirectory("nexus-test");
+    }
+
+    @AfterEach
+    void deleteRoots() throws IOException {
+        for (final Path root : Arrays.asList(first, second)) {
+            try (Stream<Path> files = Files.walk(root)) {
+                for (final Path file : (Iterable<Path>) files.sorted(Collections.reverseOrder())::iterator) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    @Test
+    void testScanIndexesPackagesOfAllShards() throws IOException, SQLException {
+        final Set<String> expected = new HashSet<>();
+        for (int i = 0; i < 50; i++) {
+            final Path root = i % 2 == 0 ? first : second;
+            addPackage(root, "Package" + i, "1.0");
+            addPackage(root, "Package" + i, "2.0");
+            expected.add("Package" + i + " 1.0 package" + i + ".1.0.nupkg");
+            expected.add("Package" + i + " 2.0 package" + i + ".2.0.nupkg");
+        }
+        addPackage(first, "Excluded", "1.0");
+        addPackage(first, ".nexus", "1.0");
+        final NexusNugetSource source = new NexusNugetSource(Arrays.asList(first.toString(), second.toString()), "test", 4,
+                new TreeSet<>(Collections.singleton("Excluded/")));
+        try (RecordingIndexer indexer = new RecordingIndexer()) {
+            source.index(0, indexer);
+            indexer.finish();
+            assertEquals(expected, indexer.indexed);
+        }
+    }
+
+    @Test
+    void testFailedShardStopsOtherShards() throws IOException, SQLException, InterruptedException {
+        for (int i = 0; i < 200; i++) {
+            addPackage(first, "Package" + i, "1.0");
+        }
+        final AtomicInteger calls = new AtomicInteger();
+        final NexusNugetSource source = new NexusNugetSource(Collections.singletonList(first.toString()), "test", 4, new TreeSet<>());
+        try (RecordingIndexer indexer = new RecordingIndexer() {
+            @Override
+            public void index(Path file, String expectedName, String expectedVersion) throws IOException {
+                if (calls.incrementAndGet() == 1) {
+                    throw new IOException("Cannot index " + file);
+                }
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }) {
+            final IOException e = assertThrows(IOException.class, () -> source.index(0, indexer));
+            assertTrue(e.getMessage().startsWith("Cannot index"), e.getMessage());
+            final int callsAfterScan = calls.get();
+            assertTrue(callsAfterScan < 20, "the other shards should have stopped, but got " + callsAfterScan + " packages");
+            Thread.sleep(200);
+            assertEquals(callsAfterScan, calls.get(), "no shard should run after the scan has ended");
+            indexer.finish();
+        }
+    }
+
+    private static void addPackage(Path root, String name, String version) throws IOException {
+        final Path directory = Files.createDirectories(root.resolve(name).resolve(version));
+        Files.write(directory.resolve(name.toLowerCase() + "." + version + ".nupkg"), new byte[0]);
+    }
+}
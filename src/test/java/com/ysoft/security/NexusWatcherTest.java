@@ -0,0 +1,94 @@
+package com.ysoft.security;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NexusWatcherTest {
+
+    private static final long DEBOUNCE_MILLIS = 300;
+
+    private Path root;
+
+    private NexusWatcher watcher;
+
+    private final BlockingQueue<List<Path>> arrived = new LinkedBlockingQueue<>();
+
+    @BeforeEach
+    void createRoot() throws IOException {
+        root = Files.createTempDirectory("nexus-watcher-test");
+        Files.createDirectories(root.resolve("Existing.Package/1.0.0"));
+        Files.write(root.resolve("Existing.Package/1.0.0/Existing.Package.1.0.0.nupkg"), new byte[10]);
+        Files.createDirectories(root.resolve("Excluded.Package"));
+        final NexusNugetSource source = new NexusNugetSource(Collections.singletonList(root.toString()), "test", 1, new TreeSet<>(Collections.singleton("Excluded.")));
+        watcher = new NexusWatcher(source, DEBOUNCE_MILLIS, new NexusWatcher.Listener() {
+            @Override
+            public void packagesArrived(List<Path> files) {
+                arrived.add(files);
+            }
+
+            @Override
+            public void eventsLost() {
+                fail("No events should be lost");
+            }
+        });
+        watcher.start();
+    }
+
+    @AfterEach
+    void deleteRoot() throws IOException, InterruptedException {
+        watcher.close();
+        try (Stream<Path> files = Files.walk(root)) {
+            for (final Path file : (Iterable<Path>) files.sorted(Collections.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    void testNewPackages() throws IOException, InterruptedException {
+        final Path newVersion = root.resolve("Existing.Package/1.1.0/Existing.Package.1.1.0.nupkg");
+        Files.createDirectories(newVersion.getParent());
+        Files.write(newVersion, new byte[10]);
+        // a new id directory, with the version directory created before it might have been registered
+        final Path newPackage = root.resolve("New.Package/2.0.0/New.Package.2.0.0.nupkg");
+        Files.createDirectories(newPackage.getParent());
+        Files.write(newPackage, new byte[10]);
+        Files.createDirectories(root.resolve("Excluded.Package/1.0.0"));
+        Files.write(root.resolve("Excluded.Package/1.0.0/Excluded.Package.1.0.0.nupkg"), new byte[10]);
+        final TreeSet<Path> reported = new TreeSet<>();
+        List<Path> files;
+        while ((files = arrived.poll(DEBOUNCE_MILLIS * 5, TimeUnit.MILLISECONDS)) != null) {
+            reported.addAll(files);
+        }
+        assertEquals(new TreeSet<>(Arrays.asList(newVersion, newPackage)), reported);
+    }
+
+    @Test
+    void testFileIsReportedWhenItSettles() throws IOException, InterruptedException {
+        final Path file = root.resolve("Existing.Package/1.0.0/Existing.Package.1.0.0-beta.nupkg");
+        long lastWrite = 0;
+        for (int i = 0; i < 5; i++) {
+            Thread.sleep(DEBOUNCE_MILLIS / 3);
+            lastWrite = System.currentTimeMillis();
+            Files.write(file, new byte[i + 1]);
+        }
+        assertEquals(Collections.singletonList(file), arrived.poll(DEBOUNCE_MILLIS * 10, TimeUnit.MILLISECONDS));
+        assertTrue(System.currentTimeMillis() - lastWrite >= DEBOUNCE_MILLIS);
+        assertNull(arrived.poll(DEBOUNCE_MILLIS * 3, TimeUnit.MILLISECONDS));
+    }
+}
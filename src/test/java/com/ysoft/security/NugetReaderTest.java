@@ -7,6 +7,9 @@ import javax.xml.stream.XMLStreamException;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.NoSuchAlgorithmException;
 import java.util.Collections;
 import java.util.HashMap;
@@ -178,6 +181,22 @@ public class NugetReaderTest {
         assertEquals(netMqHashes, hashesForFiles);
     }
 
+    @Test
+    void testLocalFileGivesSameResults() throws IOException, URISyntaxException {
+        assertEquals(systemGlobalizationHashes, analyzeNuget(resourcePath("System.Globalization.4.3.0.nupkg"), "System.Globalization", "4.3.0").getHashesForFiles());
+        assertEquals(microsoftAspnetRazorHashes, analyzeNuget(resourcePath("Microsoft.AspNet.Razor-2.0.20715.0.nupkg"), "Microsoft.AspNet.Razor", "2.0.20715.0").getHashesForFiles());
+        assertEquals(netMqHashes, analyzeNuget(resourcePath("netmq.4.0.0.207.nupkg"), "NetMQ", "4.0.0.207").getHashesForFiles());
+    }
+
+    @Test
+    void testLocalFileWithUnexpectedName() throws URISyntaxException {
+        assertThrows(IOException.class, () -> analyzeNuget(resourcePath("System.Globalization.4.3.0.nupkg"), "System.Collections", "4.3.0"));
+    }
+
+    private Path resourcePath(String path) throws URISyntaxException {
+        return Paths.get(getClass().getResource("/" + path).toURI());
+    }
+
     @Test
     void testGetNugetIdentifierFromManifest() throws IOException, XMLStreamException, NoSuchAlgorithmException {
         try (Hashing.HashingInputStream in = new Hashing.HashingInputStream(getClass().getResourceAsStream("/Microsoft.AspNet.Razor.nuspec"))) {
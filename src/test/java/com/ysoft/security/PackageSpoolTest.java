@@ -0,0 +1,100 @@
+package com.ysoft.security;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PackageSpoolTest {
+
+    private Path dir;
+
+    @BeforeEach
+    void createDir() throws IOException {
+        dir = Files.createTempDirectory("package-spool-test");
+    }
+
+    @AfterEach
+    void deleteDir() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (final Path file : (Iterable<Path>) files.sorted(Collections.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    void testPutAndGet() throws IOException {
+        final PackageSpool spool = new PackageSpool(dir, 1000);
+        final byte[] data = content('a');
+        try (PackageSpool.Entry entry = spool.put(new ByteArrayInputStream(data), null)) {
+            assertEquals(sha1(data), entry.getSha1());
+            assertArrayEquals(data, Files.readAllBytes(entry.getFile()));
+        }
+        try (PackageSpool.Entry entry = spool.get(sha1(data).toUpperCase(Locale.ROOT))) {
+            assertNotNull(entry);
+            assertArrayEquals(data, Files.readAllBytes(entry.getFile()));
+        }
+        assertNull(spool.get(sha1(content('b'))));
+    }
+
+    @Test
+    void testMismatchingChecksumIsRejected() throws IOException {
+        final PackageSpool spool = new PackageSpool(dir, 1000);
+        assertThrows(IOException.class, () -> spool.put(new ByteArrayInputStream(content('a')), sha1(content('b'))));
+        assertNull(spool.get(sha1(content('a'))));
+        try (Stream<Path> files = Files.walk(dir)) {
+            assertEquals(1, files.count(), "Only the spool directory should remain");
+        }
+    }
+
+    @Test
+    void testLeastRecentlyUsedIsEvicted() throws IOException {
+        final PackageSpool spool = new PackageSpool(dir, 250);
+        spool.put(new ByteArrayInputStream(content('a')), null).close();
+        spool.put(new ByteArrayInputStream(content('b')), null).close();
+        spool.get(sha1(content('a'))).close();
+        spool.put(new ByteArrayInputStream(content('c')), null).close();
+        assertNull(spool.get(sha1(content('b'))));
+        // a new instance finds the remaining packages
+        final PackageSpool reopened = new PackageSpool(dir, 250);
+        for (final char c : new char[]{'a', 'c'}) {
+            try (PackageSpool.Entry entry = reopened.get(sha1(content(c)))) {
+                assertNotNull(entry, "Missing " + c);
+            }
+        }
+    }
+
+    @Test
+    void testPackageInUseIsNotEvicted() throws IOException {
+        final PackageSpool spool = new PackageSpool(dir, 150);
+        try (PackageSpool.Entry a = spool.put(new ByteArrayInputStream(content('a')), null);
+             PackageSpool.Entry b = spool.put(new ByteArrayInputStream(content('b')), null)) {
+            assertTrue(Files.exists(a.getFile()));
+            assertTrue(Files.exists(b.getFile()));
+        }
+        try (PackageSpool.Entry entry = spool.get(sha1(content('a')))) {
+            assertNotNull(entry, "The package closed last should have been evicted instead");
+        }
+    }
+
+    private static byte[] content(char c) {
+        final byte[] data = new byte[100];
+        Arrays.fill(data, (byte) c);
+        return data;
+    }
+
+    private static String sha1(byte[] data) throws IOException {
+        return Hashing.hash(new ByteArrayInputStream(data)).getHex(Hashing.Algorithm.SHA1).toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,347 @@
+package com.ysoft.security;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class ReconcilerTest {
+
+    private Path first;
+
+    private Path second;
+
+    private final Reconciler reconciler = new Reconciler(null, null, "source", 1000, 10);
+
+    private final List<String> changes = new ArrayList<>();
+
+    private final Reconciler.Changes recorder = new Reconciler.Changes() {
+        @Override
+        public void detach(long packageId, String name, String version) {
+            changes.add("detach " + packageId);
+        }
+
+        @Override
+        public void attach(String name, String version) {
+            changes.add("attach " + name + " " + version);
+        }
+    };
+
+    /**
+     * Two empty roots of Nexus sources.
+     */
+    @BeforeEach
+    void createRoots() throws IOException {
+        first = Files.createTempDirectory("reconciler-test");
+        second = Files.createTempDirectory("reconciler-test");
+    }
+
+    @AfterEach
+    void deleteRoots() throws IOException {
+        for (final Path root : Arrays.asList(first, second)) {
+            try (Stream<Path> files = Files.walk(root)) {
+                for (final Path file : (Iterable<Path>) files.sorted(Collections.reverseOrder())::iterator) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    @Test
+    void testCompare() {
+        assertEquals(0, Reconciler.compare("A.Package", "1.0.0", "a.package", "1.0.0"));
+        assertTrue(Reconciler.compare("a", "1.0.0", "a.b", "1.0.0") < 0);
+        assertTrue(Reconciler.compare("a-b", "1.0.0", "a.b", "1.0.0") < 0);
+        // versions are compared as strings, like by the DB
+        assertTrue(Reconciler.compare("a", "10.0.0", "a", "2.0.0") < 0);
+        assertTrue(Reconciler.compare("a", "1.0.0", "a", "1.0.0-beta") < 0);
+    }
+
+    @Test
+    void testNexusPackagesAreListedSorted() throws IOException {
+        addPackage(first, "b.package", "1.0.0");
+        addPackage(first, "A.Package", "2.0.0");
+        addPackage(first, "A.Package", "10.0.0");
+        addPackage(second, "a.package", "1.0.0");
+        addPackage(second, "a.package", "2.0.0");
+        addPackage(second, "Excluded.Package", "1.0.0");
+        Files.createDirectories(first.resolve("Empty.Package/1.0.0"));
+        Files.createDirectories(first.resolve(".nexus/attributes/b.package/1.0.0"));
+        Files.write(first.resolve(".nexus/attributes/b.package/1.0.0/b.package.1.0.0.nupkg"), new byte[10]);
+        final NexusNugetSource source = new NexusNugetSource(Arrays.asList(first.toString(), second.toString()), "test", 1,
+                new TreeSet<>(Collections.singleton("Excluded.")));
+        final List<String> listed = new ArrayList<>();
+        source.listPackages((name, version) -> listed.add(name.toLowerCase() + " " + version));
+        assertEquals(Arrays.asList("a.package 1.0.0", "a.package 10.0.0", "a.package 2.0.0", "b.package 1.0.0"), listed);
+    }
+
+    @Test
+    void testMergeDetachesMissingAndAttachesNewPackages() throws IOException, SQLException {
+        reconciler.merge(listing("a", "1.0", "b", "1.0", "d", "1.0"),
+                recorded(1, "a", "1.0", 2, "c", "1.0", 3, "d", "1.0", 4, "e", "1.0"), recorder);
+        assertEquals(Arrays.asList("attach b 1.0", "detach 2", "detach 4"), changes);
+    }
+
+    @Test
+    void testMergeKeepsAllRecordedCasesOfListedPackage() throws IOException, SQLException {
+        reconciler.merge(listing("Foo", "1.0", "foo", "2.0"),
+                recorded(1, "Foo", "1.0", 2, "foo", "1.0", 3, "FOO", "2.0", 4, "foo", "2.0", 5, "foo", "3.0"), recorder);
+        assertEquals(Collections.singletonList("detach 5"), changes);
+    }
+
+    @Test
+    void testMergeAttachesPackageListedInSeveralCasesOnce() throws IOException, SQLException {
+        reconciler.merge(listing("Foo", "1.0", "foo", "1.0", "foo", "2.0"), recorded(1, "foo", "2.0"), recorder);
+        assertEquals(Collections.singletonList("attach Foo 1.0"), changes);
+    }
+
+    @Test
+    void testMergeDetachesAllWithEmptyListing() throws IOException, SQLException {
+        reconciler.merge(listing(), recorded(1, "a", "1.0", 2, "A", "1.0"), recorder);
+        assertEquals(Arrays.asList("detach 1", "detach 2"), changes);
+    }
+
+    @Test
+    void testMergeRejectsUnsortedRecordedPackages() {
+        final IOException e = assertThrows(IOException.class, () -> reconciler.merge(listing("a", "1.0", "c", "1.0"),
+                recorded(1, "b", "1.0", 2, "a", "1.0"), recorder));
+        assertTrue(e.getCause() instanceof SQLException);
+    }
+
+    @Test
+    void testRemovalsAreLimited() throws IOException {
+        reconciler.checkRemovals(0, 0);
+        reconciler.checkRemovals(0, 100);
+        reconciler.checkRemovals(10, 100);
+        assertThrows(IOException.class, () -> reconciler.checkRemovals(11, 100));
+        // e.g., an unmounted path
+        assertThrows(IOException.class, () -> reconciler.checkRemovals(100, 100));
+        new Reconciler(null, null, "source", 1000, 100).checkRemovals(100, 100);
+        assertThrows(IOException.class, () -> new Reconciler(null, null, "source", 1000, 0).checkRemovals(1, 100));
+    }
+
+    @Test
+    void testMergeRejectsUnsortedListing() {
+        assertThrows(IOException.class, () -> reconciler.merge(listing("b", "1.0", "a", "1.0"), recorded(), recorder));
+    }
+
+    /**
+     * Needs a disposable DB, e.g., -Dnuget.test.db.url=jdbc:postgresql://localhost/test?user=test. All the indexed data
+     * in it are deleted.
+     */
+    @Test
+    void testPackageSharedBySourcesIsKeptUntilGoneFromAll() throws IOException, SQLException {
+        final String url = System.getProperty("nuget.test.db.url");
+        assumeTrue(url != null, "No test DB");
+        final NexusNugetSource firstSource = new NexusNugetSource(Collections.singletonList(first.toString()), "test", 1, new TreeSet<>());
+        final NexusNugetSource secondSource = new NexusNugetSource(Collections.singletonList(second.toString()), "test", 1, new TreeSet<>());
+        final Path firstPackage = addNetMq(first);
+        final Path secondPackage = addNetMq(second);
+        try (Connection dbh = connectToEmptyDb(url); Connection otherDbh = DriverManager.getConnection(url)) {
+            final DbHashResolver resolver = new DbHashResolver(Collections.singletonList(otherDbh));
+            final Object generation = resolver.getGeneration();
+            index(url, dbh, firstSource);
+            assertNotEquals(generation, resolver.getGeneration(), "cached lookups have to be dropped");
+            // The second source skips the identical package, which has to be recorded for it anyway.
+            index(url, dbh, secondSource);
+            assertEquals(2, count(dbh, "nuget_index_source_packages"));
+            final long removals = getRemovals(dbh);
+
+            deletePackage(firstPackage);
+            new Reconciler(dbh, otherDbh, firstSource.getHash(), 10, 100).reconcile(firstSource::listPackages);
+            assertEquals(1, count(dbh, "nuget_index_source_packages"));
+            assertEquals(1, count(dbh, "nuget_index_packages"));
+            assertEquals(1, count(dbh, "nuget_index_package_checksums"));
+            assertEquals(removals, getRemovals(dbh));
+
+            deletePackage(secondPackage);
+            new Reconciler(dbh, otherDbh, secondSource.getHash(), 10, 100).reconcile(secondSource::listPackages);
+            assertEquals(0, count(dbh, "nuget_index_source_packages"));
+            assertEquals(0, count(dbh, "nuget_index_packages"));
+            assertEquals(0, count(dbh, "nuget_index_package_checksums"));
+            assertEquals(removals + 1, getRemovals(dbh));
+        }
+    }
+
+    /**
+     * Needs a disposable DB like {@link #testPackageSharedBySourcesIsKeptUntilGoneFromAll()}.
+     */
+    @Test
+    void testNothingIsRemovedFromSourceThatLooksEmpty() throws IOException, SQLException {
+        final String url = System.getProperty("nuget.test.db.url");
+        assumeTrue(url != null, "No test DB");
+        final NexusNugetSource source = new NexusNugetSource(Collections.singletonList(first.toString()), "test", 1, new TreeSet<>());
+        final Path file = addNetMq(first);
+        try (Connection dbh = connectToEmptyDb(url); Connection otherDbh = DriverManager.getConnection(url)) {
+            index(url, dbh, source);
+            deletePackage(file);
+            assertThrows(IOException.class, () -> new Reconciler(dbh, otherDbh, source.getHash(), 10, 10).reconcile(source::listPackages));
+            assertEquals(1, count(dbh, "nuget_index_source_packages"));
+            assertEquals(1, count(dbh, "nuget_index_packages"));
+        }
+    }
+
+    /**
+     * Needs a disposable DB like {@link #testPackageSharedBySourcesIsKeptUntilGoneFromAll()}.
+     */
+    @Test
+    void testPackagesAreReconciledByChecksums() throws IOException, SQLException {
+        final String url = System.getProperty("nuget.test.db.url");
+        assumeTrue(url != null, "No test DB");
+        final NexusNugetSource source = new NexusNugetSource(Collections.singletonList(first.toString()), "test", 1, new TreeSet<>());
+        final String sha1 = sha1(addNetMq(first));
+        try (Connection dbh = connectToEmptyDb(url); Connection otherDbh = DriverManager.getConnection(url)) {
+            index(url, dbh, source);
+            final Reconciler reconciler = new Reconciler(dbh, otherDbh, source.getHash(), 10, 100);
+            try (Statement statement = dbh.createStatement()) {
+                statement.executeUpdate("DELETE FROM nuget_index_source_packages");
+            }
+            reconciler.reconcileChecksums(consumer -> consumer.accept(sha1.toUpperCase(Locale.ROOT)));
+            assertEquals(1, count(dbh, "nuget_index_source_packages"), "the listed package is recorded again");
+
+            // Another file of the same id and version, which might be still in the source.
+            try (PreparedStatement statement = dbh.prepareStatement("INSERT INTO nuget_index_package_checksums (digest_sha1, package_id) " +
+                    "SELECT ?, id FROM nuget_index_packages")) {
+                statement.setBytes(1, new byte[20]);
+                statement.executeUpdate();
+            }
+            reconciler.reconcileChecksums(consumer -> {
+            });
+            assertEquals(1, count(dbh, "nuget_index_packages"));
+
+            try (PreparedStatement statement = dbh.prepareStatement("DELETE FROM nuget_index_package_checksums WHERE digest_sha1 = ?")) {
+                statement.setBytes(1, new byte[20]);
+                statement.executeUpdate();
+            }
+            reconciler.reconcileChecksums(consumer -> {
+            });
+            assertEquals(0, count(dbh, "nuget_index_source_packages"));
+            assertEquals(0, count(dbh, "nuget_index_packages"));
+            assertEquals(0, count(dbh, "nuget_index_package_checksums"));
+        }
+    }
+
+    static Connection connectToEmptyDb(String url) throws IOException, SQLException {
+        final Connection dbh = DriverManager.getConnection(url);
+        try {
+            NugetMetadataStore.updateSchema(dbh);
+            try (Statement statement = dbh.createStatement()) {
+                // Referring tables first.
+                for (final String table : Arrays.asList("nuget_index_source_packages", "nuget_index_package_checksums",
+                        "nuget_index_package_files", "nuget_index_packages", "nuget_index_contents", "nuget_index_sources")) {
+                    statement.executeUpdate("DELETE FROM " + table);
+                }
+            }
+        } catch (IOException | SQLException | RuntimeException e) {
+            dbh.close();
+            throw e;
+        }
+        return dbh;
+    }
+
+    private static void index(String url, Connection dbh, NexusNugetSource source) throws IOException, SQLException {
+        final NugetMetadataStore store = NugetMetadataStore.openWithoutSchemaUpdate(dbh, source.getHash(), 10, false);
+        try (ConnectionPool connectionPool = new ConnectionPool(url, new Properties());
+             Indexer indexer = new Indexer(store, 1, connectionPool, 1)) {
+            source.index(store.getLastModifiedTime(), indexer);
+            indexer.finish();
+        }
+        store.finish();
+    }
+
+    private static long count(Connection dbh, String table) throws SQLException {
+        try (Statement statement = dbh.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM " + table)) {
+            resultSet.next();
+            return resultSet.getLong(1);
+        }
+    }
+
+    private static long getRemovals(Connection dbh) throws SQLException {
+        try (Statement statement = dbh.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT removals FROM nuget_index_state WHERE id = 1")) {
+            resultSet.next();
+            return resultSet.getLong(1);
+        }
+    }
+
+    private Path addNetMq(Path root) throws IOException {
+        final Path file = Files.createDirectories(root.resolve("NetMQ/4.0.0.207")).resolve("netmq.4.0.0.207.nupkg");
+        try (InputStream in = getClass().getResourceAsStream("/netmq.4.0.0.207.nupkg")) {
+            Files.copy(in, file);
+        }
+        return file;
+    }
+
+    private static String sha1(Path file) throws IOException {
+        try {
+            return DatatypeConverter.printHexBinary(MessageDigest.getInstance("SHA-1").digest(Files.readAllBytes(file))).toLowerCase(Locale.ROOT);
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void deletePackage(Path file) throws IOException {
+        Files.delete(file);
+        Files.delete(file.getParent());
+        Files.delete(file.getParent().getParent());
+    }
+
+    /**
+     * @param packages names and versions
+     */
+    private static Reconciler.PackageListing listing(String... packages) {
+        return consumer -> {
+            for (int i = 0; i < packages.length; i += 2) {
+                consumer.accept(packages[i], packages[i + 1]);
+            }
+        };
+    }
+
+    /**
+     * @param rows package ids, names and versions
+     */
+    private static Reconciler.Cursor recorded(Object... rows) {
+        final Iterator<Object> values = Arrays.asList(rows).iterator();
+        return new Reconciler.Cursor() {
+            @Override
+            boolean fetch() {
+                if (!values.hasNext()) {
+                    return false;
+                }
+                set(((Number) values.next()).longValue(), (String) values.next(), (String) values.next());
+                return true;
+            }
+        };
+    }
+
+    private static void addPackage(Path root, String name, String version) throws IOException {
+        final Path directory = Files.createDirectories(root.resolve(name).resolve(version));
+        Files.write(directory.resolve(name + "." + version + ".nupkg"), new byte[10]);
+    }
+}